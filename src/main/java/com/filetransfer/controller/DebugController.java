@@ -54,12 +54,7 @@ public class DebugController {
         User user = userService.getUserByUsername(identifier);
         if (user == null) {
             // Try to find by email
-            for (User u : userService.getAllUsers()) {
-                if (u.getEmail() != null && u.getEmail().equalsIgnoreCase(identifier)) {
-                    user = u;
-                    break;
-                }
-            }
+            user = userService.getUserByEmail(identifier);
         }
         
         if (user == null) {
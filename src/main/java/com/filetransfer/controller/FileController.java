@@ -2,42 +2,65 @@ package com.filetransfer.controller;
 
 import com.filetransfer.model.ApiResponse;
 import com.filetransfer.model.FileInfo;
+import com.filetransfer.model.FilePage;
 import com.filetransfer.model.User;
 import com.filetransfer.service.FileService;
 import com.filetransfer.service.UserService;
+import com.filetransfer.util.ByteRangeWriter;
+import com.filetransfer.util.FileInfoProjection;
 import com.filetransfer.util.JwtUtil;
+import com.filetransfer.util.ListingResponseCache;
+import com.filetransfer.util.QuotaLedger;
+import com.filetransfer.util.TransferStats;
+import com.filetransfer.util.ZipArchiveWriter;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.support.PropertiesLoaderUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Properties;
 import java.util.Base64;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import org.springframework.http.ContentDisposition;
 import java.io.EOFException;
 import java.io.FileWriter;
 import java.util.Date;
+import java.util.concurrent.Callable;
 
 /**
  * REST Controller for file operations
@@ -48,6 +71,10 @@ public class FileController {
     
     private static final Logger logger = LoggerFactory.getLogger(FileController.class);
     
+    // 文件列表分页：未指定 limit 时的默认值和允许的最大值
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    
     @Autowired
     private FileService fileService;
     
@@ -57,6 +84,30 @@ public class FileController {
     // 修改为手动创建
     private JwtUtil jwtUtil;
     
+    // 不小于该字节数的下载交给容器 sendfile（零拷贝），负数表示始终由请求线程复制
+    private long sendfileThreshold = 1048576;
+    
+    // 下载内容需要复制时使用非阻塞异步输出，慢速客户端不占用容器线程；timeout 为 0 表示不限制传输时间
+    private boolean transferAsync = true;
+    private long transferAsyncTimeout = 0;
+    
+    // 上传请求体在 transferExecutor 线程池中读取，超时（毫秒）为 0 表示不限制
+    private long uploadTimeout = 0;
+    
+    // 一次打包下载允许的最大文件数
+    private int archiveMaxFiles = 1000;
+    
+    private final TransferStats transferStats = new TransferStats();
+    
+    // 已序列化的文件列表响应，按用户和列表版本缓存
+    private ListingResponseCache listingCache;
+    
+    // 与 MVC 消息转换器使用同一个 ObjectMapper，缓存的响应与正常序列化的格式一致
+    @Autowired(required = false)
+    private RequestMappingHandlerAdapter handlerAdapter;
+    
+    private ObjectMapper responseMapper;
+    
     @PostConstruct
     public void init() {
         // 手动创建JwtUtil实例
@@ -75,6 +126,15 @@ public class FileController {
             // 初始化JwtUtil
             jwtUtil.init();
             
+            sendfileThreshold = Long.parseLong(props.getProperty("file.download.sendfile.threshold", "1048576"));
+            transferAsync = Boolean.parseBoolean(props.getProperty("file.transfer.async", "true"));
+            transferAsyncTimeout = Long.parseLong(props.getProperty("file.transfer.async.timeout", "0"));
+            uploadTimeout = Long.parseLong(props.getProperty("file.transfer.upload.timeout", "0"));
+            archiveMaxFiles = Integer.parseInt(props.getProperty("file.archive.max.files", "1000"));
+            listingCache = new ListingResponseCache(
+                    Long.parseLong(props.getProperty("file.listing.cache.capacity", "67108864")),
+                    Integer.parseInt(props.getProperty("file.listing.cache.max.variants", "8")));
+            
             logger.info("JwtUtil initialized in FileController");
         } catch (Exception e) {
             logger.warn("Failed to load application.properties in FileController, using default values", e);
@@ -83,6 +143,10 @@ public class FileController {
             jwtUtil.setExpiration(86400000L); // 24小时
             jwtUtil.init();
         }
+        if (listingCache == null) {
+            listingCache = new ListingResponseCache(67108864L, 8);
+        }
+        responseMapper = findResponseMapper();
     }
     
     /**
@@ -142,6 +206,8 @@ public class FileController {
             logger.warn("文件上传失败: {}", e.getMessage());
             return ResponseEntity.badRequest()
                     .body(ApiResponse.error(e.getMessage()));
+        } catch (QuotaLedger.QuotaExceededException e) {
+            return quotaExceeded(e);
         } catch (Exception e) {
             logger.error("文件上传失败(未预期的错误): {}", e.getMessage(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -149,6 +215,189 @@ public class FileController {
         }
     }
     
+    /**
+     * Upload a file as the raw request body (Content-Type: application/octet-stream)
+     *
+     * 文件名通过 X-File-Name 请求头（URL 编码）或 fileName 查询参数传递。
+     * 请求体直接写入用户文件目录中的暂存文件，不经过 multipart 临时文件。
+     * 请求体在 transferExecutor 线程池中读取，容器线程立即返回
+     */
+    @PutMapping("/upload")
+    public WebAsyncTask<ResponseEntity<ApiResponse>> uploadRawFile(
+            @RequestHeader(value = "X-File-Name", required = false) String fileNameHeader,
+            @RequestParam(value = "fileName", required = false) String fileNameParam,
+            HttpServletRequest request) {
+        return uploadTask(() -> doUploadRawFile(fileNameHeader, fileNameParam, request));
+    }
+    
+    private ResponseEntity<ApiResponse> doUploadRawFile(String fileNameHeader, String fileNameParam,
+                                                        HttpServletRequest request) {
+        try {
+            String userId = getUserIdFromRequest(request);
+            if (userId == null) {
+                return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                        .body(ApiResponse.error("Unauthorized"));
+            }
+            
+            String fileName = fileNameHeader != null
+                    ? URLDecoder.decode(fileNameHeader, StandardCharsets.UTF_8.name()) : fileNameParam;
+            logger.info("收到流式上传请求: 文件名={}, 大小={}, 内容类型={}",
+                    fileName, request.getContentLengthLong(), request.getContentType());
+            
+            FileInfo fileInfo = fileService.uploadFile(request.getInputStream(), fileName,
+                    request.getContentType(), userId);
+            return ResponseEntity.ok(ApiResponse.success("File uploaded successfully", fileInfo));
+        } catch (IOException e) {
+            logger.error("流式上传失败: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(ApiResponse.error("Failed to upload file: " + e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            logger.warn("流式上传失败: {}", e.getMessage());
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error(e.getMessage()));
+        } catch (QuotaLedger.QuotaExceededException e) {
+            return quotaExceeded(e);
+        }
+    }
+    
+    /**
+     * Upload a file from a multipart/form-data request without buffering it in a temp file
+     *
+     * 使用 commons-fileupload 的流式 API 逐个读取表单项，文件内容直接写入用户文件目录。
+     * multipartResolver 配置为延迟解析，只要不访问请求参数，请求体就不会被它读取，
+     * 因此这里只能通过 Authorization 头认证。请求体在 transferExecutor 线程池中读取
+     */
+    @PostMapping("/upload/stream")
+    public WebAsyncTask<ResponseEntity<ApiResponse>> uploadStreamingFile(HttpServletRequest request) {
+        return uploadTask(() -> doUploadStreamingFile(request));
+    }
+    
+    private ResponseEntity<ApiResponse> doUploadStreamingFile(HttpServletRequest request) {
+        try {
+            String userId = getUserIdFromRequest(request);
+            if (userId == null) {
+                return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                        .body(ApiResponse.error("Unauthorized"));
+            }
+            
+            if (!ServletFileUpload.isMultipartContent(request)) {
+                return ResponseEntity.badRequest()
+                        .body(ApiResponse.error("Expected a multipart/form-data request"));
+            }
+            
+            ServletFileUpload upload = new ServletFileUpload();
+            upload.setHeaderEncoding(StandardCharsets.UTF_8.name());
+            FileItemIterator items = upload.getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField()) {
+                    continue;
+                }
+                
+                logger.info("收到流式上传请求: 文件名={}, 内容类型={}", item.getName(), item.getContentType());
+                FileInfo fileInfo;
+                try (InputStream in = item.openStream()) {
+                    fileInfo = fileService.uploadFile(in, FilenameUtils.getName(item.getName()),
+                            item.getContentType(), userId);
+                }
+                // 只接收第一个文件，与 /upload 一致
+                return ResponseEntity.ok(ApiResponse.success("File uploaded successfully", fileInfo));
+            }
+            
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("No file in request"));
+        } catch (FileUploadException | IOException e) {
+            logger.error("流式上传失败: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(ApiResponse.error("Failed to upload file: " + e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            logger.warn("流式上传失败: {}", e.getMessage());
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error(e.getMessage()));
+        } catch (QuotaLedger.QuotaExceededException e) {
+            return quotaExceeded(e);
+        }
+    }
+    
+    /**
+     * 超出存储配额时返回 413
+     */
+    private ResponseEntity<ApiResponse> quotaExceeded(QuotaLedger.QuotaExceededException e) {
+        logger.warn("上传被拒绝: {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                .body(ApiResponse.error(e.getMessage()));
+    }
+    
+    /**
+     * 在有界的上传线程池中执行，超时返回 408
+     */
+    private WebAsyncTask<ResponseEntity<ApiResponse>> uploadTask(Callable<ResponseEntity<ApiResponse>> upload) {
+        WebAsyncTask<ResponseEntity<ApiResponse>> task = new WebAsyncTask<>(uploadTimeout, upload);
+        task.onTimeout(() -> ResponseEntity.status(HttpStatus.REQUEST_TIMEOUT)
+                .body(ApiResponse.error("Upload timed out")));
+        return task;
+    }
+    
+    /**
+     * Check whether identical content is already stored before uploading it
+     *
+     * 客户端先计算文件的 SHA-256 并连同大小提交；使用 CAS 存储布局且内容已存在时，
+     * 直接为用户创建文件记录（秒传），不需要再上传数据。
+     */
+    @PostMapping("/upload/check")
+    public ResponseEntity<ApiResponse> checkUpload(
+            @RequestParam("sha256") String sha256,
+            @RequestParam("size") long size,
+            @RequestParam(value = "fileName", required = false) String fileName,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            HttpServletRequest request) {
+        
+        String userId = getUserIdFromRequest(request);
+        if (userId == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .body(ApiResponse.error("Unauthorized"));
+        }
+        
+        try {
+            FileInfo fileInfo = fileService.uploadExistingContent(sha256, size, fileName, contentType, userId);
+            Map<String, Object> result = new HashMap<>();
+            result.put("exists", fileInfo != null);
+            if (fileInfo == null) {
+                return ResponseEntity.ok(ApiResponse.success("Content not found, upload required", result));
+            }
+            result.put("file", fileInfo);
+            return ResponseEntity.ok(ApiResponse.success("File uploaded successfully", result));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error(e.getMessage()));
+        } catch (QuotaLedger.QuotaExceededException e) {
+            return quotaExceeded(e);
+        }
+    }
+
+    /**
+     * Storage engine statistics (admin only)
+     *
+     * 包括分块存储的去重率（写入的逻辑字节 / 新保存的字节）、按 CPU 时间计算的每核写入吞吐，
+     * 以及 sendfile 和线程复制两种下载方式每 GB 消耗的请求线程 CPU 时间
+     */
+    @GetMapping("/storage/stats")
+    public ResponseEntity<ApiResponse> getStorageStats(HttpServletRequest request) {
+        String userId = getUserIdFromRequest(request);
+        if (userId == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .body(ApiResponse.error("Unauthorized"));
+        }
+        if (!isAdmin(userId)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(ApiResponse.error("Access denied"));
+        }
+        Map<String, Object> stats = new LinkedHashMap<>(fileService.getStorageStats());
+        stats.put("downloads", transferStats.snapshot());
+        stats.put("listingCache", listingCache.getStats());
+        return ResponseEntity.ok(ApiResponse.success("Storage statistics", stats));
+    }
+
     /**
      * Upload a file in chunks
      */
@@ -158,6 +407,8 @@ public class FileController {
             @RequestParam("chunk") MultipartFile chunk,
             @RequestParam("chunkNumber") int chunkNumber,
             @RequestParam("totalChunks") int totalChunks,
+            @RequestParam(value = "totalSize", required = false) Long totalSize,
+            @RequestParam(value = "chunkSize", required = false) Long chunkSize,
             HttpServletRequest request) {
         
         try {
@@ -172,7 +423,11 @@ public class FileController {
                         .body(ApiResponse.error("Chunk is empty"));
             }
             
-            boolean isComplete = fileService.uploadChunk(fileId, chunk, chunkNumber, totalChunks, userId);
+            // 声明了总大小时直接写入预分配的目标文件，否则沿用分块文件 + 合并的方式
+            boolean isComplete = totalSize != null
+                    ? fileService.uploadChunk(fileId, chunk, chunkNumber, totalChunks,
+                            totalSize, chunkSize != null ? chunkSize : 0, userId)
+                    : fileService.uploadChunk(fileId, chunk, chunkNumber, totalChunks, userId);
             
             if (isComplete) {
                 FileInfo fileInfo = fileService.getFileInfo(fileId);
@@ -188,9 +443,51 @@ public class FileController {
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest()
                     .body(ApiResponse.error(e.getMessage()));
+        } catch (IllegalStateException e) {
+            // 上传已经完成，重传的分块不再处理
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(ApiResponse.error(e.getMessage()));
+        } catch (QuotaLedger.QuotaExceededException e) {
+            return quotaExceeded(e);
         }
     }
     
+    /**
+     * Get the state of an in-progress chunked upload, so that a client can resume it
+     */
+    @GetMapping("/upload/chunk/{fileId}/status")
+    public ResponseEntity<ApiResponse> getChunkUploadStatus(
+            @PathVariable("fileId") String fileId,
+            HttpServletRequest request) {
+        
+        String userId = getUserIdFromRequest(request);
+        if (userId == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .body(ApiResponse.error("Unauthorized"));
+        }
+        
+        Map<String, Object> status = new HashMap<>();
+        status.put("fileId", fileId);
+        
+        com.filetransfer.model.UploadSession session = fileService.getUploadSession(fileId, userId);
+        if (session == null) {
+            // 会话不存在：可能已经完成
+            FileInfo fileInfo = fileService.getFileInfo(fileId);
+            if (fileInfo == null || !userId.equals(fileInfo.getUploadedBy())) {
+                return ResponseEntity.notFound().build();
+            }
+            status.put("complete", true);
+            return ResponseEntity.ok(ApiResponse.success("Upload complete", status));
+        }
+        
+        status.put("complete", false);
+        status.put("totalChunks", session.getTotalChunks());
+        status.put("receivedChunks", session.getReceivedChunkCount());
+        status.put("missingChunks", session.getMissingChunks());
+        status.put("expiryDate", session.getExpiryDate());
+        return ResponseEntity.ok(ApiResponse.success("Upload in progress", status));
+    }
+    
     /**
      * Download a file
      */
@@ -198,7 +495,8 @@ public class FileController {
     public ResponseEntity<?> downloadFile(
             @PathVariable("fileId") String fileId,
             @RequestParam(value = "token", required = false) String tokenParam,
-            HttpServletRequest request) {
+            HttpServletRequest request,
+            HttpServletResponse response) {
         
         try {
             // 从请求中获取用户ID，同时支持header和query参数中的token
@@ -235,11 +533,8 @@ public class FileController {
                         .body(ApiResponse.error("Access denied"));
             }
             
-            File file = fileService.downloadFile(fileId);
-            InputStream inputStream = new FileInputStream(file);
-            
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(fileInfo.getContentType()));
+            // 记录下载次数；断点续传的后续请求不重复计数
+            countDownload(fileId, request);
             
             // 正确处理中文文件名
             String filename = fileInfo.getOriginalFileName();
@@ -287,12 +582,10 @@ public class FileController {
                 filename = URLEncoder.encode(filename, "UTF-8");
             }
             
-            headers.setContentDisposition(ContentDisposition.attachment().filename(filename).build());
-            headers.setContentLength(file.length());
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                    ContentDisposition.attachment().filename(filename).build().toString());
             
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(new InputStreamResource(inputStream));
+            return writeFileContent(fileInfo, request, response);
         } catch (IOException e) {
             logger.error("Failed to download file", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -300,6 +593,115 @@ public class FileController {
         }
     }
     
+    /**
+     * 把多个文件打包成 ZIP 下载
+     * 请求体 {"fileIds": [...], "name": "archive"}；先检查所有文件的权限，全部可访问才开始输出，
+     * 内容边读边写到响应中，不生成临时文件
+     */
+    @PostMapping("/archive")
+    public ResponseEntity<?> downloadArchive(
+            @RequestBody Map<String, Object> body,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        
+        String userId = getUserIdFromRequest(request);
+        if (userId == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .body(ApiResponse.error("Unauthorized"));
+        }
+        
+        Object ids = body != null ? body.get("fileIds") : null;
+        if (!(ids instanceof List) || ((List<?>) ids).isEmpty()) {
+            return ResponseEntity.badRequest().body(ApiResponse.error("fileIds is required"));
+        }
+        // 重复的ID只打包一次，保持请求中的顺序
+        Map<String, FileInfo> files = new LinkedHashMap<>();
+        for (Object id : (List<?>) ids) {
+            files.put(String.valueOf(id), null);
+        }
+        if (files.size() > archiveMaxFiles) {
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Too many files, at most " + archiveMaxFiles + " per archive"));
+        }
+        
+        List<String> missing = new ArrayList<>();
+        List<String> denied = new ArrayList<>();
+        for (Map.Entry<String, FileInfo> entry : files.entrySet()) {
+            FileInfo fileInfo = fileService.getFileInfo(entry.getKey());
+            if (fileInfo == null) {
+                missing.add(entry.getKey());
+            } else if (!fileInfo.getUploadedBy().equals(userId) && !fileInfo.isPublic()) {
+                denied.add(entry.getKey());
+            }
+            entry.setValue(fileInfo);
+        }
+        if (!missing.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(ApiResponse.error("Files not found: " + String.join(",", missing)));
+        }
+        if (!denied.isEmpty()) {
+            logger.warn("打包下载被拒绝，用户 {} 无权访问文件: {}", userId, denied);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(ApiResponse.error("Access denied: " + String.join(",", denied)));
+        }
+        
+        String name = body.get("name") instanceof String ? ((String) body.get("name")).trim() : "";
+        if (name.isEmpty()) {
+            name = "files";
+        }
+        if (!name.toLowerCase().endsWith(".zip")) {
+            name += ".zip";
+        }
+        
+        // 总大小事先未知，使用分块传输编码
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                ContentDisposition.attachment().filename(name, StandardCharsets.UTF_8).build().toString());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+        
+        long start = System.nanoTime();
+        long cpuStart = TransferStats.cpuTime();
+        ZipArchiveWriter archive = null;
+        try {
+            OutputStream out = response.getOutputStream();
+            archive = new ZipArchiveWriter(out);
+            for (FileInfo fileInfo : files.values()) {
+                String fileId = fileInfo.getId();
+                long lastModified = fileInfo.getUploadDate() != null ? fileInfo.getUploadDate().getTime() : 0;
+                archive.addEntry(fileInfo.getOriginalFileName(), fileInfo.getContentType(), fileInfo.getSize(),
+                        lastModified, () -> fileService.getFileAsStream(fileId));
+            }
+            archive.finish();
+            // 压缩包完整写出后再统计下载次数；统计失败不影响已经发送的内容
+            try {
+                fileService.recordDownloads(files.keySet());
+            } catch (RuntimeException e) {
+                logger.warn("更新打包下载的下载次数失败: {}", e.getMessage());
+            }
+            transferStats.recordCopy(archive.getContentBytes(), TransferStats.cpuTime() - cpuStart);
+            logger.info("打包下载完成: userId={}, 文件数={}, 原样保存={}, 内容 {} 字节, 耗时 {} ms",
+                    userId, archive.getEntries(), archive.getStoredEntries(), archive.getContentBytes(),
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            if (!response.isCommitted()) {
+                logger.error("打包下载失败", e);
+                response.reset();
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(ApiResponse.error("Failed to create archive: " + e.getMessage()));
+            }
+            // 已经开始输出后无法再返回错误：重新抛出，由容器中断连接而不是正常结束分块传输，
+            // 客户端能发现下载失败，不会把缺少中央目录的压缩包当作完整的
+            logger.warn("打包下载中断: userId={}, 已写入 {} 个文件, {}", userId,
+                    archive != null ? archive.getEntries() : 0, e.getMessage());
+            throw e;
+        } finally {
+            if (archive != null) {
+                archive.close();
+            }
+        }
+        return null;
+    }
+    
     /**
      * Get file information
      */
@@ -565,11 +967,18 @@ public class FileController {
     
     /**
      * 获取用户文件列表
+     * 指定 limit 或 cursor 时返回分页对象 {items, nextCursor, hasMore, totalCount}，否则返回完整数组
      */
     @GetMapping("")
     public ResponseEntity<ApiResponse> getUserFiles(
             HttpServletRequest request,
-            @RequestParam(value = "t", required = false) Long timestamp) {
+            @RequestParam(value = "t", required = false) Long timestamp,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "order", required = false) String order,
+            @RequestParam(value = "fields", required = false) String fields,
+            HttpServletResponse response) {
         try {
         String userId = getUserIdFromRequest(request);
         if (userId == null) {
@@ -578,38 +987,36 @@ public class FileController {
                     .body(ApiResponse.error("Unauthorized"));
         }
             
-            logger.info("获取用户文件列表请求: userId={}, timestamp={}", userId, timestamp);
+            logger.debug("获取用户文件列表请求: userId={}, timestamp={}", userId, timestamp);
             
-            // 强制重新加载文件信息
-            if (timestamp != null) {
-                logger.info("强制重新加载文件信息");
+            // 强制重新加载文件信息只对管理员开放；普通用户的 t 参数仅用于绕过浏览器缓存
+            if (timestamp != null && isAdmin(userId)) {
+                logger.info("管理员强制重新加载文件信息: userId={}", userId);
                 fileService.reloadFileInfo();
             }
-        
-        List<FileInfo> files = fileService.getUserFiles(userId);
-        
-            // 检查文件是否实际存在
-            List<FileInfo> existingFiles = new ArrayList<>();
-            for (FileInfo file : files) {
-                File physicalFile = new File(file.getPath());
-                boolean exists = physicalFile.exists() && physicalFile.isFile();
-                logger.debug("文件 {} 存在: {}", file.getPath(), exists);
-                if (exists) {
-                    existingFiles.add(file);
-                } else {
-                    logger.warn("文件不存在: {}", file.getPath());
-                }
-            }
             
-            // 如果有文件不存在，更新文件信息
-            if (existingFiles.size() != files.size()) {
-                logger.warn("发现 {} 个文件不存在，更新文件信息", files.size() - existingFiles.size());
-                fileService.updateFileList(existingFiles);
-                files = existingFiles;
+            // 先取版本再取列表：并发修改时返回的 ETag 只会偏旧，下次请求会拿到新内容
+            String etag = "\"" + fileService.getUserFilesVersion(userId) + "\"";
+            String matchedEtag = matchingEtag(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag);
+            if (matchedEtag != null) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(matchedEtag)
+                        .cacheControl(CacheControl.noCache().cachePrivate())
+                        .build();
             }
+        
+            // 相同版本、相同参数的列表直接输出缓存的字节；服务层已根据缓存的存在状态过滤，丢失的文件记录由后台任务清理
+            String variant = limit + "|" + cursor + "|" + sort + "|" + order + "|" + fields;
+            ListingResponseCache.Body body = listingCache.get(userId, etag, variant, () -> {
+                Object files = buildFileListing(userId, null, limit, cursor, sort, order, fields);
+                return responseMapper.writeValueAsBytes(ApiResponse.success("Files retrieved successfully", files));
+            });
             
-            logger.info("返回用户文件列表: userId={}, 文件数量={}", userId, files.size());
-            return ResponseEntity.ok(ApiResponse.success("Files retrieved successfully", files));
+            logger.debug("返回用户文件列表: userId={}", userId);
+            writeListing(userId, body, etag, request, response);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
         } catch (Exception e) {
             logger.error("获取文件列表失败: {}", e.getMessage(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -617,6 +1024,48 @@ public class FileController {
         }
     }
     
+    /**
+     * 输出缓存的列表响应；客户端接受 gzip 时输出预先压缩的内容
+     */
+    private void writeListing(String userId, ListingResponseCache.Body body, String etag,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        byte[] gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")
+                ? listingCache.gzip(userId, body) : null;
+        byte[] content = gzip != null ? gzip : body.getJson();
+        
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json;charset=UTF-8");
+        // 压缩和未压缩的内容字节不同，各自使用不同的强 ETag
+        response.setHeader(HttpHeaders.ETAG, gzip != null ? gzipEtag(etag) : etag);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().cachePrivate().getHeaderValue());
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip != null) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+        response.flushBuffer();
+        listingCache.recordServed(content.length, gzip != null);
+    }
+    
+    /**
+     * MVC 配置的 JSON 转换器使用的 ObjectMapper；找不到时按 spring-mvc.xml 的配置创建
+     */
+    private ObjectMapper findResponseMapper() {
+        if (handlerAdapter != null) {
+            for (HttpMessageConverter<?> converter : handlerAdapter.getMessageConverters()) {
+                if (converter instanceof MappingJackson2HttpMessageConverter) {
+                    return ((MappingJackson2HttpMessageConverter) converter).getObjectMapper();
+                }
+            }
+        }
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        mapper.setDateFormat(new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+        return mapper;
+    }
+    
     /**
      * Delete a file
      */
@@ -685,6 +1134,11 @@ public class FileController {
     @GetMapping("/search")
     public ResponseEntity<ApiResponse> searchFiles(
             @RequestParam("query") String query,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "order", required = false) String order,
+            @RequestParam(value = "fields", required = false) String fields,
             HttpServletRequest request) {
         
         String userId = getUserIdFromRequest(request);
@@ -693,9 +1147,46 @@ public class FileController {
                     .body(ApiResponse.error("Unauthorized"));
         }
         
-        List<FileInfo> files = fileService.searchFiles(query, userId);
+        try {
+            Object files = buildFileListing(userId, query, limit, cursor, sort, order, fields);
+            return ResponseEntity.ok(ApiResponse.success("Search results", files));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
+        }
+    }
+    
+    /**
+     * 构建文件列表数据；未指定 limit/cursor 时保持原来的完整数组格式
+     *
+     * @throws IllegalArgumentException 参数无效
+     */
+    @SuppressWarnings("unchecked")
+    private Object buildFileListing(String userId, String query, Integer limit, String cursor,
+                                    String sort, String order, String fields) {
+        List<String> projection = FileInfoProjection.parseFields(fields);
+        
+        boolean descending = "desc".equalsIgnoreCase(order);
+        if (order != null && !order.isEmpty() && !descending && !"asc".equalsIgnoreCase(order)) {
+            throw new IllegalArgumentException("Unsupported order: " + order);
+        }
+        
+        boolean paged = limit != null || (cursor != null && !cursor.isEmpty());
+        int pageSize = 0;
+        if (paged) {
+            pageSize = limit != null ? limit : DEFAULT_PAGE_SIZE;
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("limit must be positive");
+            }
+            pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+        }
         
-        return ResponseEntity.ok(ApiResponse.success("Search results", files));
+        FilePage page = fileService.getUserFilesPage(userId, query, sort, descending, cursor, pageSize);
+        List<?> items = FileInfoProjection.project((List<FileInfo>) page.getItems(), projection);
+        if (!paged) {
+            return items;
+        }
+        page.setItems(items);
+        return page;
     }
     
     /**
@@ -965,7 +1456,8 @@ public class FileController {
     public ResponseEntity<?> directPreviewFile(
             @PathVariable("fileId") String fileId,
             @RequestParam(value = "token", required = false) String tokenParam,
-            HttpServletRequest request) {
+            HttpServletRequest request,
+            HttpServletResponse response) {
         
         // 从请求中获取用户ID，同时支持header和query参数中的token
         String token = tokenParam;
@@ -1002,25 +1494,15 @@ public class FileController {
                         .body(ApiResponse.error("Access denied"));
             }
             
-            // 获取文件
-            File file = fileService.downloadFile(fileId);
-            InputStream inputStream = new FileInputStream(file);
+            // 记录访问次数；播放器拖动进度产生的范围请求不重复计数
+            countDownload(fileId, request);
             
             // 设置响应头
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(fileInfo.getContentType()));
-            headers.setContentDisposition(ContentDisposition.inline().filename(fileInfo.getFileName()).build());
-            headers.setContentLength(file.length());
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                    ContentDisposition.inline().filename(fileInfo.getFileName()).build().toString());
+            allowEmbedding(response);
             
-            // 添加CORS头，允许在iframe中加载
-            headers.add("Access-Control-Allow-Origin", "*");
-            headers.add("Access-Control-Allow-Methods", "GET, OPTIONS");
-            headers.add("Access-Control-Allow-Headers", "Content-Type");
-            headers.add("X-Frame-Options", "ALLOWALL");
-            
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(new InputStreamResource(inputStream));
+            return writeFileContent(fileInfo, request, response);
         } catch (IOException e) {
             logger.error("Failed to preview file", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -1035,7 +1517,8 @@ public class FileController {
     public ResponseEntity<?> viewFile(
             @PathVariable("fileId") String fileId,
             @RequestParam(value = "token", required = false) String tokenParam,
-            HttpServletRequest request) {
+            HttpServletRequest request,
+            HttpServletResponse response) {
         
         logger.info("收到文件直接访问请求: fileId={}", fileId);
         
@@ -1084,24 +1567,14 @@ public class FileController {
                 return ResponseEntity.notFound().build();
             }
             
-            InputStream inputStream = new FileInputStream(file);
-            
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(fileInfo.getContentType()));
-            headers.setContentDisposition(ContentDisposition.inline().filename(fileInfo.getFileName()).build());
-            headers.setContentLength(file.length());
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                    ContentDisposition.inline().filename(fileInfo.getFileName()).build().toString());
+            allowEmbedding(response);
             
-            // 添加CORS头，允许在iframe中加载
-            headers.add("Access-Control-Allow-Origin", "*");
-            headers.add("Access-Control-Allow-Methods", "GET, OPTIONS");
-            headers.add("Access-Control-Allow-Headers", "Content-Type");
-            headers.add("X-Frame-Options", "ALLOWALL");
+            logger.info("文件访问成功: fileId={}, 文件名={}, Range={}", fileId, fileInfo.getFileName(),
+                    request.getHeader("Range"));
             
-            logger.info("文件访问成功: fileId={}, 文件名={}", fileId, fileInfo.getFileName());
-            
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(new InputStreamResource(inputStream));
+            return writeFileContent(fileInfo, request, response);
         } catch (IOException e) {
             logger.error("文件访问失败: {}", e.getMessage(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -1169,8 +1642,8 @@ public class FileController {
             }
             
             // 获取文件
-            File file = fileService.downloadFile(fileId);
-            logger.info("成功获取文件: {}, 大小: {} 字节", fileInfo.getFileName(), file.length());
+            fileService.downloadFile(fileId);
+            logger.info("成功获取文件: {}, 大小: {} 字节", fileInfo.getFileName(), fileInfo.getSize());
             
             // 读取文件内容
             String content;
@@ -1186,15 +1659,15 @@ public class FileController {
                     contentType.endsWith("+json"))) {
                 
                 // 读取文件内容，最多读取前1MB
-                byte[] bytes = new byte[Math.min((int)file.length(), 1024 * 1024)];
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    fis.read(bytes);
+                byte[] bytes = new byte[(int) Math.min(fileInfo.getSize(), 1024 * 1024)];
+                try (InputStream in = fileService.getFileAsStream(fileId)) {
+                    IOUtils.read(in, bytes);
                 }
                 content = new String(bytes, StandardCharsets.UTF_8);
                 logger.info("成功读取文本文件内容，长度: {} 字符", content.length());
                 
                 // 如果文件大于1MB，添加提示
-                if (file.length() > 1024 * 1024) {
+                if (fileInfo.getSize() > 1024 * 1024) {
                     content += "\n\n... (文件过大，仅显示前1MB内容) ...";
                 }
             } else {
@@ -1326,6 +1799,107 @@ public class FileController {
         }
     }
     
+    /**
+     * 输出文件内容，支持 Range / If-Range，按位置读取所需部分；响应已直接写出，返回 null
+     */
+    private ResponseEntity<?> writeFileContent(FileInfo fileInfo, HttpServletRequest request,
+                                               HttpServletResponse response) throws IOException {
+        String fileId = fileInfo.getId();
+        // 小文件优先从热点缓存读取。HEAD 请求不需要内容，范围请求只读取所需部分，
+        // 达到 sendfile 阈值的文件由内核直接发送，这些请求都不经过缓存
+        boolean useCache = !"HEAD".equalsIgnoreCase(request.getMethod()) && request.getHeader("Range") == null
+                && (sendfileThreshold < 0 || fileInfo.getSize() < sendfileThreshold);
+        ByteBuffer cached = useCache ? fileService.getCachedContent(fileId) : null;
+        ByteRangeWriter.ContentSource source;
+        if (cached != null) {
+            source = ByteRangeWriter.bufferSource(cached);
+        } else {
+            File contentFile = fileService.getContentFile(fileId);
+            source = contentFile != null
+                    ? ByteRangeWriter.fileSource(contentFile)
+                    : ByteRangeWriter.streamSource(() -> fileService.getFileAsStream(fileId));
+        }
+        
+        // 校验和作为强校验 ETag，客户端续传时用 If-Range 确认内容没有变化
+        String etag = fileInfo.getChecksum() != null ? "\"" + fileInfo.getChecksum() + "\"" : null;
+        long lastModified = fileInfo.getUploadDate() != null ? fileInfo.getUploadDate().getTime() : 0;
+        try {
+            new ByteRangeWriter(fileInfo.getSize(), fileInfo.getContentType(), etag, lastModified)
+                    .sendfileThreshold(sendfileThreshold)
+                    .async(transferAsync, transferAsyncTimeout)
+                    .stats(transferStats)
+                    .write(request, response, source);
+        } catch (IOException e) {
+            if (!response.isCommitted()) {
+                throw e;
+            }
+            // 拖动进度条、暂停下载时客户端会主动断开
+            logger.debug("文件传输中断: fileId={}, {}", fileId, e.getMessage());
+        }
+        return null;
+    }
+    
+    /**
+     * 记录下载次数；HEAD 请求和不从开头开始的范围请求（续传、拖动进度）不计数
+     */
+    private void countDownload(String fileId, HttpServletRequest request) throws IOException {
+        String range = request.getHeader("Range");
+        if ("HEAD".equalsIgnoreCase(request.getMethod())
+                || range != null && !range.replace(" ", "").startsWith("bytes=0-")) {
+            return;
+        }
+        fileService.downloadFile(fileId);
+    }
+    
+    /**
+     * 允许在iframe中加载
+     */
+    private void allowEmbedding(HttpServletResponse response) {
+        response.setHeader("Access-Control-Allow-Origin", "*");
+        response.setHeader("Access-Control-Allow-Methods", "GET, OPTIONS");
+        response.setHeader("Access-Control-Allow-Headers", "Content-Type, Range, If-Range");
+        response.setHeader("X-Frame-Options", "ALLOWALL");
+    }
+    
+    /**
+     * 判断用户是否为管理员
+     */
+    private boolean isAdmin(String userId) {
+        User user = userService.getUserById(userId);
+        return user != null && "ADMIN".equals(user.getRole());
+    }
+    
+    /**
+     * 返回 If-None-Match 中与当前版本匹配的 ETag（未压缩或 gzip 表示），都不匹配时返回 null
+     * （支持 *、多个值和弱校验前缀 W/）
+     */
+    private String matchingEtag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || ifNoneMatch.isEmpty()) {
+            return null;
+        }
+        String gzipEtag = gzipEtag(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || etag.equals(candidate)) {
+                return etag;
+            }
+            if (gzipEtag.equals(candidate)) {
+                return gzipEtag;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * gzip 表示的 ETag："版本" 变为 "版本-gzip"
+     */
+    private static String gzipEtag(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+    
     /**
      * Helper method to extract user ID from request
      */
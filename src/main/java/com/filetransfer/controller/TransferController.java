@@ -4,6 +4,7 @@ import com.filetransfer.model.ApiResponse;
 import com.filetransfer.model.FileInfo;
 import com.filetransfer.model.TransferRequest;
 import com.filetransfer.service.FileService;
+import com.filetransfer.service.PersistenceWriter;
 import com.filetransfer.service.TransferService;
 import com.filetransfer.util.JwtUtil;
 import org.slf4j.Logger;
@@ -102,6 +103,10 @@ public class TransferController {
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest()
                     .body(ApiResponse.error(e.getMessage()));
+        } catch (PersistenceWriter.DurabilityException e) {
+            logger.error("Transfer request not created: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(ApiResponse.error("Transfer request could not be saved, please try again"));
         }
     }
     
@@ -0,0 +1,321 @@
+package com.filetransfer.controller;
+
+import com.filetransfer.model.FileInfo;
+import com.filetransfer.model.UploadSession;
+import com.filetransfer.service.FileService;
+import com.filetransfer.util.JwtUtil;
+import com.filetransfer.util.QuotaLedger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+
+/**
+ * tus 1.0 可续传上传（core + creation、termination、expiration 扩展）
+ *
+ * 客户端 POST 创建上传并得到 Location，随后用 PATCH 按偏移量追加数据；
+ * 连接中断后用 HEAD 查询服务器已持久化的偏移量，从该位置继续。
+ * 上传状态由 UploadSessionService 持久化，服务重启后仍可继续。
+ */
+@RestController
+@RequestMapping("/api/uploads")
+public class TusUploadController {
+
+    private static final Logger logger = LoggerFactory.getLogger(TusUploadController.class);
+
+    public static final String TUS_VERSION = "1.0.0";
+    public static final String TUS_EXTENSIONS = "creation,termination,expiration";
+    private static final String OFFSET_CONTENT_TYPE = "application/offset+octet-stream";
+
+    // 单个上传允许的最大 Upload-Length（字节），同时在 OPTIONS 响应的 Tus-Max-Size 中公布
+    public static final String MAX_SIZE_PROPERTY = "tus.max.size";
+    public static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+
+    @Autowired
+    private FileService fileService;
+
+    // 修改为手动创建
+    private JwtUtil jwtUtil;
+
+    // PATCH 请求体的读取超时（毫秒），0 表示不限制
+    private long uploadTimeout = 0;
+
+    // 小于等于 0 表示不限制
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    @PostConstruct
+    public void init() {
+        // 手动创建JwtUtil实例
+        jwtUtil = new JwtUtil();
+
+        try {
+            // 尝试从application.properties加载配置
+            Properties props = PropertiesLoaderUtils.loadProperties(new ClassPathResource("application.properties"));
+            String secret = props.getProperty("jwt.secret", "defaultSecretKeyThatIsLongEnoughForHmacSHA256Algorithm");
+            String expirationStr = props.getProperty("jwt.expiration", "86400000");
+            long expiration = Long.parseLong(expirationStr);
+
+            jwtUtil.setSecret(secret);
+            jwtUtil.setExpiration(expiration);
+
+            // 初始化JwtUtil
+            jwtUtil.init();
+
+            uploadTimeout = Long.parseLong(props.getProperty("file.transfer.upload.timeout", "0"));
+            maxSize = Long.parseLong(props.getProperty(MAX_SIZE_PROPERTY, String.valueOf(DEFAULT_MAX_SIZE)));
+
+            logger.info("JwtUtil initialized in TusUploadController");
+        } catch (Exception e) {
+            logger.warn("Failed to load application.properties in TusUploadController, using default values", e);
+            // 使用默认值
+            jwtUtil.setSecret("defaultSecretKeyThatIsLongEnoughForHmacSHA256Algorithm");
+            jwtUtil.setExpiration(86400000L); // 24小时
+            jwtUtil.init();
+        }
+    }
+
+    /**
+     * Create an upload (tus creation extension)
+     */
+    @PostMapping
+    public ResponseEntity<Void> createUpload(
+            @RequestHeader(value = "Tus-Resumable", required = false) String tusResumable,
+            @RequestHeader(value = "Upload-Length", required = false) String uploadLength,
+            @RequestHeader(value = "Upload-Metadata", required = false) String uploadMetadata,
+            HttpServletRequest request) {
+
+        String userId = getUserIdFromRequest(request);
+        if (userId == null) {
+            return tusResponse(HttpStatus.UNAUTHORIZED).build();
+        }
+        if (!TUS_VERSION.equals(tusResumable)) {
+            return versionMismatch();
+        }
+
+        long totalSize;
+        try {
+            totalSize = Long.parseLong(uploadLength);
+        } catch (NumberFormatException e) {
+            return tusResponse(HttpStatus.BAD_REQUEST).build();
+        }
+        // 在预留配额和分配 .part 文件之前拒绝超过上限的上传
+        if (maxSize > 0 && totalSize > maxSize) {
+            logger.warn("创建 tus 上传被拒绝: Upload-Length {} 超过上限 {}", totalSize, maxSize);
+            return tusResponse(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .header("Tus-Max-Size", String.valueOf(maxSize))
+                    .build();
+        }
+
+        try {
+            Map<String, String> metadata = parseMetadata(uploadMetadata);
+            UploadSession session = fileService.createUpload(userId, totalSize,
+                    metadata.get("filename"), metadata.get("filetype"));
+            logger.info("创建 tus 上传: id={}, 用户={}, 大小={}", session.getId(), userId, totalSize);
+
+            ResponseEntity.BodyBuilder response = tusResponse(HttpStatus.CREATED)
+                    .header(HttpHeaders.LOCATION, request.getRequestURL().append('/').append(session.getId()).toString());
+            if (session.getExpiryDate() != null) {
+                response.header("Upload-Expires", httpDate(session.getExpiryDate().getTime()));
+            }
+            return response.build();
+        } catch (IllegalArgumentException e) {
+            logger.warn("创建 tus 上传失败: {}", e.getMessage());
+            return tusResponse(HttpStatus.BAD_REQUEST).build();
+        } catch (QuotaLedger.QuotaExceededException e) {
+            // 创建时按 Upload-Length 预留全部空间，之后的 PATCH 不会再超出配额
+            logger.warn("创建 tus 上传被拒绝: {}", e.getMessage());
+            return tusResponse(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        } catch (IOException e) {
+            logger.error("创建 tus 上传失败: {}", e.getMessage(), e);
+            return tusResponse(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Get the current offset of an upload
+     */
+    @RequestMapping(value = "/{uploadId}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> getUploadOffset(
+            @PathVariable("uploadId") String uploadId,
+            HttpServletRequest request) {
+
+        String userId = getUserIdFromRequest(request);
+        if (userId == null) {
+            return tusResponse(HttpStatus.UNAUTHORIZED).build();
+        }
+
+        long offset;
+        long length;
+        UploadSession session = fileService.getUploadSession(uploadId, userId);
+        if (session != null && UploadSession.MODE_TUS.equals(session.getMode())) {
+            offset = session.getOffset();
+            length = session.getTotalSize();
+        } else {
+            // 已完成的上传：会话已移除，文件已登记
+            FileInfo fileInfo = fileService.getFileInfo(uploadId);
+            if (fileInfo == null || !userId.equals(fileInfo.getUploadedBy())) {
+                return tusResponse(HttpStatus.NOT_FOUND).build();
+            }
+            offset = fileInfo.getSize();
+            length = fileInfo.getSize();
+        }
+
+        return tusResponse(HttpStatus.OK)
+                .header("Upload-Offset", String.valueOf(offset))
+                .header("Upload-Length", String.valueOf(length))
+                .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                .build();
+    }
+
+    /**
+     * Append data to an upload
+     *
+     * 请求体在 transferExecutor 线程池中读取，容器线程立即返回
+     */
+    @PatchMapping("/{uploadId}")
+    public WebAsyncTask<ResponseEntity<Void>> appendUpload(
+            @PathVariable("uploadId") String uploadId,
+            @RequestHeader(value = "Tus-Resumable", required = false) String tusResumable,
+            @RequestHeader(value = "Upload-Offset", required = false) String uploadOffset,
+            HttpServletRequest request) {
+        WebAsyncTask<ResponseEntity<Void>> task = new WebAsyncTask<>(uploadTimeout,
+                () -> doAppendUpload(uploadId, tusResumable, uploadOffset, request));
+        // 已写入的部分已持久化，客户端通过 HEAD 获取偏移量后继续
+        task.onTimeout(() -> tusResponse(HttpStatus.REQUEST_TIMEOUT).build());
+        return task;
+    }
+
+    private ResponseEntity<Void> doAppendUpload(String uploadId, String tusResumable, String uploadOffset,
+                                                HttpServletRequest request) {
+        String userId = getUserIdFromRequest(request);
+        if (userId == null) {
+            return tusResponse(HttpStatus.UNAUTHORIZED).build();
+        }
+        if (!TUS_VERSION.equals(tusResumable)) {
+            return versionMismatch();
+        }
+        if (request.getContentType() == null
+                || !request.getContentType().toLowerCase(Locale.ROOT).startsWith(OFFSET_CONTENT_TYPE)) {
+            return tusResponse(HttpStatus.UNSUPPORTED_MEDIA_TYPE).build();
+        }
+
+        long offset;
+        try {
+            offset = Long.parseLong(uploadOffset);
+        } catch (NumberFormatException e) {
+            return tusResponse(HttpStatus.BAD_REQUEST).build();
+        }
+
+        try {
+            // 请求体直接写入 .part 文件，不经过 multipart 解析
+            UploadSession session = fileService.appendUpload(uploadId, userId, offset, request.getInputStream());
+            ResponseEntity.BodyBuilder response = tusResponse(HttpStatus.NO_CONTENT)
+                    .header("Upload-Offset", String.valueOf(session.getOffset()));
+            if (!session.isComplete() && session.getExpiryDate() != null) {
+                response.header("Upload-Expires", httpDate(session.getExpiryDate().getTime()));
+            }
+            return response.build();
+        } catch (IllegalArgumentException e) {
+            return tusResponse(HttpStatus.NOT_FOUND).build();
+        } catch (IllegalStateException e) {
+            logger.warn("tus 上传偏移量不匹配: id={}, {}", uploadId, e.getMessage());
+            return tusResponse(HttpStatus.CONFLICT).build();
+        } catch (IOException e) {
+            // 已写入的部分已持久化，客户端通过 HEAD 获取偏移量后继续
+            logger.warn("tus 上传中断: id={}, {}", uploadId, e.getMessage());
+            return tusResponse(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Cancel an upload (tus termination extension)
+     */
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<Void> cancelUpload(
+            @PathVariable("uploadId") String uploadId,
+            @RequestHeader(value = "Tus-Resumable", required = false) String tusResumable,
+            HttpServletRequest request) {
+
+        String userId = getUserIdFromRequest(request);
+        if (userId == null) {
+            return tusResponse(HttpStatus.UNAUTHORIZED).build();
+        }
+        if (!TUS_VERSION.equals(tusResumable)) {
+            return versionMismatch();
+        }
+
+        if (!fileService.cancelUpload(uploadId, userId)) {
+            return tusResponse(HttpStatus.NOT_FOUND).build();
+        }
+        logger.info("取消 tus 上传: id={}, 用户={}", uploadId, userId);
+        return tusResponse(HttpStatus.NO_CONTENT).build();
+    }
+
+    private ResponseEntity.BodyBuilder tusResponse(HttpStatus status) {
+        return ResponseEntity.status(status).header("Tus-Resumable", TUS_VERSION);
+    }
+
+    private ResponseEntity<Void> versionMismatch() {
+        return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+                .header("Tus-Version", TUS_VERSION)
+                .build();
+    }
+
+    /**
+     * 解析 Upload-Metadata："key base64value,key2 base64value2"
+     */
+    private Map<String, String> parseMetadata(String header) {
+        Map<String, String> metadata = new HashMap<>();
+        if (header == null || header.trim().isEmpty()) {
+            return metadata;
+        }
+        for (String pair : header.split(",")) {
+            String[] parts = pair.trim().split(" ", 2);
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            String value = parts.length > 1
+                    ? new String(Base64.getDecoder().decode(parts[1].trim()), StandardCharsets.UTF_8) : "";
+            metadata.put(parts[0], value);
+        }
+        return metadata;
+    }
+
+    private String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(time);
+    }
+
+    /**
+     * Helper method to extract user ID from request
+     */
+    private String getUserIdFromRequest(HttpServletRequest request) {
+        // 首先检查Authorization头
+        String authHeader = request.getHeader("Authorization");
+        if (authHeader != null && authHeader.startsWith("Bearer ")) {
+            String token = authHeader.substring(7);
+            return jwtUtil.getUserIdFromToken(token);
+        }
+
+        return null;
+    }
+}
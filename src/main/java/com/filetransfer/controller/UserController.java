@@ -2,6 +2,7 @@ package com.filetransfer.controller;
 
 import com.filetransfer.model.ApiResponse;
 import com.filetransfer.model.User;
+import com.filetransfer.service.PersistenceWriter;
 import com.filetransfer.service.UserService;
 import com.filetransfer.util.JwtUtil;
 import org.slf4j.Logger;
@@ -15,7 +16,6 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -124,6 +124,10 @@ public class UserController {
             logger.error("Registration failed: {}", e.getMessage());
             return ResponseEntity.badRequest()
                     .body(ApiResponse.error(e.getMessage()));
+        } catch (PersistenceWriter.DurabilityException e) {
+            logger.error("Registration failed: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(ApiResponse.error("Registration could not be saved, please try again"));
         } catch (Exception e) {
             logger.error("Unexpected error during registration", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -146,9 +150,8 @@ public class UserController {
                     .body(ApiResponse.error("Invalid username or password"));
         }
         
-        // Update last login date
-        user.setLastLoginDate(new Date());
-        userService.updateUser(user);
+        // Update last login date（批量写入日志，不重写用户数据文件）
+        userService.recordLogin(user.getId());
         
         // Generate JWT token
         String token = jwtUtil.generateToken(user.getId());
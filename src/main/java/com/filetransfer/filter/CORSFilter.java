@@ -1,17 +1,32 @@
 package com.filetransfer.filter;
 
+import com.filetransfer.controller.TusUploadController;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Properties;
 
 /**
  * Filter for handling CORS requests
  */
 public class CORSFilter implements Filter {
     
+    // tus 服务发现时公布的 Tus-Max-Size，与 TusUploadController 读取同一配置
+    private long tusMaxSize = TusUploadController.DEFAULT_MAX_SIZE;
+    
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
+        try {
+            Properties props = PropertiesLoaderUtils.loadProperties(new ClassPathResource("application.properties"));
+            tusMaxSize = Long.parseLong(props.getProperty(TusUploadController.MAX_SIZE_PROPERTY,
+                    String.valueOf(TusUploadController.DEFAULT_MAX_SIZE)));
+        } catch (IOException | NumberFormatException e) {
+            // 使用默认值
+        }
     }
     
     @Override
@@ -22,8 +37,10 @@ public class CORSFilter implements Filter {
         HttpServletResponse response = (HttpServletResponse) res;
         
         response.setHeader("Access-Control-Allow-Origin", "*");
-        response.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        response.setHeader("Access-Control-Allow-Headers", "Origin, X-Requested-With, Content-Type, Accept, Authorization");
+        response.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, PATCH, HEAD, DELETE, OPTIONS");
+        response.setHeader("Access-Control-Allow-Headers", "Origin, X-Requested-With, Content-Type, Accept, Authorization, If-None-Match, "
+                + "Range, If-Range, Tus-Resumable, Upload-Length, Upload-Offset, Upload-Metadata");
+        response.setHeader("Access-Control-Expose-Headers", "ETag, Location, Accept-Ranges, Content-Range, Content-Length, Tus-Resumable, Tus-Max-Size, Upload-Offset, Upload-Length, Upload-Expires");
         response.setHeader("Access-Control-Max-Age", "3600");
         
         // 允许在iframe中加载内容
@@ -37,6 +54,15 @@ public class CORSFilter implements Filter {
         
         // For preflight requests
         if ("OPTIONS".equalsIgnoreCase(request.getMethod())) {
+            // tus 服务发现
+            if (request.getRequestURI().contains("/api/uploads")) {
+                response.setHeader("Tus-Resumable", TusUploadController.TUS_VERSION);
+                response.setHeader("Tus-Version", TusUploadController.TUS_VERSION);
+                response.setHeader("Tus-Extension", TusUploadController.TUS_EXTENSIONS);
+                if (tusMaxSize > 0) {
+                    response.setHeader("Tus-Max-Size", String.valueOf(tusMaxSize));
+                }
+            }
             response.setStatus(HttpServletResponse.SC_OK);
         } else {
             // For JSON API endpoints, set the content type to application/json
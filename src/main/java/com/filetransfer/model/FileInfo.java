@@ -22,6 +22,9 @@ public class FileInfo implements Serializable {
     private String uploadedBy;
     private String status;
     private String checksum;
+    // 计算校验和时文件的大小和修改时间；与磁盘上的文件不一致时校验和需要重新计算
+    private long checksumFileSize;
+    private long checksumFileModified;
     private boolean isPublic;
     private int downloadCount;
     private String fileExtension;
@@ -136,6 +139,22 @@ public class FileInfo implements Serializable {
         this.checksum = checksum;
     }
     
+    public long getChecksumFileSize() {
+        return checksumFileSize;
+    }
+    
+    public void setChecksumFileSize(long checksumFileSize) {
+        this.checksumFileSize = checksumFileSize;
+    }
+    
+    public long getChecksumFileModified() {
+        return checksumFileModified;
+    }
+    
+    public void setChecksumFileModified(long checksumFileModified) {
+        this.checksumFileModified = checksumFileModified;
+    }
+    
     public boolean isPublic() {
         return isPublic;
     }
@@ -0,0 +1,61 @@
+package com.filetransfer.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Model class representing one page of a file listing
+ */
+public class FilePage implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private List<?> items;
+    private String nextCursor;
+    private boolean hasMore;
+    private Integer totalCount;
+    
+    public FilePage() {
+    }
+    
+    public FilePage(List<?> items, String nextCursor, Integer totalCount) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+        this.hasMore = nextCursor != null;
+        this.totalCount = totalCount;
+    }
+    
+    // Getters and Setters
+    
+    public List<?> getItems() {
+        return items;
+    }
+    
+    public void setItems(List<?> items) {
+        this.items = items;
+    }
+    
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+    
+    public boolean isHasMore() {
+        return hasMore;
+    }
+    
+    public void setHasMore(boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+    
+    public Integer getTotalCount() {
+        return totalCount;
+    }
+    
+    public void setTotalCount(Integer totalCount) {
+        this.totalCount = totalCount;
+    }
+}
@@ -0,0 +1,232 @@
+package com.filetransfer.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.filetransfer.util.IncrementalDigest;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Model class representing an in-progress (resumable) upload
+ *
+ * 分块上传以位图记录已收到的分块（JSON 中为 Base64 编码的位图），tus 上传记录连续写入的字节偏移量。
+ */
+public class UploadSession implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // 分块保存为单独文件，全部收到后合并
+    public static final String MODE_CHUNKS = "CHUNKS";
+    // 分块按位置直接写入预分配的 .part 文件
+    public static final String MODE_DIRECT = "DIRECT";
+    // tus 1.0 协议，按偏移量追加写入 .part 文件
+    public static final String MODE_TUS = "TUS";
+
+    private String id;
+    private String userId;
+    private String mode;
+    private String fileName;
+    private String contentType;
+    private long totalSize = -1;
+    private long chunkSize;
+    private int totalChunks;
+    private long offset;
+    private String partPath;
+    private Date createdDate;
+    private Date lastActivity;
+    private Date expiryDate;
+
+    @JsonIgnore
+    private BitSet receivedChunks = new BitSet();
+
+    // 接收过程中增量计算的校验和，不持久化；重启后从 .part 文件中已写入的部分补算
+    @JsonIgnore
+    private transient IncrementalDigest digest;
+
+    public UploadSession() {
+        this.createdDate = new Date();
+        this.lastActivity = this.createdDate;
+    }
+
+    // Getters and Setters
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public void setTotalSize(long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public void setTotalChunks(int totalChunks) {
+        this.totalChunks = totalChunks;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public String getPartPath() {
+        return partPath;
+    }
+
+    public void setPartPath(String partPath) {
+        this.partPath = partPath;
+    }
+
+    public Date getCreatedDate() {
+        return createdDate;
+    }
+
+    public void setCreatedDate(Date createdDate) {
+        this.createdDate = createdDate;
+    }
+
+    public Date getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity(Date lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    public Date getExpiryDate() {
+        return expiryDate;
+    }
+
+    public void setExpiryDate(Date expiryDate) {
+        this.expiryDate = expiryDate;
+    }
+
+    /**
+     * 已收到分块的位图（Base64），用于持久化
+     */
+    public synchronized String getReceivedChunksBitmap() {
+        return Base64.getEncoder().encodeToString(receivedChunks.toByteArray());
+    }
+
+    public synchronized void setReceivedChunksBitmap(String bitmap) {
+        receivedChunks = bitmap == null || bitmap.isEmpty()
+                ? new BitSet() : BitSet.valueOf(Base64.getDecoder().decode(bitmap));
+    }
+
+    // Helper methods
+
+    public synchronized void markChunkReceived(int chunkNumber) {
+        receivedChunks.set(chunkNumber);
+    }
+
+    public synchronized boolean isChunkReceived(int chunkNumber) {
+        return receivedChunks.get(chunkNumber);
+    }
+
+    @JsonIgnore
+    public synchronized int getReceivedChunkCount() {
+        return receivedChunks.cardinality();
+    }
+
+    @JsonIgnore
+    public synchronized List<Integer> getMissingChunks() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = receivedChunks.nextClearBit(0); i < totalChunks; i = receivedChunks.nextClearBit(i + 1)) {
+            missing.add(i);
+        }
+        return missing;
+    }
+
+    @JsonIgnore
+    public synchronized IncrementalDigest getDigest() {
+        if (digest == null) {
+            digest = new IncrementalDigest();
+        }
+        return digest;
+    }
+
+    /**
+     * 从文件开头起连续写入的字节数（tus 为当前偏移量，分块上传为第一个缺失分块之前的部分）
+     */
+    @JsonIgnore
+    public synchronized long getContiguousLength() {
+        if (MODE_TUS.equals(mode)) {
+            return offset;
+        }
+        return Math.min((long) receivedChunks.nextClearBit(0) * chunkSize, totalSize);
+    }
+
+    /**
+     * 所有分块（或所有字节）是否都已收到
+     */
+    @JsonIgnore
+    public synchronized boolean isComplete() {
+        if (MODE_TUS.equals(mode)) {
+            return totalSize >= 0 && offset >= totalSize;
+        }
+        return totalChunks > 0 && receivedChunks.nextClearBit(0) >= totalChunks;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadSession [id=" + id + ", userId=" + userId + ", mode=" + mode + ", totalSize=" + totalSize
+                + ", totalChunks=" + totalChunks + ", offset=" + offset + "]";
+    }
+}
@@ -21,6 +21,9 @@ public class FileMonitoringServiceImpl implements FileMonitoringService, Initial
     
     private long monitoringInterval = 60000; // 默认60秒
     
+    // 过期文件和传输请求的检查间隔；过期索引只处理到期的记录，可以设置到秒级，0 表示只在监控任务中检查
+    private long expirySweepInterval = 5000;
+    
     private ScheduledExecutorService scheduler;
     
     private boolean isRunning = false;
@@ -31,6 +34,9 @@ public class FileMonitoringServiceImpl implements FileMonitoringService, Initial
     @Autowired
     private TransferService transferService;
     
+    @Autowired
+    private UploadSessionService uploadSessionService;
+    
     @Override
     public void startMonitoring() {
         if (isRunning) {
@@ -42,6 +48,10 @@ public class FileMonitoringServiceImpl implements FileMonitoringService, Initial
         
         scheduler = Executors.newSingleThreadScheduledExecutor();
         scheduler.scheduleAtFixedRate(this::monitoringTask, 0, monitoringInterval, TimeUnit.MILLISECONDS);
+        if (expirySweepInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::expirySweepTask, expirySweepInterval, expirySweepInterval,
+                    TimeUnit.MILLISECONDS);
+        }
         
         isRunning = true;
     }
@@ -79,7 +89,11 @@ public class FileMonitoringServiceImpl implements FileMonitoringService, Initial
         // 清理过期传输请求
         int transfersExpired = transferService.cleanupExpiredTransferRequests();
         
-        logger.info("Cleanup completed: {} files deleted, {} transfers expired", filesDeleted, transfersExpired);
+        // 清理长时间没有活动的上传会话及其临时数据
+        int uploadsExpired = uploadSessionService.cleanupExpiredSessions();
+        
+        logger.info("Cleanup completed: {} files deleted, {} transfers expired, {} uploads expired",
+                filesDeleted, transfersExpired, uploadsExpired);
         
         return filesDeleted;
     }
@@ -100,6 +114,19 @@ public class FileMonitoringServiceImpl implements FileMonitoringService, Initial
         return monitoringInterval;
     }
     
+    public void setExpirySweepInterval(long expirySweepInterval) {
+        this.expirySweepInterval = expirySweepInterval;
+        
+        if (isRunning) {
+            stopMonitoring();
+            startMonitoring();
+        }
+    }
+    
+    public long getExpirySweepInterval() {
+        return expirySweepInterval;
+    }
+    
     /**
      * 监控任务，定期执行
      */
@@ -117,6 +144,21 @@ public class FileMonitoringServiceImpl implements FileMonitoringService, Initial
         }
     }
     
+    /**
+     * 过期检查任务：只处理过期索引中到期的文件和传输请求，没有到期记录时几乎没有开销
+     */
+    private void expirySweepTask() {
+        try {
+            int filesDeleted = fileService.cleanupExpiredFiles();
+            int transfersExpired = transferService.cleanupExpiredTransferRequests();
+            if (filesDeleted > 0 || transfersExpired > 0) {
+                logger.info("Expiry sweep: {} files deleted, {} transfers expired", filesDeleted, transfersExpired);
+            }
+        } catch (Exception e) {
+            logger.error("Error executing expiry sweep", e);
+        }
+    }
+    
     @Override
     public void afterPropertiesSet() throws Exception {
         // 在Spring容器启动时自动启动监控服务
@@ -1,11 +1,14 @@
 package com.filetransfer.service;
 
 import com.filetransfer.model.FileInfo;
+import com.filetransfer.model.FilePage;
+import com.filetransfer.model.UploadSession;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -18,16 +21,74 @@ public interface FileService {
      */
     FileInfo uploadFile(MultipartFile file, String userId) throws IOException;
     
+    /**
+     * Upload a file from a stream, writing it straight into the user files directory
+     * @param data file content; read to the end but not closed
+     * @param originalFileName file name supplied by the client, may be null
+     * @param contentType content type supplied by the client, may be null
+     */
+    FileInfo uploadFile(InputStream data, String originalFileName, String contentType, String userId) throws IOException;
+    
+    /**
+     * Complete an upload without transferring data when identical content is already stored
+     * (only with the content-addressed storage layout)
+     * @return the new file, or null if no stored content matches the hash and size
+     */
+    FileInfo uploadExistingContent(String sha256, long size, String originalFileName, String contentType, String userId);
+    
     /**
      * Upload a chunk of a file
      */
     boolean uploadChunk(String fileId, MultipartFile chunk, int chunkNumber, int totalChunks, String userId) throws IOException;
     
     /**
-     * Download a file
+     * Upload a chunk of a file whose total size is declared up front.
+     * The chunk is written at chunkNumber * chunkSize into a preallocated file,
+     * so completing the upload is a rename instead of a copy.
+     * @param totalSize declared size of the whole file
+     * @param chunkSize size of every chunk except the last one (0 = configured file.chunk.size)
+     * @return true when this chunk completed the upload
+     * @throws IllegalArgumentException if the chunk does not match the declared layout
+     */
+    boolean uploadChunk(String fileId, MultipartFile chunk, int chunkNumber, int totalChunks,
+                        long totalSize, long chunkSize, String userId) throws IOException;
+    
+    /**
+     * Get an in-progress upload (chunked or tus) owned by the user
+     * @return the session, or null if it does not exist, is finished or belongs to someone else
+     */
+    UploadSession getUploadSession(String uploadId, String userId);
+    
+    /**
+     * Create a tus upload of the given length
+     */
+    UploadSession createUpload(String userId, long totalSize, String fileName, String contentType) throws IOException;
+    
+    /**
+     * Append data to a tus upload at the given offset; the upload is finished when the last byte arrives
+     * @throws IllegalArgumentException if the upload does not exist
+     * @throws IllegalStateException if offset is not the current offset of the upload
+     */
+    UploadSession appendUpload(String uploadId, String userId, long offset, InputStream data) throws IOException;
+    
+    /**
+     * Cancel an in-progress upload and delete its data
+     */
+    boolean cancelUpload(String uploadId, String userId);
+    
+    /**
+     * Download a file (counts the download)
+     * @return the stored file; for files in the chunk store this is the chunk manifest,
+     *         read the content with {@link #getFileAsStream(String)}
      */
     File downloadFile(String fileId) throws IOException;
     
+    /**
+     * Count one download for each file, e.g. after they were streamed in an archive;
+     * files that no longer exist are skipped
+     */
+    void recordDownloads(Collection<String> fileIds);
+    
     /**
      * Get file info
      */
@@ -44,10 +105,29 @@ public interface FileService {
     boolean deleteFile(String fileId, String userId);
     
     /**
-     * Get file as stream
+     * Get file as stream, reassembling files kept in the chunk store
      */
     InputStream getFileAsStream(String fileId) throws IOException;
     
+    /**
+     * Get the single file holding the content, for positional reads
+     * @return the file, or null when the content is reassembled from the chunk store
+     *         (read it with {@link #getFileAsStream(String)})
+     */
+    File getContentFile(String fileId) throws IOException;
+    
+    /**
+     * Get the whole content of a small file from the hot-file cache, loading it on a miss only when the
+     * cache would admit it
+     * @return a read-only buffer positioned at 0, or null when the file should be read from storage instead
+     */
+    java.nio.ByteBuffer getCachedContent(String fileId) throws IOException;
+    
+    /**
+     * Storage engine statistics (dedup ratio, ingest throughput, chunk store usage)
+     */
+    java.util.Map<String, Object> getStorageStats();
+    
     /**
      * Update file info
      */
@@ -124,4 +204,22 @@ public interface FileService {
      * 清空文件信息并重新扫描上传目录
      */
     boolean resetFileInfo();
-} 
\ No newline at end of file
+    
+    /**
+     * 获取用户文件列表的版本标识
+     * 列表内容发生任何变化后都会改变；应用重启后也不会与之前的值重复
+     */
+    String getUserFilesVersion(String userId);
+    
+    /**
+     * 分页获取用户文件（基于排序索引，按游标翻页）
+     * @param userId 用户ID
+     * @param query 搜索关键字，为空时不过滤
+     * @param sort 排序字段 uploadDate|size|name，为空时按 uploadDate
+     * @param descending 是否降序
+     * @param cursor 上一页返回的 nextCursor，为空时从第一页开始
+     * @param limit 每页数量，小于等于0时返回全部
+     * @throws IllegalArgumentException 排序字段或游标无效
+     */
+    FilePage getUserFilesPage(String userId, String query, String sort, boolean descending, String cursor, int limit);
+}
@@ -1,12 +1,26 @@
 package com.filetransfer.service;
 
 import com.filetransfer.model.FileInfo;
+import com.filetransfer.model.FilePage;
+import com.filetransfer.model.UploadSession;
+import com.filetransfer.util.BinaryCatalogSnapshot;
+import com.filetransfer.util.ChunkStore;
+import com.filetransfer.util.FastCdc;
+import com.filetransfer.util.FileCatalogIndex;
+import com.filetransfer.util.ContentStore;
+import com.filetransfer.util.ExpiryWheel;
+import com.filetransfer.util.FileExistenceCache;
+import com.filetransfer.util.IncrementalDigest;
 import com.filetransfer.util.FileUtils;
+import com.filetransfer.util.HotFileCache;
+import com.filetransfer.util.MetadataJournal;
+import com.filetransfer.util.ReservingInputStream;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,14 +29,34 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -33,6 +67,15 @@ public class FileServiceImpl implements FileService {
     
     private static final Logger logger = LoggerFactory.getLogger(FileServiceImpl.class);
     
+    // 合并分块时单次内存映射的最大长度
+    private static final long CHUNK_MAP_WINDOW = 64L * 1024 * 1024;
+    
+    // 分块上传的 fileId 会成为临时文件名的一部分，只允许安全字符
+    private static final Pattern SAFE_UPLOAD_ID = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+    
+    // 过期文件删除失败后重新尝试的间隔（毫秒）
+    private static final long EXPIRY_RETRY_DELAY = 60000;
+    
     @Value("${file.upload.directory}")
 private String uploadDirectory;
 
@@ -48,6 +91,52 @@ private final ObjectMapper objectMapper = new ObjectMapper();
     @Value("${file.chunk.size:5242880}")
     private int chunkSize;
     
+    // 日志记录数达到该值时写入完整快照并截断日志
+    @Value("${file.journal.compact.threshold:1000}")
+    private int journalCompactThreshold;
+    
+    // fileInfo.json 之后的增量变更日志；由单独的锁保护，持久化线程落盘时不需要获取服务对象的锁
+    private MetadataJournal journal;
+    private final Object journalLock = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    
+    // 存储布局: flat（按文件名保存在 user_files）、cas（按 SHA-256 保存在 blobs，相同内容只存一份）
+    // 或 cdc（按内容切块保存在 cdc/chunks，相同的分块只存一份，文件记录指向分块清单）
+    @Value("${file.storage.layout:flat}")
+    private String storageLayout;
+    
+    // 内容块存储；无论当前布局如何都维护引用计数，切换回 flat 后已有的内容块仍能被正确释放
+    private ContentStore contentStore;
+    
+    // 分块存储；切换布局后已有的清单仍可读取
+    private ChunkStore chunkStore;
+    
+    @Value("${file.storage.cdc.min.size:16384}")
+    private int cdcMinSize;
+    
+    @Value("${file.storage.cdc.avg.size:65536}")
+    private int cdcAvgSize;
+    
+    @Value("${file.storage.cdc.max.size:262144}")
+    private int cdcMaxSize;
+    
+    // 未引用分块的回收间隔（毫秒），0 表示不回收
+    @Value("${file.storage.cdc.gc.interval:3600000}")
+    private long cdcGcInterval;
+    
+    // 热点小文件内容缓存（直接内存），按文件ID缓存整个文件
+    private HotFileCache hotFileCache;
+    
+    @Value("${file.cache.capacity:268435456}")
+    private long hotCacheCapacity;
+    
+    @Value("${file.cache.max.entry.size:4194304}")
+    private int hotCacheMaxEntrySize;
+    
+    // 快照格式: json（fileInfo.json）或 binary（内存映射的 fileInfo.bin）
+    @Value("${file.catalog.snapshot.format:json}")
+    private String snapshotFormat;
+    
     @Value("${file.supported.types:image/*,video/*,audio/*,application/pdf}")
     private String supportedFileTypes;
     
@@ -56,16 +145,68 @@ private final ObjectMapper objectMapper = new ObjectMapper();
     // In-memory cache for file information
     private final Map<String, FileInfo> fileInfoMap = new ConcurrentHashMap<>();
     
-    // In-memory storage for tracking file chunks (should be replaced with a database in production)
-    private final Map<String, Map<Integer, Boolean>> chunkTracker = new ConcurrentHashMap<>();
+    // 按用户和公开状态的二级索引，与 fileInfoMap 在同一把锁内更新
+    private final FileCatalogIndex catalogIndex = new FileCatalogIndex();
+    
+    // 按过期时间索引的文件ID（精度 1 秒），清理过期文件时只处理到期的记录，与 fileInfoMap 在同一把锁内更新
+    private final ExpiryWheel<String> expiryIndex = new ExpiryWheel<>(1000, System.currentTimeMillis());
+    
+    // 启动标识，与索引中的版本号一起组成列表版本，避免重启后版本号重复
+    private final String catalogEpoch = Long.toString(System.currentTimeMillis(), 36);
+    
+    // 文件存在状态缓存，列表请求不再逐个 stat 文件
+    private final FileExistenceCache existenceCache = new FileExistenceCache(path -> scheduleMissingFilePrune());
+    
+    // 全量校验磁盘文件的间隔（毫秒），用于补充目录监视（NFS 等不产生事件的文件系统）
+    @Value("${file.existence.reconcile.interval:300000}")
+    private long existenceReconcileInterval;
+    
+    // 后台清理丢失文件记录的线程
+    private ScheduledExecutorService catalogMaintenance;
+    private final AtomicBoolean pruneScheduled = new AtomicBoolean(false);
+    
+    // 并行删除过期文件的 I/O 线程数
+    @Value("${file.expiry.cleanup.threads:4}")
+    private int expiryCleanupThreads;
+    
+    private ExecutorService expiryCleanupPool;
+    
+    // 为 true 时修改记录只追加日志，不通知持久化写入器，由批量操作结束时统一提交一次；只在持有服务对象的锁时访问
+    private boolean deferCatalogCommit;
+    
+    // 最近一次过期清理的结果
+    private volatile Map<String, Object> lastExpiryCleanup = Collections.emptyMap();
+    
+    // 按文件目录重新统计用户存储用量的间隔，0 表示不统计
+    @Value("${user.quota.reconcile.interval:600000}")
+    private long quotaReconcileInterval;
+    
+    // 大小未知的流式上传每次预留的字节数
+    private static final long STREAM_RESERVATION_STEP = 8L * 1024 * 1024;
     
     @Autowired
     private UserService userService;
     
+    // 分块上传和 tus 上传的会话（持久化，重启后可继续）
+    @Autowired
+    private UploadSessionService uploadSessionService;
+    
+    @Autowired
+    private PersistenceWriter persistenceWriter;
+    
+    private PersistenceWriter.Handle catalogHandle;
+    
     @PostConstruct
     public void init() {
         logger.info("初始化文件服务...");
         
+        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        
+        if (catalogHandle == null) {
+            catalogHandle = persistenceWriter.register("fileInfo", this::flushCatalog);
+        }
+        
         try {
             // 确保uploadDirectory不为null
             if (uploadDirectory == null || uploadDirectory.trim().isEmpty()) {
@@ -81,6 +222,10 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             }
             
             logger.info("使用上传目录: {}", uploadDirectory);
+            contentStore = new ContentStore(new File(uploadDirectory, "blobs"));
+            chunkStore = new ChunkStore(new File(uploadDirectory, "cdc"), new FastCdc(cdcMinSize, cdcAvgSize, cdcMaxSize));
+            hotFileCache = new HotFileCache(hotCacheCapacity, hotCacheMaxEntrySize);
+            logger.info("存储布局: {}", useChunkStore() ? "cdc" : useContentStore() ? "cas" : "flat");
             
             // 确保上传目录存在
             File uploadDir = new File(uploadDirectory);
@@ -142,6 +287,7 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             // 设置文件信息存储路径
             fileInfoFile = uploadDirectory + File.separator + "fileInfo.json";
             logger.info("文件信息存储路径: {}", fileInfoFile);
+            closeJournal();
             
             // 确保fileInfo.json文件存在
             File infoFile = new File(fileInfoFile);
@@ -213,15 +359,181 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         
         // 加载文件信息
         try {
-            List<FileInfo> loadedFiles = loadFileInfo();
-            for (FileInfo fileInfo : loadedFiles) {
-                fileInfoMap.put(fileInfo.getId(), fileInfo);
-            }
+            replaceCatalog(loadFileInfo());
         } catch (Exception e) {
             logger.error("加载文件信息失败: {}", e.getMessage(), e);
             // 初始化为空映射
-            fileInfoMap.clear();
+            replaceCatalog(Collections.<FileInfo>emptyList());
+        }
+        
+        startCatalogMaintenance();
+    }
+    
+    @PreDestroy
+    public void destroy() {
+        existenceCache.stop();
+        if (catalogMaintenance != null) {
+            catalogMaintenance.shutdownNow();
+        }
+        if (expiryCleanupPool != null) {
+            expiryCleanupPool.shutdownNow();
+        }
+    }
+    
+    /**
+     * 启动目录监视和定期校验任务
+     */
+    private void startCatalogMaintenance() {
+        if (userFilesDirectory != null) {
+            existenceCache.watch(new File(userFilesDirectory));
+        }
+        
+        catalogMaintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "catalog-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryCleanupPool = Executors.newFixedThreadPool(Math.max(1, expiryCleanupThreads), r -> {
+            Thread thread = new Thread(r, "expiry-cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (existenceReconcileInterval > 0) {
+            catalogMaintenance.scheduleWithFixedDelay(this::reconcileFileExistence,
+                    existenceReconcileInterval, existenceReconcileInterval, TimeUnit.MILLISECONDS);
+        }
+        if (useChunkStore() && cdcGcInterval > 0) {
+            catalogMaintenance.scheduleWithFixedDelay(this::collectChunkGarbage,
+                    cdcGcInterval, cdcGcInterval, TimeUnit.MILLISECONDS);
+        }
+        if (quotaReconcileInterval > 0) {
+            catalogMaintenance.scheduleWithFixedDelay(this::reconcileStorageUsage,
+                    quotaReconcileInterval, quotaReconcileInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * 并行汇总文件目录中每个用户的文件大小，校正配额账本中的已用量
+     *
+     * 登记、删除文件时目录和账本的已用量在服务对象的锁内一起修改，账本快照和统计也在锁内进行，
+     * 两者对应同一时刻的目录；统计由 ForkJoin 线程并行完成，只在统计期间阻塞目录的修改
+     */
+    private void reconcileStorageUsage() {
+        try {
+            long started = System.currentTimeMillis();
+            int corrected;
+            synchronized (this) {
+                corrected = userService.reconcileStorageUsed(() -> fileInfoMap.values().parallelStream()
+                        .filter(fileInfo -> fileInfo.getUploadedBy() != null)
+                        .collect(Collectors.groupingByConcurrent(FileInfo::getUploadedBy,
+                                Collectors.summingLong(FileInfo::getSize))));
+            }
+            logger.debug("存储用量校正完成，共 {} 个文件，校正 {} 个用户，耗时 {} ms",
+                    fileInfoMap.size(), corrected, System.currentTimeMillis() - started);
+        } catch (Exception e) {
+            logger.error("存储用量校正失败: {}", e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * 删除不再被任何文件引用的分块；文件删除时只删除清单，分块在这里统一回收
+     */
+    private void collectChunkGarbage() {
+        Set<String> liveManifests = new HashSet<>();
+        for (FileInfo fileInfo : fileInfoMap.values()) {
+            if (chunkStore.isManifest(fileInfo.getPath())) {
+                liveManifests.add(new File(fileInfo.getPath()).getAbsolutePath());
+            }
+        }
+        try {
+            chunkStore.collectGarbage(liveManifests, cdcGcInterval);
+        } catch (RuntimeException e) {
+            logger.error("分块回收失败: {}", e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * 安排一次后台清理；短时间内的多次删除事件合并为一次
+     */
+    private void scheduleMissingFilePrune() {
+        if (catalogMaintenance == null || !pruneScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            catalogMaintenance.schedule(this::pruneMissingFiles, 1, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            pruneScheduled.set(false);
+        }
+    }
+    
+    /**
+     * 移除缓存中标记为不存在（再次确认后）的文件记录
+     */
+    private void pruneMissingFiles() {
+        pruneScheduled.set(false);
+        List<FileInfo> missing = new ArrayList<>();
+        for (FileInfo fileInfo : fileInfoMap.values()) {
+            if (!existenceCache.isPresent(fileInfo.getPath()) && !existenceCache.refresh(fileInfo.getPath())) {
+                missing.add(fileInfo);
+            }
+        }
+        int pruned = pruneFileInfoRecords(missing);
+        if (pruned > 0) {
+            logger.warn("已移除 {} 个磁盘上不存在的文件记录", pruned);
+        }
+    }
+    
+    /**
+     * 定期重新 stat 所有文件，修正监视遗漏的变化
+     */
+    private void reconcileFileExistence() {
+        try {
+            long started = System.currentTimeMillis();
+            List<FileInfo> missing = new ArrayList<>();
+            for (FileInfo fileInfo : fileInfoMap.values()) {
+                if (!existenceCache.refresh(fileInfo.getPath())) {
+                    missing.add(fileInfo);
+                }
+            }
+            int pruned = pruneFileInfoRecords(missing);
+            logger.debug("文件存在状态校验完成，共 {} 个文件，移除 {} 个记录，耗时 {} ms",
+                    fileInfoMap.size(), pruned, System.currentTimeMillis() - started);
+        } catch (Exception e) {
+            logger.error("文件存在状态校验失败: {}", e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * 移除文件已不存在的记录，释放的用量按用户汇总后在同一把锁内提交到配额账本
+     */
+    private synchronized int pruneFileInfoRecords(List<FileInfo> missing) {
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        int pruned = 0;
+        Map<String, Long> storageDeltas = new HashMap<>();
+        deferCatalogCommit = true;
+        try {
+            for (FileInfo fileInfo : missing) {
+                // 加锁后确认记录没有被并发替换或删除
+                if (fileInfoMap.get(fileInfo.getId()) != fileInfo) {
+                    continue;
+                }
+                logger.warn("文件不存在于磁盘，移除记录: {}", fileInfo.getPath());
+                removeFileInfoRecord(fileInfo.getId());
+                if (fileInfo.getUploadedBy() != null) {
+                    storageDeltas.merge(fileInfo.getUploadedBy(), -fileInfo.getSize(), Long::sum);
+                }
+                pruned++;
+            }
+        } finally {
+            deferCatalogCommit = false;
         }
+        if (pruned > 0) {
+            catalogHandle.markDirty();
+            userService.updateStorageUsed(storageDeltas);
+        }
+        return pruned;
     }
     
     public void setUploadDirectory(String uploadDirectory) {
@@ -285,6 +597,7 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         // 设置文件信息存储路径
         fileInfoFile = uploadDirectory + File.separator + "fileInfo.json";
         logger.info("文件信息存储路径: {}", fileInfoFile);
+        closeJournal();
         
         // 确保fileInfo.json文件存在
         try {
@@ -307,7 +620,7 @@ private final ObjectMapper objectMapper = new ObjectMapper();
     }
     
     /**
-     * 从文件加载文件信息
+     * 从文件加载文件信息：读取 fileInfo.json 快照，再按顺序重放增量日志
      */
     private synchronized List<FileInfo> loadFileInfo() {
         try {
@@ -321,65 +634,277 @@ private final ObjectMapper objectMapper = new ObjectMapper();
                 logger.info("fileInfoFile为null，已重新设置为: {}", fileInfoFile);
         }
         
+            Map<String, FileInfo> loaded = new LinkedHashMap<>();
+            
         File file = new File(fileInfoFile);
-        if (!file.exists()) {
-                logger.warn("文件信息文件不存在: {}, 将创建新文件", fileInfoFile);
-                saveFileInfo(new ArrayList<>());
-                return new ArrayList<>();
-            }
+            File binaryFile = binarySnapshotFile();
+            // 两种格式的快照都存在时使用较新的一个（切换格式后仍能读到最新数据）
+            boolean jsonPresent = file.exists() && file.length() > 4;
+            boolean binaryPresent = BinaryCatalogSnapshot.isBinarySnapshot(binaryFile);
+            boolean loadedBinary = binaryPresent && (!jsonPresent || binaryFile.lastModified() >= file.lastModified());
             
-            if (file.length() == 0) {
-                logger.warn("文件信息文件为空: {}, 将初始化为空列表", fileInfoFile);
-                saveFileInfo(new ArrayList<>());
-                return new ArrayList<>();
+            long started = System.currentTimeMillis();
+            if (loadedBinary) {
+                BinaryCatalogSnapshot.Reader reader = BinaryCatalogSnapshot.open(binaryFile);
+                reader.forEach(info -> loaded.put(info.getId(), info));
+                logger.info("成功加载二进制文件信息快照，共 {} 个文件，耗时 {} ms",
+                        reader.size(), System.currentTimeMillis() - started);
+            } else if (jsonPresent) {
+                List<FileInfo> snapshot = objectMapper.readValue(file,
+                        objectMapper.getTypeFactory().constructCollectionType(List.class, FileInfo.class));
+                for (FileInfo info : snapshot) {
+                    loaded.put(info.getId(), info);
+                }
+                logger.info("成功加载文件信息快照，共 {} 个文件，耗时 {} ms",
+                        snapshot.size(), System.currentTimeMillis() - started);
+            } else {
+                logger.warn("文件信息文件不存在或为空: {}, 将只使用增量日志", fileInfoFile);
             }
             
-            // 配置ObjectMapper忽略未知属性
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            List<FileInfo> fileInfoList = mapper.readValue(file, 
-                    mapper.getTypeFactory().constructCollectionType(List.class, FileInfo.class));
-            
-            logger.info("成功加载文件信息，共 {} 个文件", fileInfoList.size());
+            // 重放快照之后的增量日志
+            MetadataJournal fileJournal = journal();
+            List<MetadataJournal.Entry> entries = fileJournal.readAll();
+            for (MetadataJournal.Entry entry : entries) {
+                applyJournalEntry(loaded, entry);
+            }
+            if (!entries.isEmpty()) {
+                logger.info("已重放 {} 条文件信息日志记录", entries.size());
+            }
             
             // 验证文件是否实际存在
             List<FileInfo> validFiles = new ArrayList<>();
-            for (FileInfo info : fileInfoList) {
+            for (FileInfo info : loaded.values()) {
                 if (info.getPath() == null) {
                     logger.warn("文件路径为null: {}", info.getId());
                     continue;
                 }
                 
-                File actualFile = new File(info.getPath());
-                if (actualFile.exists() && actualFile.isFile()) {
+                if (existenceCache.refresh(info.getPath())) {
                     validFiles.add(info);
                 } else {
                     logger.warn("文件不存在或不是文件: {}", info.getPath());
                 }
             }
             
-            // 如果有无效文件，更新文件信息
-            if (validFiles.size() != fileInfoList.size()) {
-                logger.warn("发现 {} 个无效文件，更新文件信息", fileInfoList.size() - validFiles.size());
-                saveFileInfo(validFiles);
-                return validFiles;
+            if (validFiles.size() != loaded.size()) {
+                logger.warn("发现 {} 个无效文件，更新文件信息", loaded.size() - validFiles.size());
+            }
+            
+            // 启动时把快照和日志合并为新的快照；快照格式与配置不一致时顺便完成迁移
+            boolean formatMismatch = loadedBinary != useBinarySnapshot();
+            if (!file.exists() || formatMismatch || !entries.isEmpty() || validFiles.size() != loaded.size()) {
+                writeSnapshotAndResetJournal(validFiles);
             }
             
-            return fileInfoList;
+            return validFiles;
         } catch (IOException e) {
             logger.error("加载文件信息失败: {}", e.getMessage(), e);
             return new ArrayList<>();
         }
     }
     
-    // 将文件信息保存到文件
-    private synchronized void saveFileInfo(List<FileInfo> fileInfoList) {
+    /**
+     * 将一条日志记录应用到文件信息映射上
+     */
+    private void applyJournalEntry(Map<String, FileInfo> target, MetadataJournal.Entry entry) throws IOException {
+        if (entry.getOp() == null || entry.getId() == null) {
+            return;
+        }
+        switch (entry.getOp()) {
+            case MetadataJournal.OP_PUT:
+                if (entry.getData() != null) {
+                    target.put(entry.getId(), objectMapper.treeToValue(entry.getData(), FileInfo.class));
+                }
+                break;
+            case MetadataJournal.OP_PATCH:
+                FileInfo existing = target.get(entry.getId());
+                if (existing != null && entry.getData() != null) {
+                    objectMapper.readerForUpdating(existing).readValue(entry.getData());
+                }
+                break;
+            case MetadataJournal.OP_DELETE:
+                target.remove(entry.getId());
+                break;
+            default:
+                logger.warn("未知的日志操作: {}", entry.getOp());
+        }
+    }
+    
+    private boolean useBinarySnapshot() {
+        return "binary".equalsIgnoreCase(snapshotFormat != null ? snapshotFormat.trim() : null);
+    }
+    
+    private File binarySnapshotFile() {
+        String basePath = fileInfoFile != null ? fileInfoFile
+                : uploadDirectory + File.separator + "fileInfo.json";
+        return new File(new File(basePath).getParentFile(), "fileInfo.bin");
+    }
+    
+    private MetadataJournal journal() {
+        synchronized (journalLock) {
+            if (journal == null) {
+                String basePath = fileInfoFile != null ? fileInfoFile
+                        : uploadDirectory + File.separator + "fileInfo.json";
+                journal = new MetadataJournal(new File(basePath + ".journal"), objectMapper);
+            }
+            return journal;
+        }
+    }
+    
+    private void closeJournal() {
+        synchronized (journalLock) {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+    }
+    
+    /**
+     * 写入文件信息记录（内存映射 + 日志）
+     */
+    private synchronized void putFileInfoRecord(FileInfo fileInfo) {
+        fileInfoMap.put(fileInfo.getId(), fileInfo);
+        catalogIndex.put(fileInfo);
+        indexExpiry(fileInfo);
+        contentStore.update(fileInfo.getId(), fileInfo.getPath());
+        existenceCache.markPresent(fileInfo.getPath());
+        appendJournal(MetadataJournal.OP_PUT, fileInfo.getId(), fileInfo);
+    }
+    
+    /**
+     * 记录已修改文件信息的部分字段，changes 中必须是字段的最新值；
+     * 记录已被删除（例如过期清理）或替换时不做任何修改，避免把已删除的记录重新放回目录
+     */
+    private synchronized void patchFileInfoRecord(FileInfo fileInfo, Map<String, Object> changes) {
+        if (fileInfoMap.get(fileInfo.getId()) != fileInfo) {
+            return;
+        }
+        catalogIndex.put(fileInfo);
+        indexExpiry(fileInfo);
+        contentStore.update(fileInfo.getId(), fileInfo.getPath());
+        appendJournal(MetadataJournal.OP_PATCH, fileInfo.getId(), changes);
+    }
+    
+    /**
+     * 删除文件信息记录（内存映射 + 日志）
+     */
+    private synchronized void removeFileInfoRecord(String fileId) {
+        FileInfo removed = fileInfoMap.remove(fileId);
+        catalogIndex.remove(fileId);
+        expiryIndex.cancel(fileId);
+        contentStore.remove(fileId);
+        hotFileCache.invalidate(fileId);
+        if (removed != null) {
+            existenceCache.forget(removed.getPath());
+        }
+        appendJournal(MetadataJournal.OP_DELETE, fileId, null);
+    }
+    
+    /**
+     * 用给定的文件列表替换内存中的目录并重建索引（不写日志）
+     */
+    private synchronized void replaceCatalog(Collection<FileInfo> files) {
+        fileInfoMap.clear();
+        catalogIndex.clear();
+        expiryIndex.clear();
+        contentStore.clear();
+        hotFileCache.clear();
+        for (FileInfo fileInfo : files) {
+            fileInfoMap.put(fileInfo.getId(), fileInfo);
+            catalogIndex.put(fileInfo);
+            indexExpiry(fileInfo);
+            contentStore.update(fileInfo.getId(), fileInfo.getPath());
+        }
+    }
+    
+    private void indexExpiry(FileInfo fileInfo) {
+        if (fileInfo.getExpiryDate() != null) {
+            expiryIndex.schedule(fileInfo.getId(), fileInfo.getExpiryDate().getTime());
+        } else {
+            expiryIndex.cancel(fileInfo.getId());
+        }
+    }
+    
+    /**
+     * 按索引中的ID顺序取出文件信息，跳过已被并发删除的记录
+     */
+    private List<FileInfo> resolveFileIds(List<String> fileIds) {
+        List<FileInfo> files = new ArrayList<>(fileIds.size());
+        for (String fileId : fileIds) {
+            FileInfo fileInfo = fileInfoMap.get(fileId);
+            if (fileInfo != null) {
+                files.add(fileInfo);
+            }
+        }
+        return files;
+    }
+    
+    private void appendJournal(String op, String fileId, Object data) {
+        try {
+            journal().append(op, fileId, data);
+        } catch (IOException e) {
+            logger.error("写入文件信息日志失败，改为写入完整快照: {}", e.getMessage(), e);
+            writeSnapshotAndResetJournal(new ArrayList<>(fileInfoMap.values()));
+            return;
+        }
+        if (!deferCatalogCommit) {
+            catalogHandle.markDirty();
+        }
+    }
+    
+    /**
+     * 由持久化写入器调用：落盘缓冲的日志记录，日志过长时写入快照
+     */
+    private void flushCatalog() throws IOException {
+        MetadataJournal fileJournal = journal();
+        fileJournal.flush();
+        // 写快照需要持有服务对象的锁，而修改记录的线程持有该锁时可能正在等待本写入器（同步模式或关闭过程中），
+        // 因此压缩交给维护线程执行，避免锁顺序相反导致死锁
+        if (fileJournal.getEntryCount() >= journalCompactThreshold && catalogMaintenance != null
+                && compactionScheduled.compareAndSet(false, true)) {
+            try {
+                catalogMaintenance.execute(this::compactJournal);
+            } catch (RejectedExecutionException e) {
+                compactionScheduled.set(false);
+            }
+        }
+    }
+    
+    private void compactJournal() {
+        compactionScheduled.set(false);
+        synchronized (this) {
+            MetadataJournal fileJournal = journal();
+            if (fileJournal.getEntryCount() >= journalCompactThreshold) {
+                logger.info("文件信息日志达到 {} 条，写入快照", fileJournal.getEntryCount());
+                writeSnapshotAndResetJournal(new ArrayList<>(fileInfoMap.values()));
+            }
+        }
+    }
+    
+    /**
+     * 写入完整快照，成功后截断日志
+     */
+    private synchronized void writeSnapshotAndResetJournal(List<FileInfo> fileInfoList) {
+        if (!saveFileInfo(fileInfoList)) {
+            return;
+        }
+        try {
+            journal().reset();
+        } catch (IOException e) {
+            // 日志未截断也不会丢数据：重放是幂等的
+            logger.warn("截断文件信息日志失败: {}", e.getMessage());
+        }
+    }
+    
+    // 将文件信息保存到文件（完整快照）
+    private synchronized boolean saveFileInfo(List<FileInfo> fileInfoList) {
         try {
             // 检查fileInfoFile是否为null
             if (fileInfoFile == null) {
                 if (uploadDirectory == null) {
                     logger.error("无法保存文件信息：uploadDirectory和fileInfoFile均为null");
-                    return;
+                    return false;
                 }
                 fileInfoFile = uploadDirectory + File.separator + "fileInfo.json";
                 logger.info("fileInfoFile为null，已重新设置为: {}", fileInfoFile);
@@ -395,37 +920,33 @@ private final ObjectMapper objectMapper = new ObjectMapper();
                 logger.info("创建父目录: {} - {}", parentDir.getAbsolutePath(), created ? "成功" : "失败");
                 if (!created) {
                     logger.error("无法创建父目录: {}", parentDir.getAbsolutePath());
-                    return;
+                    return false;
                 }
             }
             
             // 检查目录是否可写
             if (parentDir != null && !parentDir.canWrite()) {
                 logger.error("父目录不可写: {}", parentDir.getAbsolutePath());
-                return;
+                return false;
+            }
+            
+            if (useBinarySnapshot()) {
+                return saveBinarySnapshot(fileInfoList);
             }
             
-            // 使用临时文件方式保存，确保原子性
+            // 先写临时文件并落盘，再原子替换；调用方只有在这里返回true后才会截断日志
             File tempFile = new File(fileInfoFile + ".tmp");
             try {
                 // 使用Jackson序列化文件信息列表
-                ObjectMapper mapper = new ObjectMapper();
-                mapper.enable(SerializationFeature.INDENT_OUTPUT);
-                // 配置ObjectMapper只序列化实际的字段，不序列化getter方法
-                mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-                mapper.writeValue(tempFile, fileInfoList);
-                
-                // 原子性地替换原文件
-                if (file.exists()) {
-                    File backupFile = new File(fileInfoFile + ".bak");
-                    if (backupFile.exists()) {
-                        backupFile.delete();
-                    }
-                    file.renameTo(backupFile);
+                try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                    out.write(objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(fileInfoList));
+                    out.getFD().sync();
                 }
-                tempFile.renameTo(file);
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
                 
                 logger.info("文件信息保存成功，共 {} 个文件", fileInfoList.size());
+                return true;
             } catch (IOException e) {
                 logger.error("保存文件信息到临时文件失败: {}", e.getMessage(), e);
                 // 清理临时文件
@@ -436,6 +957,30 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         } catch (Exception e) {
             logger.error("保存文件信息失败: {}", e.getMessage(), e);
         }
+        return false;
+    }
+    
+    // 将文件信息保存为二进制快照
+    private synchronized boolean saveBinarySnapshot(List<FileInfo> fileInfoList) {
+        File target = binarySnapshotFile();
+        File tempFile = new File(target.getPath() + ".tmp");
+        try {
+            BinaryCatalogSnapshot.write(fileInfoList, tempFile);
+            // 临时文件落盘后再原子替换，调用方据此截断日志
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tempFile.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("二进制文件信息快照保存成功，共 {} 个文件", fileInfoList.size());
+            return true;
+        } catch (IOException e) {
+            logger.error("保存二进制文件信息快照失败: {}", e.getMessage(), e);
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+            return false;
+        }
     }
     
     // 用于批量上传时的文件信息保存，确保一致性
@@ -454,17 +999,18 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             }
             
             // 保存合并后的文件信息
-            saveFileInfo(new ArrayList<>(loadedFileMap.values()));
+            writeSnapshotAndResetJournal(new ArrayList<>(loadedFileMap.values()));
             
             // 更新内存中的文件信息映射
-            fileInfoMap.clear();
-            fileInfoMap.putAll(loadedFileMap);
+            replaceCatalog(loadedFileMap.values());
             
             logger.info("批量上传后文件信息保存完成，共 {} 个文件", loadedFileMap.size());
         } catch (Exception e) {
             logger.error("批量上传后保存文件信息失败: {}", e.getMessage(), e);
-            // 如果合并失败，仍然保存当前的文件信息
-            saveFileInfo(fileInfoList);
+            // 如果合并失败，仍然逐条记录当前的文件信息
+            for (FileInfo fileInfo : fileInfoList) {
+                putFileInfoRecord(fileInfo);
+            }
         }
     }
     
@@ -474,56 +1020,13 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             throw new IllegalArgumentException("File is empty");
         }
         
-        // 确保上传目录存在
-        if (uploadDirectory == null || uploadDirectory.trim().isEmpty()) {
-            String catalinaBase = System.getProperty("catalina.base");
-            if (catalinaBase != null) {
-                uploadDirectory = catalinaBase + "/webapps/file-transfer/WEB-INF/data";
-            } else {
-                uploadDirectory = System.getProperty("java.io.tmpdir") + "/file-transfer-data";
-            }
-            logger.warn("上传目录未设置，使用默认目录: {}", uploadDirectory);
-        }
-        
-        // 确保用户文件目录存在
-        if (userFilesDirectory == null || userFilesDirectory.trim().isEmpty()) {
-            userFilesDirectory = uploadDirectory + File.separator + "user_files";
-        }
+        prepareUploadDirectories();
         
-        File userFilesDir = new File(userFilesDirectory);
-        if (!userFilesDir.exists()) {
-            boolean created = userFilesDir.mkdirs();
-            if (!created) {
-                throw new IOException("无法创建用户文件目录: " + userFilesDirectory);
-            }
-        }
+        // 生成唯一文件ID
+        String fileId = UUID.randomUUID().toString();
         
-        File uploadDir = new File(uploadDirectory);
-        if (!uploadDir.exists()) {
-            boolean created = uploadDir.mkdirs();
-            if (!created) {
-                throw new IOException("无法创建上传目录: " + uploadDirectory);
-            }
-        }
-        
-        if (!uploadDir.canWrite()) {
-            boolean setWritable = uploadDir.setWritable(true);
-            if (!setWritable) {
-                logger.warn("无法设置上传目录的写入权限: {}", uploadDirectory);
-            }
-        }
-        
-        // 确保fileInfoFile不为null
-        if (fileInfoFile == null) {
-            fileInfoFile = uploadDirectory + File.separator + "fileInfo.json";
-        }
-        
-        // 生成唯一文件ID
-        String fileId = UUID.randomUUID().toString();
-        
-        // 获取原始文件名和扩展名
-        String originalFileName = file.getOriginalFilename();
-        String extension = "";
+        // 获取原始文件名
+        String originalFileName = file.getOriginalFilename();
         
         // 处理中文文件名编码问题
         if (originalFileName != null) {
@@ -546,11 +1049,295 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             } catch (Exception e) {
                 logger.warn("处理文件名编码时出错: {}", e.getMessage());
             }
+        }
+        
+        String safeFileName = toSafeFileName(originalFileName, fileId);
+        
+        // 构建保存路径 - 使用共享的用户文件目录
+        String filePath = userFilesDirectory + File.separator + safeFileName;
+        File destFile = new File(filePath);
+        
+        logger.info("保存文件到: {}", filePath);
+        
+        // 写入前预留空间，超出配额时直接拒绝；登记时转为已用量，失败时归还
+        userService.reserveStorage(fileId, userId, file.getSize());
+        
+        // 保存文件
+        try {
+            // multipart 临时目录与用户文件目录在同一文件系统上时，这里只是一次重命名
+            file.transferTo(destFile);
+            
+            // 检查文件是否成功写入
+            if (!destFile.exists() || destFile.length() == 0) {
+                throw new IOException("文件保存失败，文件不存在或大小为0");
+            }
+            
+            FileInfo fileInfo = registerUploadedFile(fileId, originalFileName, safeFileName, filePath,
+                    file.getSize(), file.getContentType(), userId, null);
+            
+            // multipart 数据已由解析器写入临时文件，这里没有经过内容；在后台计算校验和
+            scheduleChecksum(fileInfo, null);
+            return fileInfo;
+        } catch (IOException e) {
+            // 如果保存失败，删除可能部分写入的文件
+            if (destFile.exists()) {
+                boolean deleted = destFile.delete();
+                if (deleted) {
+                    logger.info("已删除部分写入的文件: {}", filePath);
+                }
+            }
+            throw e;
+        } finally {
+            userService.releaseStorage(fileId);
+        }
+    }
+    
+    @Override
+    public FileInfo uploadFile(InputStream data, String originalFileName, String contentType, String userId)
+            throws IOException {
+        prepareUploadDirectories();
+        
+        String fileId = UUID.randomUUID().toString();
+        try {
+            // 大小事先未知，读取过程中逐步预留，超出配额时在写入之前中止
+            return storeUploadStream(fileId, new ReservingInputStream(data, STREAM_RESERVATION_STEP,
+                    bytes -> userService.reserveStorage(fileId, userId, bytes)), originalFileName, contentType, userId);
+        } finally {
+            // 已登记的上传在登记时转为已用量，这里只归还失败上传的预留
+            userService.releaseStorage(fileId);
+        }
+    }
+    
+    private FileInfo storeUploadStream(String fileId, InputStream data, String originalFileName, String contentType,
+                                       String userId) throws IOException {
+        String safeFileName = toSafeFileName(originalFileName, fileId);
+        String filePath = userFilesDirectory + File.separator + safeFileName;
+        
+        if (useChunkStore()) {
+            // 边接收边切块，不落临时文件
+            ChunkStore.Manifest manifest = chunkStore.write(fileId, data);
+            return registerUploadedFile(fileId, originalFileName, safeFileName,
+                    chunkStore.manifestFile(fileId).getPath(), manifest.getSize(),
+                    detectContentType(contentType, safeFileName), userId, manifest.getChecksum());
+        }
+        
+        // 先写入目标目录中的隐藏临时文件，写完后原子重命名；读者不会看到写了一半的文件
+        Path staging = Paths.get(userFilesDirectory, "." + fileId + ".upload");
+        // 写入的同时计算校验和，不需要事后再读取文件
+        MessageDigest md = IncrementalDigest.newDigest();
+        long size;
+        String checksum;
+        try {
+            size = Files.copy(new DigestInputStream(data, md), staging);
+            if (size == 0) {
+                throw new IllegalArgumentException("File is empty");
+            }
+            checksum = toHex(md.digest());
             
-            if (originalFileName.contains(".")) {
-                extension = originalFileName.substring(originalFileName.lastIndexOf("."));
+            if (useContentStore()) {
+                // 与删除互斥：内容块不会在放入后、登记引用前被删除
+                synchronized (this) {
+                    File blob = contentStore.store(staging, checksum);
+                    logger.info("流式上传保存到内容存储: {}, 大小={}", blob.getName(), size);
+                    return registerUploadedFile(fileId, originalFileName, safeFileName, blob.getPath(), size,
+                            detectContentType(contentType, safeFileName), userId, checksum);
+                }
+            }
+            
+            try {
+                Files.move(staging, Paths.get(filePath), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(staging, Paths.get(filePath), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(staging);
+        }
+        
+        logger.info("流式上传保存文件到: {}, 大小={}", filePath, size);
+        
+        return registerUploadedFile(fileId, originalFileName, safeFileName, filePath, size,
+                detectContentType(contentType, safeFileName), userId, checksum);
+    }
+    
+    @Override
+    public FileInfo uploadExistingContent(String sha256, long size, String originalFileName, String contentType,
+                                          String userId) {
+        if (!useContentStore()) {
+            return null;
+        }
+        
+        synchronized (this) {
+            File blob = contentStore.findBlob(sha256, size);
+            if (blob == null) {
+                return null;
+            }
+            
+            String fileId = UUID.randomUUID().toString();
+            String safeFileName = toSafeFileName(originalFileName, fileId);
+            // 秒传不写入数据，但同样计入用户的配额；登记成功后预留已转为用量，归还时忽略
+            userService.reserveStorage(fileId, userId, size);
+            try {
+                logger.info("秒传: 内容已存在, 用户={}, 文件名={}, 大小={}", userId, originalFileName, size);
+                return registerUploadedFile(fileId, originalFileName, safeFileName, blob.getPath(), size,
+                        detectContentType(contentType, safeFileName), userId, blob.getName());
+            } finally {
+                userService.releaseStorage(fileId);
+            }
+        }
+    }
+    
+    private boolean useContentStore() {
+        return "cas".equalsIgnoreCase(storageLayout != null ? storageLayout.trim() : null);
+    }
+    
+    private boolean useChunkStore() {
+        return "cdc".equalsIgnoreCase(storageLayout != null ? storageLayout.trim() : null);
+    }
+    
+    /**
+     * CDC 布局下把已写入用户目录的文件切块存入分块存储，校验和在同一遍读取中算出
+     */
+    private void moveToChunkStore(FileInfo fileInfo) throws IOException {
+        File file = new File(fileInfo.getPath());
+        ChunkStore.Manifest manifest;
+        try (InputStream in = new FileInputStream(file)) {
+            manifest = chunkStore.write(fileInfo.getId(), in);
+        }
+        
+        synchronized (this) {
+            if (fileInfoMap.get(fileInfo.getId()) != fileInfo || !file.getPath().equals(fileInfo.getPath())) {
+                // 切块期间文件已被删除或替换
+                Files.deleteIfExists(chunkStore.manifestFile(fileInfo.getId()).toPath());
+                return;
+            }
+            fileInfo.setPath(chunkStore.manifestFile(fileInfo.getId()).getPath());
+            Map<String, Object> changes = stampChecksum(fileInfo, manifest.getChecksum());
+            changes.put("path", fileInfo.getPath());
+            patchFileInfoRecord(fileInfo, changes);
+        }
+        if (!file.delete()) {
+            logger.warn("文件已存入分块存储，但删除原文件失败: {}", file.getPath());
+        }
+    }
+    
+    /**
+     * 打开文件内容；分块存储中的文件按清单重新拼接
+     */
+    private InputStream openContent(FileInfo fileInfo) throws IOException {
+        File file = new File(fileInfo.getPath());
+        if (!file.exists()) {
+            throw new FileNotFoundException("File not found at path: " + fileInfo.getPath());
+        }
+        return chunkStore.isManifest(fileInfo.getPath()) ? chunkStore.open(file) : new FileInputStream(file);
+    }
+    
+    /**
+     * CAS 布局下把已计算校验和的文件移入内容存储并改为引用内容块；调用方持有服务对象的锁
+     */
+    private void moveToContentStore(FileInfo fileInfo) throws IOException {
+        File blob = contentStore.store(Paths.get(fileInfo.getPath()), fileInfo.getChecksum());
+        fileInfo.setPath(blob.getPath());
+        stampChecksum(fileInfo, fileInfo.getChecksum());
+    }
+    
+    /**
+     * 删除文件记录和磁盘上的数据；内容块只在最后一个引用删除后才删除，分块由回收任务删除
+     */
+    private boolean deleteStoredFile(FileInfo fileInfo) {
+        String path = fileInfo.getPath();
+        synchronized (this) {
+            // 记录已被并发删除（例如过期清理）或替换时不再删除，避免重复扣减用量或删除新记录的文件
+            if (fileInfoMap.get(fileInfo.getId()) != fileInfo) {
+                return false;
+            }
+            removeFileInfoRecord(fileInfo.getId());
+            userService.updateStorageUsed(fileInfo.getUploadedBy(), fileInfo.getSize(), false);
+            if (contentStore.isBlob(path)) {
+                if (contentStore.getReferenceCount(path) == 0 && !new File(path).delete()) {
+                    logger.warn("删除内容块失败: {}", path);
+                }
+                return true;
+            }
+        }
+        
+        // 记录已先移除，删除文件时不会有记录指向它；删除失败则恢复记录和用量
+        File file = new File(path);
+        if (file.delete() || !file.exists()) {
+            return true;
+        }
+        synchronized (this) {
+            if (!fileInfoMap.containsKey(fileInfo.getId())) {
+                putFileInfoRecord(fileInfo);
+                userService.updateStorageUsed(fileInfo.getUploadedBy(), fileInfo.getSize(), true);
             }
         }
+        return false;
+    }
+    
+    private String detectContentType(String contentType, String fileName) {
+        if (contentType == null || contentType.isEmpty() || "application/octet-stream".equals(contentType)) {
+            return FileUtils.getContentTypeByFileName(fileName);
+        }
+        return contentType;
+    }
+    
+    /**
+     * 确保上传目录和用户文件目录存在且可写
+     */
+    private void prepareUploadDirectories() throws IOException {
+        // 确保上传目录存在
+        if (uploadDirectory == null || uploadDirectory.trim().isEmpty()) {
+            String catalinaBase = System.getProperty("catalina.base");
+            if (catalinaBase != null) {
+                uploadDirectory = catalinaBase + "/webapps/file-transfer/WEB-INF/data";
+            } else {
+                uploadDirectory = System.getProperty("java.io.tmpdir") + "/file-transfer-data";
+            }
+            logger.warn("上传目录未设置，使用默认目录: {}", uploadDirectory);
+        }
+        
+        // 确保用户文件目录存在
+        if (userFilesDirectory == null || userFilesDirectory.trim().isEmpty()) {
+            userFilesDirectory = uploadDirectory + File.separator + "user_files";
+        }
+        
+        File userFilesDir = new File(userFilesDirectory);
+        if (!userFilesDir.exists()) {
+            boolean created = userFilesDir.mkdirs();
+            if (!created) {
+                throw new IOException("无法创建用户文件目录: " + userFilesDirectory);
+            }
+        }
+        
+        File uploadDir = new File(uploadDirectory);
+        if (!uploadDir.exists()) {
+            boolean created = uploadDir.mkdirs();
+            if (!created) {
+                throw new IOException("无法创建上传目录: " + uploadDirectory);
+            }
+        }
+        
+        if (!uploadDir.canWrite()) {
+            boolean setWritable = uploadDir.setWritable(true);
+            if (!setWritable) {
+                logger.warn("无法设置上传目录的写入权限: {}", uploadDirectory);
+            }
+        }
+        
+        // 确保fileInfoFile不为null
+        if (fileInfoFile == null) {
+            fileInfoFile = uploadDirectory + File.separator + "fileInfo.json";
+        }
+    }
+    
+    /**
+     * 磁盘上使用的文件名：替换文件系统不允许的字符并限制长度，没有原始文件名时使用文件ID
+     */
+    private String toSafeFileName(String originalFileName, String fileId) {
+        String extension = "";
+        if (originalFileName != null && originalFileName.contains(".")) {
+            extension = originalFileName.substring(originalFileName.lastIndexOf("."));
+        }
         
         // 使用原始文件名存储，但确保文件名安全
         String safeFileName = originalFileName;
@@ -567,128 +1354,547 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         
         // 记录原始文件名用于显示，但使用安全的文件名存储在磁盘上
         logger.debug("原始文件名: {}, 安全文件名: {}", originalFileName, safeFileName);
+        return safeFileName;
+    }
+    
+    /**
+     * 为已写入用户文件目录的上传创建文件信息并登记
+     */
+    private FileInfo registerUploadedFile(String fileId, String originalFileName, String safeFileName, String filePath,
+                                          long size, String contentType, String userId, String checksum) {
+        // 创建文件信息对象
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.setId(fileId);
+        fileInfo.setUploadedBy(userId);
+        fileInfo.setFileName(safeFileName); // 用于磁盘存储的安全文件名
+        fileInfo.setOriginalFileName(originalFileName); // 原始文件名，用于显示
+        fileInfo.setPath(filePath);
+        fileInfo.setSize(size);
+        fileInfo.setContentType(contentType);
+        fileInfo.setUploadDate(new Date());
+        if (checksum != null) {
+            stampChecksum(fileInfo, checksum);
+        }
         
-        // 构建保存路径 - 使用共享的用户文件目录
-        String filePath = userFilesDirectory + File.separator + safeFileName;
-        File destFile = new File(filePath);
+        // 确保原始文件名不为空
+        if (fileInfo.getOriginalFileName() == null || fileInfo.getOriginalFileName().isEmpty()) {
+            fileInfo.setOriginalFileName(safeFileName);
+        }
         
-        logger.info("保存文件到: {}", filePath);
+        logger.debug("文件信息 - ID: {}, 安全文件名: {}, 原始文件名: {}", 
+            fileId, safeFileName, originalFileName);
         
-        // 保存文件
+        // 添加到文件信息映射并记录到日志，上传的预留同时转为实际用量；
+        // 目录和配额账本在同一把锁内修改，用量校正不会看到只改了一边的状态
+        synchronized (this) {
+            putFileInfoRecord(fileInfo);
+            userService.commitStorage(fileId, userId, size);
+        }
+        
+        logger.info("File uploaded: {}", fileInfo);
+        return fileInfo;
+    }
+    
+    @Override
+    public boolean uploadChunk(String fileId, MultipartFile chunk, int chunkNumber, int totalChunks, String userId) throws IOException {
+        checkUploadId(fileId);
+        if (totalChunks <= 0 || chunkNumber < 0 || chunkNumber >= totalChunks) {
+            throw new IllegalArgumentException("Invalid chunk number: " + chunkNumber);
+        }
+        
+        String chunkDirectory = uploadDirectory + File.separator + "chunks" + File.separator + fileId;
+        File directory = new File(chunkDirectory);
+        UploadSession session = chunkUploadSession(fileId, UploadSession.MODE_CHUNKS, -1, 0, totalChunks,
+                directory, userId);
+        
+        // Create temp directory for chunks if not exists（会话确认有效之后再创建）
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        
+        // 总大小未知，逐块预留；重传的分块已经预留过
+        if (!session.isChunkReceived(chunkNumber)) {
+            userService.reserveStorage(fileId, userId, chunk.getSize());
+        }
+        
+        // Save chunk
+        String chunkPath = chunkDirectory + File.separator + chunkNumber;
+        File chunkFile = new File(chunkPath);
+        chunk.transferTo(chunkFile);
+        forceToDisk(chunkFile);
+        
+        // Mark chunk as received（位图随会话持久化，重启后客户端只需补传缺失的分块）
+        session.markChunkReceived(chunkNumber);
+        uploadSessionService.touch(session);
+        
+        // 只有成功移除会话的请求负责合并
+        if (session.isComplete() && uploadSessionService.completeSession(session)) {
+            // Combine chunks
+            try {
+                combineChunks(fileId, totalChunks, userId);
+            } finally {
+                userService.releaseStorage(fileId);
+            }
+            
+            // Clean up chunks
+            org.apache.commons.io.FileUtils.deleteQuietly(directory);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    @Override
+    public boolean uploadChunk(String fileId, MultipartFile chunk, int chunkNumber, int totalChunks,
+                               long totalSize, long declaredChunkSize, String userId) throws IOException {
+        checkUploadId(fileId);
+        long size = declaredChunkSize > 0 ? declaredChunkSize : chunkSize;
+        if (totalSize <= 0 || size <= 0) {
+            throw new IllegalArgumentException("totalSize and chunkSize must be positive");
+        }
+        if (totalChunks != (int) ((totalSize + size - 1) / size)) {
+            throw new IllegalArgumentException("totalChunks does not match totalSize / chunkSize");
+        }
+        if (chunkNumber < 0 || chunkNumber >= totalChunks) {
+            throw new IllegalArgumentException("Invalid chunk number: " + chunkNumber);
+        }
+        
+        long offset = chunkNumber * size;
+        long expectedLength = Math.min(size, totalSize - offset);
+        if (chunk.getSize() != expectedLength) {
+            throw new IllegalArgumentException("Chunk " + chunkNumber + " must be " + expectedLength + " bytes");
+        }
+        
+        UploadSession session = chunkUploadSession(fileId, UploadSession.MODE_DIRECT, totalSize, size, totalChunks,
+                partFile(fileId), userId);
+        
+        // 直接写到目标文件中该分块的位置，不落地为单独的分块文件；
+        // 如果该分块紧接在已计算摘要的部分之后，写入时顺带更新校验和
+        IncrementalDigest digest = session.getDigest();
+        InputStream data = digest.claim(offset, chunk.getInputStream());
+        long written = 0;
+        try (FileChannel out = FileChannel.open(Paths.get(session.getPartPath()), StandardOpenOption.WRITE);
+             ReadableByteChannel in = Channels.newChannel(data)) {
+            written = transferAt(in, out, offset, expectedLength);
+            out.force(false);
+        } finally {
+            digest.release(data, written);
+        }
+        if (written != expectedLength) {
+            throw new IOException("Incomplete chunk " + chunkNumber + ": " + written + "/" + expectedLength);
+        }
+        
+        session.markChunkReceived(chunkNumber);
+        uploadSessionService.touch(session);
+        
+        // 乱序到达的分块在前面的空缺补齐后，由后台从 .part 文件中补算摘要（通常仍在页缓存中）
+        scheduleDigestCatchUp(session);
+        
+        if (session.isComplete() && uploadSessionService.completeSession(session)) {
+            finishPartUpload(session);
+            return true;
+        }
+        return false;
+    }
+    
+    @Override
+    public UploadSession getUploadSession(String uploadId, String userId) {
+        UploadSession session = uploadSessionService.getSession(uploadId);
+        if (session == null || !session.getUserId().equals(userId)) {
+            return null;
+        }
+        return session;
+    }
+    
+    @Override
+    public UploadSession createUpload(String userId, long totalSize, String fileName, String contentType)
+            throws IOException {
+        if (totalSize < 0) {
+            throw new IllegalArgumentException("Upload length must not be negative");
+        }
+        
+        String uploadId = UUID.randomUUID().toString();
+        // 按声明的总大小预留，会话完成、取消或过期时转为用量或归还
+        userService.reserveStorage(uploadId, userId, totalSize);
+        
+        UploadSession session = new UploadSession();
+        File part = partFile(uploadId);
         try {
-            file.transferTo(destFile);
+            try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                raf.setLength(totalSize);
+            }
             
-            // 检查文件是否成功写入
-            if (!destFile.exists() || destFile.length() == 0) {
-                throw new IOException("文件保存失败，文件不存在或大小为0");
+            session.setId(uploadId);
+            session.setUserId(userId);
+            session.setMode(UploadSession.MODE_TUS);
+            session.setFileName(fileName);
+            session.setContentType(contentType);
+            session.setTotalSize(totalSize);
+            session.setPartPath(part.getPath());
+            uploadSessionService.createSession(session);
+        } catch (IOException | RuntimeException e) {
+            userService.releaseStorage(uploadId);
+            part.delete();
+            throw e;
+        }
+        
+        // 空文件在创建时即完成
+        if (session.isComplete() && uploadSessionService.completeSession(session)) {
+            finishPartUpload(session);
+        }
+        return session;
+    }
+    
+    @Override
+    public UploadSession appendUpload(String uploadId, String userId, long offset, InputStream data)
+            throws IOException {
+        UploadSession session = getUploadSession(uploadId, userId);
+        if (session == null || !UploadSession.MODE_TUS.equals(session.getMode())) {
+            throw new IllegalArgumentException("Upload not found: " + uploadId);
+        }
+        
+        // 同一个上传的 PATCH 请求串行执行
+        synchronized (session) {
+            if (offset != session.getOffset()) {
+                throw new IllegalStateException("Upload-Offset mismatch, current offset is " + session.getOffset());
             }
             
-            // 创建文件信息对象
-            FileInfo fileInfo = new FileInfo();
-            fileInfo.setId(fileId);
-            fileInfo.setUploadedBy(userId);
-            fileInfo.setFileName(safeFileName); // 用于磁盘存储的安全文件名
-            fileInfo.setOriginalFileName(originalFileName); // 原始文件名，用于显示
-            fileInfo.setPath(filePath);
-            fileInfo.setSize(file.getSize());
-            fileInfo.setContentType(file.getContentType());
-            fileInfo.setUploadDate(new Date());
+            // 重启后摘要状态丢失：本次数据先直接写入，已写入的部分由后台补算，补齐后的数据在写入时计算
+            IncrementalDigest digest = session.getDigest();
+            InputStream claimed = digest.claim(offset, data);
             
-            // 确保原始文件名不为空
-            if (fileInfo.getOriginalFileName() == null || fileInfo.getOriginalFileName().isEmpty()) {
-                fileInfo.setOriginalFileName(originalFileName);
+            long written = 0;
+            try (FileChannel out = FileChannel.open(Paths.get(session.getPartPath()), StandardOpenOption.WRITE);
+                 ReadableByteChannel in = Channels.newChannel(claimed)) {
+                try {
+                    written = transferAt(in, out, offset, session.getTotalSize() - offset);
+                } finally {
+                    digest.release(claimed, written);
+                    // 连接中断时保留已写入的部分，客户端通过 HEAD 获取新的偏移量后继续
+                    if (written > 0) {
+                        out.force(false);
+                        session.setOffset(offset + written);
+                        uploadSessionService.touch(session);
+                    }
+                }
+            }
+        }
+        scheduleDigestCatchUp(session);
+        
+        if (session.isComplete() && uploadSessionService.completeSession(session)) {
+            finishPartUpload(session);
+        }
+        return session;
+    }
+    
+    @Override
+    public boolean cancelUpload(String uploadId, String userId) {
+        if (getUploadSession(uploadId, userId) == null) {
+            return false;
+        }
+        return uploadSessionService.removeSession(uploadId);
+    }
+    
+    private void checkUploadId(String fileId) {
+        if (fileId == null || !SAFE_UPLOAD_ID.matcher(fileId).matches()) {
+            throw new IllegalArgumentException("Invalid fileId");
+        }
+    }
+    
+    private File partFile(String uploadId) {
+        File chunkDirectory = new File(uploadDirectory + File.separator + "chunks");
+        if (!chunkDirectory.exists()) {
+            chunkDirectory.mkdirs();
+        }
+        return new File(chunkDirectory, uploadId + ".part");
+    }
+    
+    /**
+     * 从输入通道读取最多 length 字节写入 out 的 position 处，返回实际写入的字节数
+     */
+    private long transferAt(ReadableByteChannel in, FileChannel out, long position, long length) throws IOException {
+        long written = 0;
+        while (written < length) {
+            long transferred = out.transferFrom(in, position + written, length - written);
+            if (transferred <= 0) {
+                break;
+            }
+            written += transferred;
+        }
+        return written;
+    }
+    
+    private void forceToDisk(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+    
+    /**
+     * 获取或创建分块上传会话；DIRECT 模式首次创建时按声明的总大小预分配 .part 文件
+     */
+    private UploadSession chunkUploadSession(String fileId, String mode, long totalSize, long size, int totalChunks,
+                                             File data, String userId) throws IOException {
+        synchronized (uploadSessionService) {
+            UploadSession session = uploadSessionService.getSession(fileId);
+            if (session != null) {
+                if (!session.getUserId().equals(userId)) {
+                    throw new IllegalArgumentException("Upload " + fileId + " belongs to another user");
+                }
+                if (!mode.equals(session.getMode()) || session.getTotalSize() != totalSize
+                        || session.getChunkSize() != size || session.getTotalChunks() != totalChunks) {
+                    throw new IllegalArgumentException("Upload parameters changed for " + fileId);
+                }
+                return session;
             }
             
-            logger.debug("文件信息 - ID: {}, 安全文件名: {}, 原始文件名: {}", 
-                fileId, safeFileName, originalFileName);
+            // 该 ID 已登记为文件说明上传已经完成（例如完成后客户端重传了分块），不再创建会话和临时数据
+            FileInfo existing = getFileInfo(fileId);
+            if (existing != null) {
+                if (!userId.equals(existing.getUploadedBy())) {
+                    throw new IllegalArgumentException("Upload " + fileId + " belongs to another user");
+                }
+                throw new IllegalStateException("Upload " + fileId + " is already complete");
+            }
+            
+            if (UploadSession.MODE_DIRECT.equals(mode)) {
+                // 总大小已知，创建会话时一次预留
+                userService.reserveStorage(fileId, userId, totalSize);
+                try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+                    raf.setLength(totalSize);
+                } catch (IOException e) {
+                    userService.releaseStorage(fileId);
+                    throw e;
+                }
+            }
             
-            // 添加到文件信息映射
-            fileInfoMap.put(fileId, fileInfo);
+            session = new UploadSession();
+            session.setId(fileId);
+            session.setUserId(userId);
+            session.setMode(mode);
+            session.setTotalSize(totalSize);
+            session.setChunkSize(size);
+            session.setTotalChunks(totalChunks);
+            session.setPartPath(data.getPath());
+            logger.info("开始分块上传: id={}, 模式={}, 大小={}, 分块数={}", fileId, mode, totalSize, totalChunks);
+            try {
+                return uploadSessionService.createSession(session);
+            } catch (RuntimeException e) {
+                if (UploadSession.MODE_DIRECT.equals(mode)) {
+                    userService.releaseStorage(fileId);
+                    data.delete();
+                }
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * 所有数据写入后把 .part 文件移动到用户目录并登记；不复制数据
+     */
+    private void finishPartUpload(UploadSession session) throws IOException {
+        try {
+            movePartUpload(session);
+        } finally {
+            // 会话已移除，完成失败时不会再有人归还预留
+            userService.releaseStorage(session.getId());
+        }
+    }
+    
+    private void movePartUpload(UploadSession session) throws IOException {
+        String fileId = session.getId();
+        FileInfo fileInfo = chunkedFileInfo(fileId, session.getUserId());
+        if (session.getFileName() != null && !session.getFileName().isEmpty()) {
+            fileInfo.setOriginalFileName(session.getFileName());
+            fileInfo.setFileName(session.getFileName());
+            fileInfo.setFileExtension(FilenameUtils.getExtension(session.getFileName()));
+        }
+        if (session.getContentType() != null && !session.getContentType().isEmpty()) {
+            fileInfo.setContentType(session.getContentType());
+        }
+        String outputPath = chunkedOutputPath(fileInfo, fileId);
+        
+        Path target = Paths.get(outputPath);
+        try {
+            Files.move(Paths.get(session.getPartPath()), target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(Paths.get(session.getPartPath()), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        fileInfo.setPath(outputPath);
+        fileInfo.setSize(session.getTotalSize());
+        fileInfo.setStatus("UPLOADED");
+        
+        // 按顺序接收时摘要在写入过程中已经算完
+        IncrementalDigest digest = session.getDigest();
+        String checksum = digest.finish(session.getTotalSize());
+        if (checksum != null) {
+            stampChecksum(fileInfo, checksum);
+        }
         
-        // 保存文件信息到文件，使用同步块确保线程安全
         synchronized (this) {
-            saveFileInfo(new ArrayList<>(fileInfoMap.values()));
+            if (checksum != null && useContentStore()) {
+                moveToContentStore(fileInfo);
+            }
+            putFileInfoRecord(fileInfo);
+            userService.commitStorage(fileId, session.getUserId(), session.getTotalSize());
         }
+        logger.info("上传完成: id={}, 模式={}, 大小={}", fileId, session.getMode(), session.getTotalSize());
         
-        logger.info("File uploaded: {}", fileInfo);
-        return fileInfo;
-        } catch (IOException e) {
-            // 如果保存失败，删除可能部分写入的文件
-            if (destFile.exists()) {
-                boolean deleted = destFile.delete();
-                if (deleted) {
-                    logger.info("已删除部分写入的文件: {}", filePath);
+        // 否则在后台从摘要停下的位置继续，避免完成请求等待读取剩余部分
+        if (checksum == null || useChunkStore()) {
+            scheduleChecksum(fileInfo, digest);
+        }
+    }
+    
+    /**
+     * 已写入的连续部分超出已摘要的部分时，在维护线程上从 .part 文件补算，不占用请求线程。
+     * 上传完成时摘要还没有追上的部分由 scheduleChecksum 继续
+     */
+    private void scheduleDigestCatchUp(UploadSession session) {
+        IncrementalDigest digest = session.getDigest();
+        if (session.isComplete() || catalogMaintenance == null
+                || !digest.requestCatchUp(session.getContiguousLength())) {
+            return;
+        }
+        try {
+            catalogMaintenance.execute(() -> {
+                try {
+                    digest.advance(Paths.get(session.getPartPath()), session.getContiguousLength());
+                } catch (IOException e) {
+                    // .part 文件可能已移走（上传完成）或已删除（取消、过期）
+                    logger.debug("补算上传摘要失败: {} - {}", session.getId(), e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 正在关闭，完成时再读取剩余部分
+        }
+    }
+    
+    /**
+     * 在后台计算校验和并写回记录；CDC 布局下改为把文件切块存入分块存储，校验和同时算出
+     *
+     * @param digest 已覆盖文件开头一部分的增量摘要，只需读取剩余部分；null 或已失效时读取整个文件
+     */
+    private void scheduleChecksum(FileInfo fileInfo, IncrementalDigest digest) {
+        Runnable task = () -> {
+            try {
+                if (useChunkStore()) {
+                    if (!chunkStore.isManifest(fileInfo.getPath())) {
+                        moveToChunkStore(fileInfo);
+                    }
+                    return;
+                }
+                File file = new File(fileInfo.getPath());
+                String checksum = null;
+                if (digest != null) {
+                    digest.advance(file.toPath(), fileInfo.getSize());
+                    checksum = digest.finish(fileInfo.getSize());
                 }
+                if (checksum == null) {
+                    checksum = calculateChecksum(file);
+                }
+                synchronized (this) {
+                    if (fileInfoMap.get(fileInfo.getId()) == fileInfo) {
+                        Map<String, Object> changes = stampChecksum(fileInfo, checksum);
+                        // 校验和算出后才能确定内容块的位置
+                        if (useContentStore() && !contentStore.isBlob(fileInfo.getPath())) {
+                            moveToContentStore(fileInfo);
+                            changes = stampChecksum(fileInfo, checksum);
+                            changes.put("path", fileInfo.getPath());
+                        }
+                        patchFileInfoRecord(fileInfo, changes);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("计算文件校验和失败: {} - {}", fileInfo.getPath(), e.getMessage());
             }
-            throw e;
+        };
+        try {
+            catalogMaintenance.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
         }
     }
     
-    @Override
-    public boolean uploadChunk(String fileId, MultipartFile chunk, int chunkNumber, int totalChunks, String userId) throws IOException {
-        // Initialize chunk tracker for this file if not exists
-        chunkTracker.putIfAbsent(fileId, new ConcurrentHashMap<>());
-        Map<Integer, Boolean> fileChunks = chunkTracker.get(fileId);
-        
-        // Create temp directory for chunks if not exists
+    private FileInfo combineChunks(String fileId, int totalChunks, String userId) throws IOException {
+        FileInfo fileInfo = chunkedFileInfo(fileId, userId);
         String chunkDirectory = uploadDirectory + File.separator + "chunks" + File.separator + fileId;
-        File directory = new File(chunkDirectory);
-        if (!directory.exists()) {
-            directory.mkdirs();
-        }
-        
-        // Save chunk
-        String chunkPath = chunkDirectory + File.separator + chunkNumber;
-        File chunkFile = new File(chunkPath);
-        chunk.transferTo(chunkFile);
+        String outputPath = chunkedOutputPath(fileInfo, fileId);
         
-        // Mark chunk as received
-        fileChunks.put(chunkNumber, true);
+        // Combine chunks
+        // 每个分块被内存映射后先更新摘要，再通过 FileChannel 写入目标文件：
+        // 数据只从页缓存读取一次，不在堆上分配分块大小的数组，也不需要事后重新读取整个文件计算校验和
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Failed to calculate checksum", e);
+        }
         
-        // Check if all chunks are received
-        if (fileChunks.size() == totalChunks) {
-            boolean allChunksReceived = true;
+        long started = System.currentTimeMillis();
+        try (FileChannel out = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long totalSize = 0;
+            
             for (int i = 0; i < totalChunks; i++) {
-                if (!fileChunks.containsKey(i)) {
-                    allChunksReceived = false;
-                    break;
-                }
+                File chunkFile = new File(chunkDirectory + File.separator + i);
+                totalSize += appendChunk(chunkFile, out, md);
             }
             
-            if (allChunksReceived) {
-                // Combine chunks
-                FileInfo fileInfo = combineChunks(fileId, totalChunks, userId);
-                
-                // Clean up chunks
-                for (int i = 0; i < totalChunks; i++) {
-                    File file = new File(chunkDirectory + File.separator + i);
-                    file.delete();
-                }
-                directory.delete();
-                
-                // Remove from chunk tracker
-                chunkTracker.remove(fileId);
-                
-                return true;
+            fileInfo.setPath(outputPath);
+            fileInfo.setSize(totalSize);
+            fileInfo.setStatus("UPLOADED");
+            
+            // 校验和在合并过程中已计算
+            out.force(false);
+            stampChecksum(fileInfo, toHex(md.digest()));
+            
+            long elapsed = Math.max(1, System.currentTimeMillis() - started);
+            logger.info("分块合并完成: id={}, 分块数={}, 大小={}, 耗时={} ms, 速度={} MB/s",
+                    fileId, totalChunks, totalSize, elapsed, (totalSize / 1024 / 1024) * 1000 / elapsed);
+        }
+        
+        // Store file info
+        synchronized (this) {
+            if (useContentStore()) {
+                moveToContentStore(fileInfo);
             }
+            putFileInfoRecord(fileInfo);
+            // Update user storage usage：逐块的预留转为合并后的实际大小
+            userService.commitStorage(fileId, userId, fileInfo.getSize());
         }
         
-        return false;
+        if (useChunkStore()) {
+            scheduleChecksum(fileInfo, null);
+        }
+        
+        return fileInfo;
     }
     
-    private FileInfo combineChunks(String fileId, int totalChunks, String userId) throws IOException {
+    /**
+     * 分块上传完成后使用的文件信息（已有记录时沿用）
+     */
+    private FileInfo chunkedFileInfo(String fileId, String userId) {
         FileInfo fileInfo = getFileInfo(fileId);
         if (fileInfo == null) {
             fileInfo = new FileInfo();
             fileInfo.setId(fileId);
             fileInfo.setUploadedBy(userId);
+            fileInfo.setUploadDate(new Date());
             
             // Calculate expiry date
             Calendar calendar = Calendar.getInstance();
             calendar.add(Calendar.DAY_OF_MONTH, fileExpiryDays);
             fileInfo.setExpiryDate(calendar.getTime());
         }
-        
+        return fileInfo;
+    }
+    
+    /**
+     * 分块上传完成后文件在用户目录中的路径
+     */
+    private String chunkedOutputPath(FileInfo fileInfo, String fileId) {
         // 确保用户文件目录存在
         if (userFilesDirectory == null || userFilesDirectory.trim().isEmpty()) {
             userFilesDirectory = uploadDirectory + File.separator + "user_files";
@@ -699,7 +1905,6 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             userFilesDir.mkdirs();
         }
         
-        String chunkDirectory = uploadDirectory + File.separator + "chunks" + File.separator + fileId;
         // 使用原始文件名存储，确保文件名安全
         String originalFileName = fileInfo.getOriginalFileName();
         String safeFileName = originalFileName;
@@ -713,39 +1918,29 @@ private final ObjectMapper objectMapper = new ObjectMapper();
                 safeFileName = safeFileName.substring(0, 200);
             }
         }
-        String outputPath = userFilesDirectory + File.separator + safeFileName;
-        
-        // Combine chunks
-        try (FileOutputStream fos = new FileOutputStream(outputPath)) {
-            long totalSize = 0;
-            
-            for (int i = 0; i < totalChunks; i++) {
-                File chunkFile = new File(chunkDirectory + File.separator + i);
-                byte[] chunkData = Files.readAllBytes(chunkFile.toPath());
-                fos.write(chunkData);
-                totalSize += chunkData.length;
-            }
-            
-            fileInfo.setPath(outputPath);
-            fileInfo.setSize(totalSize);
-            fileInfo.setStatus("UPLOADED");
-            
-            // Calculate checksum
-            fileInfo.setChecksum(calculateChecksum(new File(outputPath)));
-            
-            // Update user storage usage
-            userService.updateStorageUsed(userId, totalSize, true);
-            
-            // Store file info
-            fileInfoMap.put(fileInfo.getId(), fileInfo);
-            
-            // 保存文件信息到文件，使用同步块确保线程安全
-            synchronized (this) {
-                saveFileInfo(new ArrayList<>(fileInfoMap.values()));
+        return userFilesDirectory + File.separator + safeFileName;
+    }
+    
+    /**
+     * 把一个分块追加到目标通道并更新摘要，返回分块大小
+     */
+    private long appendChunk(File chunkFile, FileChannel out, MessageDigest md) throws IOException {
+        try (FileChannel in = FileChannel.open(chunkFile.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                // 按窗口映射，避免超过单个映射的 2GB 限制
+                long length = Math.min(CHUNK_MAP_WINDOW, size - position);
+                MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                md.update(buffer);
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                position += length;
             }
+            return size;
         }
-        
-        return fileInfo;
     }
     
     @Override
@@ -761,15 +1956,30 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         }
         
         // Update download count
-        fileInfo.setDownloadCount(fileInfo.getDownloadCount() + 1);
-        fileInfoMap.put(fileId, fileInfo);
-        
-        // 保存文件信息到文件
-        saveFileInfo(new ArrayList<>(fileInfoMap.values()));
+        incrementDownloadCount(fileInfo);
         
         return file;
     }
     
+    @Override
+    public void recordDownloads(Collection<String> fileIds) {
+        for (String fileId : fileIds) {
+            FileInfo fileInfo = getFileInfo(fileId);
+            if (fileInfo != null) {
+                incrementDownloadCount(fileInfo);
+            }
+        }
+    }
+    
+    private synchronized void incrementDownloadCount(FileInfo fileInfo) {
+        // 记录已被并发删除或替换时不计数
+        if (fileInfoMap.get(fileInfo.getId()) != fileInfo) {
+            return;
+        }
+        fileInfo.setDownloadCount(fileInfo.getDownloadCount() + 1);
+        patchFileInfoRecord(fileInfo, Collections.singletonMap("downloadCount", fileInfo.getDownloadCount()));
+    }
+    
     @Override
     public FileInfo getFileInfo(String fileId) {
         return fileInfoMap.get(fileId);
@@ -778,40 +1988,23 @@ private final ObjectMapper objectMapper = new ObjectMapper();
     @Override
     public List<FileInfo> getUserFiles(String userId) {
         try {
-        List<FileInfo> userFiles = fileInfoMap.values().stream()
-                .filter(fileInfo -> fileInfo.getUploadedBy().equals(userId))
-                .collect(Collectors.toList());
+        List<FileInfo> userFiles = resolveFileIds(catalogIndex.getUserFileIds(userId));
         
         // 添加日志记录每个文件的信息，帮助调试
         logger.debug("获取用户文件列表，用户ID: {}, 文件数量: {}", userId, userFiles.size());
             
-            // 检查文件是否存在于磁盘上
+            // 根据缓存的存在状态过滤文件（不在请求线程上访问磁盘）
             List<FileInfo> validFiles = new ArrayList<>();
         for (FileInfo file : userFiles) {
-                File physicalFile = new File(file.getPath());
-                boolean exists = physicalFile.exists();
-                
-                logger.debug("文件信息: id={}, fileName={}, originalFileName={}, 路径={}, 是否存在={}",
-                    file.getId(), 
-                    file.getFileName(), 
-                    file.getOriginalFileName(),
-                        file.getPath(),
-                        exists);
-                
-                if (exists) {
+                if (existenceCache.isPresent(file.getPath())) {
                     validFiles.add(file);
-                } else {
-                    logger.warn("文件不存在于磁盘，但存在于记录中: {}", file.getPath());
-                    // 可以选择从fileInfoMap中移除不存在的文件记录
-                    // fileInfoMap.remove(file.getId());
                 }
             }
             
-            // 如果有文件不存在，更新文件信息
+            // 如果有文件不存在，在后台移除对应记录
             if (validFiles.size() < userFiles.size()) {
                 logger.warn("有{}个文件不存在于磁盘，已从结果中移除", userFiles.size() - validFiles.size());
-                // 可以选择保存更新后的文件信息
-                // saveFileInfo();
+                scheduleMissingFilePrune();
             }
             
             return validFiles; // 返回存在的文件
@@ -833,20 +2026,10 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             return false;
         }
         
-        // Delete physical file
-        File file = new File(fileInfo.getPath());
-        boolean deleted = file.delete();
+        // Delete physical file and file info (user storage usage is updated together with the record)
+        boolean deleted = deleteStoredFile(fileInfo);
         
         if (deleted) {
-            // Update user storage usage
-            userService.updateStorageUsed(userId, fileInfo.getSize(), false);
-            
-            // Remove file info
-            fileInfoMap.remove(fileId);
-            
-            // 保存文件信息到文件
-            saveFileInfo(new ArrayList<>(fileInfoMap.values()));
-            
             logger.info("File deleted: {}", fileInfo);
         }
         
@@ -865,7 +2048,47 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             throw new FileNotFoundException("File not found at path: " + fileInfo.getPath());
         }
         
-        return new FileInputStream(file);
+        return chunkStore.isManifest(fileInfo.getPath()) ? chunkStore.open(file) : new FileInputStream(file);
+    }
+    
+    @Override
+    public File getContentFile(String fileId) throws IOException {
+        FileInfo fileInfo = getFileInfo(fileId);
+        if (fileInfo == null) {
+            throw new FileNotFoundException("File not found with ID: " + fileId);
+        }
+        
+        File file = new File(fileInfo.getPath());
+        if (!file.exists()) {
+            throw new FileNotFoundException("File not found at path: " + fileInfo.getPath());
+        }
+        
+        return chunkStore.isManifest(fileInfo.getPath()) ? null : file;
+    }
+    
+    @Override
+    public ByteBuffer getCachedContent(String fileId) throws IOException {
+        FileInfo fileInfo = getFileInfo(fileId);
+        if (fileInfo == null) {
+            throw new FileNotFoundException("File not found with ID: " + fileId);
+        }
+        
+        // 路径和大小作为版本：内容移入块存储或分块存储后路径变化，旧条目不再返回
+        return hotFileCache.get(fileId, fileInfo.getPath() + ":" + fileInfo.getSize(), fileInfo.getSize(),
+                () -> getFileAsStream(fileId));
+    }
+    
+    @Override
+    public Map<String, Object> getStorageStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("layout", useChunkStore() ? "cdc" : useContentStore() ? "cas" : "flat");
+        stats.put("files", fileInfoMap.size());
+        stats.put("contentBlobs", contentStore.getBlobCount());
+        stats.put("chunkStore", chunkStore.getStats());
+        stats.put("hotCache", hotFileCache.getStats());
+        stats.put("expiryCleanup", lastExpiryCleanup);
+        stats.put("quota", userService.getQuotaStats());
+        return stats;
     }
     
     @Override
@@ -883,12 +2106,15 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         existingFileInfo.setFileName(fileInfo.getFileName());
         existingFileInfo.setDescription(fileInfo.getDescription());
         existingFileInfo.setPublic(fileInfo.isPublic());
+        hotFileCache.invalidate(existingFileInfo.getId());
         
         // Store updated file info
-        fileInfoMap.put(existingFileInfo.getId(), existingFileInfo);
-        
-        // 保存文件信息到文件
-        saveFileInfo(new ArrayList<>(fileInfoMap.values()));
+        Map<String, Object> changes = new LinkedHashMap<>();
+        changes.put("fileName", existingFileInfo.getFileName());
+        changes.put("originalFileName", existingFileInfo.getOriginalFileName());
+        changes.put("description", existingFileInfo.getDescription());
+        changes.put("public", existingFileInfo.isPublic());
+        patchFileInfoRecord(existingFileInfo, changes);
         
         return existingFileInfo;
     }
@@ -901,13 +2127,55 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         
         String lowerQuery = query.toLowerCase();
         
-        return fileInfoMap.values().stream()
-                .filter(fileInfo -> fileInfo.getUploadedBy().equals(userId) &&
-                        (fileInfo.getFileName().toLowerCase().contains(lowerQuery) ||
-                         (fileInfo.getDescription() != null && fileInfo.getDescription().toLowerCase().contains(lowerQuery))))
+        return resolveFileIds(catalogIndex.getUserFileIds(userId)).stream()
+                .filter(fileInfo -> matchesQuery(fileInfo, lowerQuery))
                 .collect(Collectors.toList());
     }
     
+    private boolean matchesQuery(FileInfo fileInfo, String lowerQuery) {
+        return fileInfo.getFileName().toLowerCase().contains(lowerQuery) ||
+                (fileInfo.getDescription() != null && fileInfo.getDescription().toLowerCase().contains(lowerQuery));
+    }
+    
+    @Override
+    public FilePage getUserFilesPage(String userId, String query, String sort, boolean descending,
+                                     String cursor, int limit) {
+        FileCatalogIndex.SortField sortField = FileCatalogIndex.SortField.fromParameter(sort);
+        String lowerQuery = query != null && !query.isEmpty() ? query.toLowerCase() : null;
+        
+        // 从游标位置开始按索引顺序取记录，多取一条用于判断是否还有下一页
+        Iterator<String> fileIds = catalogIndex.iterateUserFileIds(userId, sortField, descending, cursor);
+        List<FileInfo> items = new ArrayList<>();
+        boolean hasMore = false;
+        boolean missing = false;
+        while (fileIds.hasNext()) {
+            FileInfo fileInfo = fileInfoMap.get(fileIds.next());
+            if (fileInfo == null) {
+                continue;
+            }
+            if (!existenceCache.isPresent(fileInfo.getPath())) {
+                missing = true;
+                continue;
+            }
+            if (lowerQuery != null && !matchesQuery(fileInfo, lowerQuery)) {
+                continue;
+            }
+            if (limit > 0 && items.size() >= limit) {
+                hasMore = true;
+                break;
+            }
+            items.add(fileInfo);
+        }
+        
+        if (missing) {
+            scheduleMissingFilePrune();
+        }
+        
+        String nextCursor = hasMore ? FileCatalogIndex.encodeCursor(items.get(items.size() - 1), sortField) : null;
+        Integer totalCount = lowerQuery == null ? catalogIndex.getUserFileCount(userId) : null;
+        return new FilePage(items, nextCursor, totalCount);
+    }
+    
     @Override
     public String calculateChecksum(String fileId) throws IOException {
         FileInfo fileInfo = getFileInfo(fileId);
@@ -915,37 +2183,74 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             throw new FileNotFoundException("File not found with ID: " + fileId);
         }
         
+        // 文件自上次计算后没有变化时直接返回保存的校验和
+        File file = new File(fileInfo.getPath());
+        if (fileInfo.getChecksum() != null && file.length() == fileInfo.getChecksumFileSize()
+                && file.lastModified() == fileInfo.getChecksumFileModified()) {
+            return fileInfo.getChecksum();
+        }
+        
+        logger.info("重新计算文件校验和: id={}, path={}", fileId, fileInfo.getPath());
+        String checksum;
+        try (InputStream in = openContent(fileInfo)) {
+            checksum = calculateChecksum(in);
+        }
+        synchronized (this) {
+            if (fileInfoMap.get(fileId) == fileInfo) {
+                patchFileInfoRecord(fileInfo, stampChecksum(fileInfo, checksum));
+            }
+        }
+        return checksum;
+    }
+    
+    /**
+     * 设置校验和并记录文件当前的大小和修改时间，返回变更的属性（用于写日志）
+     */
+    private Map<String, Object> stampChecksum(FileInfo fileInfo, String checksum) {
         File file = new File(fileInfo.getPath());
-        return calculateChecksum(file);
+        fileInfo.setChecksum(checksum);
+        fileInfo.setChecksumFileSize(file.length());
+        fileInfo.setChecksumFileModified(file.lastModified());
+        
+        Map<String, Object> changes = new HashMap<>();
+        changes.put("checksum", checksum);
+        changes.put("checksumFileSize", fileInfo.getChecksumFileSize());
+        changes.put("checksumFileModified", fileInfo.getChecksumFileModified());
+        return changes;
     }
     
     private String calculateChecksum(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return calculateChecksum(fis);
+        }
+    }
+    
+    private String calculateChecksum(InputStream in) throws IOException {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    md.update(buffer, 0, bytesRead);
-                }
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                md.update(buffer, 0, bytesRead);
             }
             
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
+            return toHex(md.digest());
         } catch (NoSuchAlgorithmException e) {
             throw new IOException("Failed to calculate checksum", e);
         }
     }
     
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+    
     @Override
     public List<FileInfo> getPublicFiles() {
-        return fileInfoMap.values().stream()
-                .filter(FileInfo::isPublic)
-                .collect(Collectors.toList());
+        return resolveFileIds(catalogIndex.getPublicFileIds());
     }
     
     @Override
@@ -961,47 +2266,173 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         }
         
         fileInfo.setPublic(isPublic);
-        fileInfoMap.put(fileId, fileInfo);
-        
-        // 保存文件信息到文件
-        saveFileInfo(new ArrayList<>(fileInfoMap.values()));
+        patchFileInfoRecord(fileInfo, Collections.singletonMap("public", isPublic));
         
         return fileInfo;
     }
     
     @Override
     public int cleanupExpiredFiles() {
-        int count = 0;
-        Date now = new Date();
+        long now = System.currentTimeMillis();
+        long started = System.nanoTime();
         
-        List<String> expiredFileIds = fileInfoMap.values().stream()
-                .filter(fileInfo -> fileInfo.getExpiryDate() != null && fileInfo.getExpiryDate().before(now))
-                .map(FileInfo::getId)
-                .collect(Collectors.toList());
-        
-        for (String fileId : expiredFileIds) {
+        // 只取出过期索引中到期的记录，不遍历整个目录
+        List<FileInfo> expired = new ArrayList<>();
+        for (String fileId : expiryIndex.pollExpired(now)) {
             FileInfo fileInfo = getFileInfo(fileId);
-            if (fileInfo != null) {
-                File file = new File(fileInfo.getPath());
-                if (file.delete()) {
-                    // Update user storage usage
-                    userService.updateStorageUsed(fileInfo.getUploadedBy(), fileInfo.getSize(), false);
-                    
-                    // Remove file info
-                    fileInfoMap.remove(fileId);
-                    count++;
-                    
-                    logger.info("Expired file deleted: {}", fileInfo);
+            if (fileInfo == null || fileInfo.getExpiryDate() == null) {
+                continue;
+            }
+            if (fileInfo.getExpiryDate().getTime() > now) {
+                // 取出后过期时间被修改
+                indexExpiry(fileInfo);
+                continue;
+            }
+            expired.add(fileInfo);
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        
+        // 先在锁内重新确认记录没有被替换或删除、过期时间没有被延长，并移除记录，之后才删除文件：
+        // 文件删除时记录已经不可见，不会留下指向已删除文件的记录。所有记录的删除合并为一次目录提交，
+        // 释放的空间按用户汇总后在同一把锁内一次提交到配额账本
+        List<FileInfo> deleted = new ArrayList<>(expired.size());
+        List<FileInfo> plainFiles = new ArrayList<>();
+        Map<String, Long> storageDeltas = new HashMap<>();
+        synchronized (this) {
+            deferCatalogCommit = true;
+            try {
+                for (FileInfo fileInfo : expired) {
+                    if (fileInfoMap.get(fileInfo.getId()) != fileInfo) {
+                        continue;
+                    }
+                    if (fileInfo.getExpiryDate() == null || fileInfo.getExpiryDate().getTime() > now) {
+                        indexExpiry(fileInfo);
+                        continue;
+                    }
+                    String path = fileInfo.getPath();
+                    removeFileInfoRecord(fileInfo.getId());
+                    if (fileInfo.getUploadedBy() != null) {
+                        storageDeltas.merge(fileInfo.getUploadedBy(), -fileInfo.getSize(), Long::sum);
+                    }
+                    if (!contentStore.isBlob(path)) {
+                        plainFiles.add(fileInfo);
+                        continue;
+                    }
+                    // 共享的内容块在锁内确认没有其他引用后才能删除
+                    if (contentStore.getReferenceCount(path) == 0 && !new File(path).delete()) {
+                        logger.warn("删除内容块失败: {}", path);
+                    }
+                    deleted.add(fileInfo);
+                }
+            } finally {
+                deferCatalogCommit = false;
+            }
+            catalogHandle.markDirty();
+            userService.updateStorageUsed(storageDeltas);
+        }
+        
+        // 单独存放的文件在 I/O 线程池中并行删除；删除失败（例如文件被占用）的恢复记录和用量，稍后重试
+        List<FileInfo> removedFiles = deletePhysicalFiles(plainFiles);
+        deleted.addAll(removedFiles);
+        if (removedFiles.size() < plainFiles.size()) {
+            Set<FileInfo> done = Collections.newSetFromMap(new IdentityHashMap<>());
+            done.addAll(removedFiles);
+            synchronized (this) {
+                for (FileInfo fileInfo : plainFiles) {
+                    if (done.contains(fileInfo) || fileInfoMap.containsKey(fileInfo.getId())) {
+                        continue;
+                    }
+                    logger.warn("删除过期文件失败，稍后重试: {}", fileInfo.getPath());
+                    putFileInfoRecord(fileInfo);
+                    if (fileInfo.getUploadedBy() != null) {
+                        userService.updateStorageUsed(fileInfo.getUploadedBy(), fileInfo.getSize(), true);
+                    }
+                    expiryIndex.schedule(fileInfo.getId(), now + EXPIRY_RETRY_DELAY);
                 }
             }
         }
         
-        // 如果有文件被删除，保存文件信息到文件
-        if (count > 0) {
-            saveFileInfo(new ArrayList<>(fileInfoMap.values()));
+        long bytes = 0;
+        for (FileInfo fileInfo : deleted) {
+            bytes += fileInfo.getSize();
+            logger.debug("Expired file deleted: {}", fileInfo);
+        }
+        
+        double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("time", new Date(now));
+        report.put("expired", expired.size());
+        report.put("deleted", deleted.size());
+        report.put("failed", expired.size() - deleted.size());
+        report.put("bytes", bytes);
+        report.put("users", storageDeltas.size());
+        report.put("durationMillis", Math.round(seconds * 1000));
+        report.put("filesPerSecond", deleted.size() / seconds);
+        report.put("bytesPerSecond", bytes / seconds);
+        lastExpiryCleanup = report;
+        logger.info("过期文件清理完成: 删除 {} 个文件（{} 个失败），{} 字节，{} 个用户，耗时 {} ms，{} 文件/秒",
+                deleted.size(), expired.size() - deleted.size(), bytes, storageDeltas.size(),
+                report.get("durationMillis"), String.format("%.1f", deleted.size() / seconds));
+        
+        return deleted.size();
+    }
+    
+    /**
+     * 把文件分成若干份在 I/O 线程池中删除，返回删除成功的文件
+     */
+    private List<FileInfo> deletePhysicalFiles(List<FileInfo> files) {
+        List<FileInfo> deleted = new ArrayList<>(files.size());
+        if (files.isEmpty()) {
+            return deleted;
+        }
+        int parts = Math.min(files.size(), Math.max(1, expiryCleanupThreads));
+        List<Callable<List<FileInfo>>> tasks = new ArrayList<>(parts);
+        for (int part = 0; part < parts; part++) {
+            List<FileInfo> slice = files.subList(files.size() * part / parts, files.size() * (part + 1) / parts);
+            tasks.add(() -> {
+                List<FileInfo> done = new ArrayList<>(slice.size());
+                for (FileInfo fileInfo : slice) {
+                    File file = new File(fileInfo.getPath());
+                    if (file.delete() || !file.exists()) {
+                        done.add(fileInfo);
+                    }
+                }
+                return done;
+            });
         }
         
-        return count;
+        List<Future<List<FileInfo>>> results;
+        try {
+            results = expiryCleanupPool != null ? expiryCleanupPool.invokeAll(tasks) : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            results = null;
+        } catch (RejectedExecutionException e) {
+            results = null;
+        }
+        if (results == null) {
+            // 线程池不可用（未启动或正在关闭）时在当前线程删除
+            for (Callable<List<FileInfo>> task : tasks) {
+                try {
+                    deleted.addAll(task.call());
+                } catch (Exception e) {
+                    logger.error("删除过期文件失败: {}", e.getMessage(), e);
+                }
+            }
+        } else {
+            for (Future<List<FileInfo>> result : results) {
+                try {
+                    deleted.addAll(result.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    logger.error("删除过期文件失败: {}", e.getCause().getMessage(), e.getCause());
+                }
+            }
+        }
+        return deleted;
     }
     
     @Override
@@ -1087,11 +2518,11 @@ private final ObjectMapper objectMapper = new ObjectMapper();
                 previewData.put("previewType", "text");
                 
                 // 限制大小，最多读取前100KB
-                long maxSize = Math.min(file.length(), 100 * 1024);
+                long maxSize = Math.min(fileInfo.getSize(), 100 * 1024);
                 byte[] buffer = new byte[(int) maxSize];
                 
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    fis.read(buffer);
+                try (InputStream in = openContent(fileInfo)) {
+                    IOUtils.read(in, buffer);
                 }
                 
                 // 将内容转换为字符串（尝试检测编码）
@@ -1221,24 +2652,25 @@ private final ObjectMapper objectMapper = new ObjectMapper();
     }
     
     @Override
-    public void reloadFileInfo() {
+    public synchronized void reloadFileInfo() {
         logger.info("重新加载文件信息");
-        fileInfoMap.clear();
         List<FileInfo> loadedFiles = loadFileInfo();
-        for (FileInfo fileInfo : loadedFiles) {
-            fileInfoMap.put(fileInfo.getId(), fileInfo);
-        }
+        replaceCatalog(loadedFiles);
         logger.info("文件信息重新加载完成，共 {} 个文件", loadedFiles.size());
     }
     
+    @Override
+    public String getUserFilesVersion(String userId) {
+        return catalogEpoch + "-" + catalogIndex.getUserVersion(userId);
+    }
+    
     @Override
     public void updateFileList(List<FileInfo> files) {
         logger.info("更新文件列表，文件数量: {}", files.size());
-        fileInfoMap.clear();
-        for (FileInfo fileInfo : files) {
-            fileInfoMap.put(fileInfo.getId(), fileInfo);
+        synchronized (this) {
+            replaceCatalog(files);
+            writeSnapshotAndResetJournal(files);
         }
-        saveFileInfo(files);
         logger.info("文件列表更新完成");
     }
     
@@ -1248,7 +2680,7 @@ private final ObjectMapper objectMapper = new ObjectMapper();
             logger.info("重置文件信息");
             
             // 清空文件信息映射
-            fileInfoMap.clear();
+            replaceCatalog(Collections.<FileInfo>emptyList());
             
             // 删除旧的文件信息文件
             if (fileInfoFile != null) {
@@ -1257,10 +2689,14 @@ private final ObjectMapper objectMapper = new ObjectMapper();
                     boolean deleted = file.delete();
                     logger.info("删除旧的文件信息文件: {} - {}", fileInfoFile, deleted ? "成功" : "失败");
                 }
+                File binaryFile = binarySnapshotFile();
+                if (binaryFile.exists()) {
+                    binaryFile.delete();
+                }
             }
             
-            // 重新创建文件信息文件
-            saveFileInfo(new ArrayList<>());
+            // 重新创建文件信息文件，并丢弃旧的增量日志
+            writeSnapshotAndResetJournal(new ArrayList<>());
             
             // 扫描上传目录
             if (uploadDirectory != null) {
@@ -1272,7 +2708,7 @@ private final ObjectMapper objectMapper = new ObjectMapper();
                     scanDirectory(uploadDir, null);
                     
                     // 保存文件信息
-                    saveFileInfo(new ArrayList<>(fileInfoMap.values()));
+                    writeSnapshotAndResetJournal(new ArrayList<>(fileInfoMap.values()));
                     
                     logger.info("文件信息重置完成，共发现 {} 个文件", fileInfoMap.size());
                     return true;
@@ -1302,10 +2738,20 @@ private final ObjectMapper objectMapper = new ObjectMapper();
         }
         
         for (File file : files) {
+            // 隐藏的文件和目录是上传过程中的临时数据（流式上传的暂存文件、multipart 临时目录）
+            if (file.getName().startsWith(".")) {
+                continue;
+            }
             if (file.isDirectory()) {
+                // 内容块和分块由引用它们的记录共享，清单只能通过分块存储读取，都不能作为独立文件登记；
+                // 否则删除这样的记录会删掉共享的数据
+                File absolute = file.getAbsoluteFile();
+                if (absolute.equals(contentStore.getRoot()) || absolute.equals(chunkStore.getRoot())) {
+                    continue;
+                }
                 // 递归扫描子目录
                 scanDirectory(file, userId);
-            } else if (file.isFile() && !file.getName().equals("fileInfo.json")) {
+            } else if (file.isFile() && !file.getName().startsWith("fileInfo.") && !file.getName().endsWith(".part")) {
                 // 为文件创建FileInfo对象
                 String fileId = UUID.randomUUID().toString();
                 FileInfo fileInfo = new FileInfo();
@@ -1328,6 +2774,7 @@ private final ObjectMapper objectMapper = new ObjectMapper();
                 
                 // 添加到文件信息映射
                 fileInfoMap.put(fileId, fileInfo);
+                catalogIndex.put(fileInfo);
                 
                 logger.debug("发现文件: id={}, name={}, path={}", fileId, file.getName(), file.getAbsolutePath());
             }
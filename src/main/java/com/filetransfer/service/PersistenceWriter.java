@@ -0,0 +1,281 @@
+package com.filetransfer.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 共享的后台持久化写入器
+ *
+ * 各服务把自己的落盘动作注册为一个 {@link Target}，修改数据后只调用 {@link Handle#markDirty()}。
+ * 写入器按配置的模式合并多次修改，一次落盘：
+ * <ul>
+ *     <li>sync   - 在调用线程上立即写入（原有行为）</li>
+ *     <li>group  - 每 persistence.group.interval 毫秒批量写入一次</li>
+ *     <li>async  - 后台线程尽快写入，写入期间到达的修改合并到下一次</li>
+ * </ul>
+ * 需要确认数据已落盘的调用方使用 {@link Handle#awaitDurable()}，未能落盘时抛出 {@link DurabilityException}。
+ */
+@Service
+public class PersistenceWriter implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistenceWriter.class);
+
+    public static final String MODE_SYNC = "sync";
+    public static final String MODE_GROUP = "group";
+    public static final String MODE_ASYNC = "async";
+
+    // 等待落盘的最长时间，避免持续写入失败时请求线程永久阻塞
+    private static final long DURABILITY_TIMEOUT_MS = 10000;
+
+    @Value("${persistence.mode:group}")
+    private String mode = MODE_GROUP;
+
+    @Value("${persistence.group.interval:50}")
+    private long groupInterval = 50;
+
+    private final Object lock = new Object();
+    private final List<Handle> handles = new CopyOnWriteArrayList<>();
+
+    private Thread flusher;
+    private volatile boolean running;
+    private boolean urgent;
+
+    /**
+     * 一次完整的落盘动作
+     */
+    public interface Target {
+        void flush() throws IOException;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (mode == null || (!MODE_SYNC.equals(mode.trim()) && !MODE_ASYNC.equals(mode.trim()))) {
+            mode = MODE_GROUP;
+        } else {
+            mode = mode.trim();
+        }
+        if (groupInterval <= 0) {
+            groupInterval = 50;
+        }
+
+        logger.info("Persistence writer mode: {}, group interval: {} ms", mode, groupInterval);
+
+        if (MODE_SYNC.equals(mode) || running) {
+            return;
+        }
+
+        running = true;
+        flusher = new Thread(this::run, "persistence-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 注册一个落盘目标，返回用于标记修改和等待落盘的句柄
+     */
+    public Handle register(String name, Target target) {
+        Handle handle = new Handle(name, target);
+        handles.add(handle);
+        return handle;
+    }
+
+    /**
+     * 将所有未落盘的修改立即写入
+     */
+    public void flushAll() {
+        for (Handle handle : handles) {
+            handle.flushIfDirty();
+        }
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public void setGroupInterval(long groupInterval) {
+        this.groupInterval = groupInterval;
+    }
+
+    private boolean isSync() {
+        return !running;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                synchronized (lock) {
+                    if (MODE_GROUP.equals(mode)) {
+                        if (!urgent) {
+                            lock.wait(groupInterval);
+                        }
+                    } else {
+                        while (running && !urgent && !hasPending()) {
+                            lock.wait();
+                        }
+                    }
+                    urgent = false;
+                }
+                for (Handle handle : handles) {
+                    handle.flushIfDirty();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.error("Persistence writer loop failed", e);
+            }
+        }
+    }
+
+    private boolean hasPending() {
+        for (Handle handle : handles) {
+            if (handle.dirtyVersion > handle.flushedVersion) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // 关闭前把剩余修改写入磁盘
+        flushAll();
+    }
+
+    /**
+     * 修改未能在限定时间内落盘
+     */
+    public static class DurabilityException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public DurabilityException(String name, String reason) {
+            super("Failed to persist " + name + ": " + reason);
+        }
+    }
+
+    /**
+     * 单个落盘目标的句柄
+     */
+    public class Handle {
+        private final String name;
+        private final Target target;
+
+        // 以下两个计数由 lock 保护
+        private long dirtyVersion;
+        private long flushedVersion;
+
+        private Handle(String name, Target target) {
+            this.name = name;
+            this.target = target;
+        }
+
+        /**
+         * 标记数据已修改；sync 模式下在当前线程立即落盘
+         */
+        public void markDirty() {
+            synchronized (lock) {
+                dirtyVersion++;
+                if (MODE_ASYNC.equals(mode)) {
+                    lock.notifyAll();
+                }
+            }
+            if (isSync()) {
+                flushIfDirty();
+            }
+        }
+
+        /**
+         * 持久化屏障：等待调用前的所有修改都已落盘
+         *
+         * @throws DurabilityException 超时、线程被中断或落盘失败时抛出，调用方应让请求失败
+         */
+        public void awaitDurable() {
+            long required;
+            synchronized (lock) {
+                required = dirtyVersion;
+            }
+
+            if (!isSync()) {
+                long deadline = System.currentTimeMillis() + DURABILITY_TIMEOUT_MS;
+                synchronized (lock) {
+                    if (flushedVersion < required) {
+                        urgent = true;
+                        lock.notifyAll();
+                    }
+                    while (running && flushedVersion < required) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            logger.warn("Timed out waiting for {} to be persisted", name);
+                            break;
+                        }
+                        try {
+                            lock.wait(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new DurabilityException(name, "interrupted");
+                        }
+                    }
+                }
+            }
+
+            if (isSync()) {
+                flushIfDirty();
+            }
+
+            synchronized (lock) {
+                if (flushedVersion < required) {
+                    throw new DurabilityException(name, "changes not persisted");
+                }
+            }
+        }
+
+        private synchronized void flushIfDirty() {
+            long version;
+            synchronized (lock) {
+                version = dirtyVersion;
+                if (version <= flushedVersion) {
+                    return;
+                }
+            }
+
+            try {
+                target.flush();
+            } catch (Exception e) {
+                // 保持脏标记，下一轮重试
+                logger.error("Failed to persist {}: {}", name, e.getMessage(), e);
+                return;
+            }
+
+            synchronized (lock) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Persisted {} ({} changes coalesced)", name, version - flushedVersion);
+                }
+                flushedVersion = Math.max(flushedVersion, version);
+                lock.notifyAll();
+            }
+        }
+    }
+}
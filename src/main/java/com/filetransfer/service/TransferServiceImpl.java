@@ -1,6 +1,7 @@
 package com.filetransfer.service;
 
 import com.filetransfer.model.TransferRequest;
+import com.filetransfer.util.ExpiryWheel;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
@@ -42,6 +43,14 @@ public class TransferServiceImpl implements TransferService {
     // In-memory cache for transfer requests
     private final Map<String, TransferRequest> transferRequestMap = new ConcurrentHashMap<>();
     
+    // 尚未标记为过期的传输请求按过期时间索引（精度 1 秒），清理时只处理到期的记录
+    private final ExpiryWheel<String> expiryIndex = new ExpiryWheel<>(1000, System.currentTimeMillis());
+    
+    @Autowired
+    private PersistenceWriter persistenceWriter;
+    
+    private PersistenceWriter.Handle transfersHandle;
+    
     @PostConstruct
     public void init() {
         // 确保基础目录存在
@@ -55,6 +64,9 @@ public class TransferServiceImpl implements TransferService {
         
         // 加载传输请求数据
         loadTransferRequests();
+        
+        // transferRequests.json 由持久化写入器批量落盘
+        transfersHandle = persistenceWriter.register("transferRequests", this::saveTransferRequests);
     }
     
     /**
@@ -72,10 +84,12 @@ public class TransferServiceImpl implements TransferService {
             
             // 清空当前缓存
             transferRequestMap.clear();
+            expiryIndex.clear();
             
             // 将传输请求添加到缓存
             for (TransferRequest request : requests) {
                 transferRequestMap.put(request.getId(), request);
+                indexExpiry(request);
             }
             
             logger.info("Loaded {} transfer requests from file", requests.size());
@@ -87,14 +101,11 @@ public class TransferServiceImpl implements TransferService {
     /**
      * 将传输请求数据保存到文件
      */
-    private void saveTransferRequests() {
-        try {
-            List<TransferRequest> requests = new ArrayList<>(transferRequestMap.values());
-            objectMapper.writeValue(new File(transferRequestFile), requests);
-            logger.info("Saved {} transfer requests to file", requests.size());
-        } catch (IOException e) {
-            logger.error("Failed to save transfer request data", e);
-        }
+    private void saveTransferRequests() throws IOException {
+        // 失败时向持久化写入器抛出异常：保持脏标记重试，等待落盘的调用方也能得知失败
+        List<TransferRequest> requests = new ArrayList<>(transferRequestMap.values());
+        objectMapper.writeValue(new File(transferRequestFile), requests);
+        logger.info("Saved {} transfer requests to file", requests.size());
     }
     
     @Override
@@ -133,9 +144,19 @@ public class TransferServiceImpl implements TransferService {
         
         // Store transfer request in memory cache
         transferRequestMap.put(transferRequest.getId(), transferRequest);
+        indexExpiry(transferRequest);
         
-        // Save to file
-        saveTransferRequests();
+        // Save to file, the access link is handed out right away
+        // 未能落盘则撤销该请求，请求失败
+        transfersHandle.markDirty();
+        try {
+            transfersHandle.awaitDurable();
+        } catch (PersistenceWriter.DurabilityException e) {
+            transferRequestMap.remove(transferRequest.getId(), transferRequest);
+            expiryIndex.cancel(transferRequest.getId());
+            transfersHandle.markDirty();
+            throw e;
+        }
         
         logger.info("Transfer request created: {}", transferRequest);
         
@@ -191,7 +212,7 @@ public class TransferServiceImpl implements TransferService {
         transferRequestMap.put(transferId, transferRequest);
         
         // Save to file
-        saveTransferRequests();
+        transfersHandle.markDirty();
         
         logger.info("Transfer request cancelled: {}", transferRequest);
         
@@ -222,7 +243,7 @@ public class TransferServiceImpl implements TransferService {
         transferRequestMap.put(transferId, transferRequest);
         
         // Save to file
-        saveTransferRequests();
+        transfersHandle.markDirty();
         
         return transferRequest;
     }
@@ -247,9 +268,10 @@ public class TransferServiceImpl implements TransferService {
         
         // Store updated transfer request
         transferRequestMap.put(existingTransferRequest.getId(), existingTransferRequest);
+        indexExpiry(existingTransferRequest);
         
         // Save to file
-        saveTransferRequests();
+        transfersHandle.markDirty();
         
         return existingTransferRequest;
     }
@@ -257,17 +279,20 @@ public class TransferServiceImpl implements TransferService {
     @Override
     public int cleanupExpiredTransferRequests() {
         int count = 0;
-        Date now = new Date();
+        long now = System.currentTimeMillis();
         
-        List<String> expiredTransferIds = transferRequestMap.values().stream()
-                .filter(transferRequest -> transferRequest.getExpiryDate() != null && 
-                        transferRequest.getExpiryDate().before(now))
-                .map(TransferRequest::getId)
-                .collect(Collectors.toList());
+        // 只取出过期索引中到期的记录，不遍历全部传输请求
+        List<String> expiredTransferIds = expiryIndex.pollExpired(now);
         
         for (String transferId : expiredTransferIds) {
             TransferRequest transferRequest = getTransferRequest(transferId);
-            if (transferRequest != null) {
+            if (transferRequest != null && transferRequest.getExpiryDate() != null
+                    && !"EXPIRED".equals(transferRequest.getStatus())) {
+                if (transferRequest.getExpiryDate().getTime() > now) {
+                    // 取出后过期时间被修改
+                    indexExpiry(transferRequest);
+                    continue;
+                }
                 transferRequest.setStatus("EXPIRED");
                 transferRequestMap.put(transferId, transferRequest);
                 count++;
@@ -278,9 +303,20 @@ public class TransferServiceImpl implements TransferService {
         
         // 如果有传输请求过期，保存到文件
         if (count > 0) {
-            saveTransferRequests();
+            transfersHandle.markDirty();
         }
         
         return count;
     }
+    
+    /**
+     * 更新过期索引；已经标记为过期的请求不再索引
+     */
+    private void indexExpiry(TransferRequest transferRequest) {
+        if (transferRequest.getExpiryDate() != null && !"EXPIRED".equals(transferRequest.getStatus())) {
+            expiryIndex.schedule(transferRequest.getId(), transferRequest.getExpiryDate().getTime());
+        } else {
+            expiryIndex.cancel(transferRequest.getId());
+        }
+    }
 } 
\ No newline at end of file
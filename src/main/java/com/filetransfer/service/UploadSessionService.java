@@ -0,0 +1,42 @@
+package com.filetransfer.service;
+
+import com.filetransfer.model.UploadSession;
+
+/**
+ * 可续传上传会话的存储
+ * 会话状态持久化到 uploadSessions.json，应用重启后分块上传和 tus 上传都可以继续
+ */
+public interface UploadSessionService {
+    
+    /**
+     * 获取上传会话
+     * @return 会话，不存在时返回 null
+     */
+    UploadSession getSession(String sessionId);
+    
+    /**
+     * 创建上传会话并等待其落盘
+     */
+    UploadSession createSession(UploadSession session);
+    
+    /**
+     * 记录会话有新的进展（收到分块或字节），顺延过期时间
+     */
+    void touch(UploadSession session);
+    
+    /**
+     * 上传完成后移除会话；并发请求中只有一个调用会返回 true，由它负责完成文件
+     */
+    boolean completeSession(UploadSession session);
+    
+    /**
+     * 取消会话并删除已上传的临时数据
+     */
+    boolean removeSession(String sessionId);
+    
+    /**
+     * 清理长时间没有进展的会话及其临时数据
+     * @return 清理的会话数量
+     */
+    int cleanupExpiredSessions();
+}
@@ -0,0 +1,195 @@
+package com.filetransfer.service;
+
+import com.filetransfer.model.UploadSession;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Implementation of the UploadSessionService interface
+ */
+@Service
+public class UploadSessionServiceImpl implements UploadSessionService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessionServiceImpl.class);
+    
+    @Value("${file.upload.directory}")
+    private String baseDirectory;
+    
+    // 会话在没有任何进展多少小时后过期
+    @Value("${upload.session.expiry.hours:24}")
+    private int sessionExpiryHours;
+    
+    private String sessionFile;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    
+    @Autowired
+    private PersistenceWriter persistenceWriter;
+    
+    // 未完成的上传会话占用的配额预留
+    @Autowired
+    private UserService userService;
+    
+    private PersistenceWriter.Handle sessionsHandle;
+    
+    @PostConstruct
+    public void init() {
+        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        
+        File baseDir = new File(baseDirectory);
+        if (!baseDir.exists()) {
+            baseDir.mkdirs();
+        }
+        
+        sessionFile = baseDirectory + File.separator + "uploadSessions.json";
+        loadSessions();
+        
+        sessionsHandle = persistenceWriter.register("uploadSessions", this::saveSessions);
+    }
+    
+    /**
+     * 从文件加载上传会话；临时数据已不存在的会话直接丢弃
+     */
+    private void loadSessions() {
+        File file = new File(sessionFile);
+        if (!file.exists()) {
+            return;
+        }
+        
+        try {
+            List<UploadSession> loaded = objectMapper.readValue(file, new TypeReference<List<UploadSession>>() {});
+            sessions.clear();
+            int dropped = 0;
+            for (UploadSession session : loaded) {
+                if (session.getPartPath() != null && new File(session.getPartPath()).exists()) {
+                    sessions.put(session.getId(), session);
+                    // 预留只保存在内存中，重启后按声明的总大小重新登记（逐块上传的会话在下一个分块时重新预留）
+                    if (session.getTotalSize() > 0) {
+                        userService.restoreStorageReservation(session.getId(), session.getUserId(),
+                                session.getTotalSize());
+                    }
+                } else {
+                    dropped++;
+                }
+            }
+            logger.info("Loaded {} upload sessions ({} without data dropped)", sessions.size(), dropped);
+        } catch (IOException e) {
+            logger.error("Failed to load upload sessions", e);
+        }
+    }
+    
+    /**
+     * 将上传会话保存到文件（先写临时文件再替换）
+     */
+    private void saveSessions() throws IOException {
+        File target = new File(sessionFile);
+        File tempFile = new File(sessionFile + ".tmp");
+        objectMapper.writeValue(tempFile, new ArrayList<>(sessions.values()));
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("Saved {} upload sessions", sessions.size());
+    }
+    
+    @Override
+    public UploadSession getSession(String sessionId) {
+        return sessionId != null ? sessions.get(sessionId) : null;
+    }
+    
+    @Override
+    public UploadSession createSession(UploadSession session) {
+        if (session.getId() == null) {
+            session.setId(UUID.randomUUID().toString());
+        }
+        session.setExpiryDate(nextExpiry());
+        
+        UploadSession existing = sessions.putIfAbsent(session.getId(), session);
+        if (existing != null) {
+            return existing;
+        }
+        
+        // 客户端拿到会话后可能立即断开，会话必须先落盘；未能落盘则撤销该会话
+        sessionsHandle.markDirty();
+        try {
+            sessionsHandle.awaitDurable();
+        } catch (PersistenceWriter.DurabilityException e) {
+            sessions.remove(session.getId(), session);
+            sessionsHandle.markDirty();
+            throw e;
+        }
+        logger.info("Upload session created: {}", session);
+        return session;
+    }
+    
+    @Override
+    public void touch(UploadSession session) {
+        session.setLastActivity(new Date());
+        session.setExpiryDate(nextExpiry());
+        sessionsHandle.markDirty();
+    }
+    
+    @Override
+    public boolean completeSession(UploadSession session) {
+        if (!sessions.remove(session.getId(), session)) {
+            return false;
+        }
+        sessionsHandle.markDirty();
+        return true;
+    }
+    
+    @Override
+    public boolean removeSession(String sessionId) {
+        UploadSession session = sessions.remove(sessionId);
+        if (session == null) {
+            return false;
+        }
+        deleteSessionData(session);
+        sessionsHandle.markDirty();
+        logger.info("Upload session removed: {}", session);
+        return true;
+    }
+    
+    @Override
+    public int cleanupExpiredSessions() {
+        Date now = new Date();
+        int count = 0;
+        for (UploadSession session : new ArrayList<>(sessions.values())) {
+            if (session.getExpiryDate() != null && session.getExpiryDate().before(now)
+                    && sessions.remove(session.getId(), session)) {
+                deleteSessionData(session);
+                count++;
+                logger.info("Expired upload session removed: {}", session);
+            }
+        }
+        if (count > 0) {
+            sessionsHandle.markDirty();
+        }
+        return count;
+    }
+    
+    private Date nextExpiry() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.HOUR_OF_DAY, sessionExpiryHours);
+        return calendar.getTime();
+    }
+    
+    private void deleteSessionData(UploadSession session) {
+        userService.releaseStorage(session.getId());
+        if (session.getPartPath() != null) {
+            org.apache.commons.io.FileUtils.deleteQuietly(new File(session.getPartPath()));
+        }
+    }
+}
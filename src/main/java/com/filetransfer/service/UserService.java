@@ -3,6 +3,8 @@ package com.filetransfer.service;
 import com.filetransfer.model.User;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * Service interface for user operations
@@ -42,6 +44,14 @@ public interface UserService {
      */
     User getUserByUsername(String username);
     
+    /**
+     * Get a user by email address (case-insensitive)
+     * 
+     * @param email The email address
+     * @return The user, or null if no user has this email
+     */
+    User getUserByEmail(String email);
+    
     /**
      * Update a user
      * 
@@ -50,6 +60,14 @@ public interface UserService {
      */
     User updateUser(User user);
     
+    /**
+     * Record a successful login.
+     * The last login date is written to the user journal in batches, not on every login.
+     * 
+     * @param userId The ID of the user who logged in
+     */
+    void recordLogin(String userId);
+    
     /**
      * Delete a user
      * 
@@ -76,6 +94,66 @@ public interface UserService {
      */
     void updateStorageUsed(String userId, long size, boolean add);
     
+    /**
+     * Apply storage changes for several users with a single save
+     * 
+     * @param deltas Bytes to add (positive) or subtract (negative) per user ID
+     */
+    void updateStorageUsed(Map<String, Long> deltas);
+    
+    /**
+     * Reserve storage for an upload before its bytes are written.
+     * Calling again with the same reservation ID grows the reservation.
+     * 
+     * @param reservationId The upload's ID (file ID or upload session ID)
+     * @param userId The ID of the user
+     * @param bytes The number of bytes to reserve
+     * @throws com.filetransfer.util.QuotaLedger.QuotaExceededException if the user's quota would be exceeded
+     */
+    void reserveStorage(String reservationId, String userId, long bytes);
+    
+    /**
+     * Re-register the reservation of an unfinished upload after a restart, without checking the quota
+     * 
+     * @param reservationId The upload session ID
+     * @param userId The ID of the user
+     * @param bytes The number of bytes reserved
+     */
+    void restoreStorageReservation(String reservationId, String userId, long bytes);
+    
+    /**
+     * Complete an upload: release its reservation and add the actual size to the storage used
+     * 
+     * @param reservationId The upload's reservation ID
+     * @param userId The ID of the user
+     * @param actualBytes The size of the stored file
+     */
+    void commitStorage(String reservationId, String userId, long actualBytes);
+    
+    /**
+     * Release the reservation of a failed or cancelled upload; unknown IDs are ignored
+     * 
+     * @param reservationId The upload's reservation ID
+     */
+    void releaseStorage(String reservationId);
+    
+    /**
+     * Recompute the storage used by every user from the file catalog.
+     * The caller must hold the lock under which the catalog and the storage used are changed together,
+     * so that the ledger snapshot and the catalog scan describe the same state
+     * 
+     * @param catalogUsage Computes the bytes used per user ID from the catalog
+     * @return The number of users whose storage used was corrected
+     */
+    int reconcileStorageUsed(Supplier<Map<String, Long>> catalogUsage);
+    
+    /**
+     * Get quota ledger statistics
+     * 
+     * @return Statistics map
+     */
+    Map<String, Object> getQuotaStats();
+    
     /**
      * Get all users
      * 
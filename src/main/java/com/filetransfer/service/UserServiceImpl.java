@@ -1,24 +1,30 @@
 package com.filetransfer.service;
 
 import com.filetransfer.model.User;
+import com.filetransfer.util.MetadataJournal;
+import com.filetransfer.util.QuotaLedger;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -32,12 +38,43 @@ public class UserServiceImpl implements UserService {
     @Value("${file.upload.directory}")
     private String baseDirectory;
     
+    @Value("${user.quota.enforce:true}")
+    private boolean quotaEnforce;
+    
+    @Value("${user.quota.journal.compact.threshold:10000}")
+    private int quotaJournalCompactThreshold;
+    
+    @Value("${user.journal.compact.threshold:1000}")
+    private int journalCompactThreshold;
+    
     private String userDataFile;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    // 不使用注解：密码字段在接口中只写，但快照和日志中必须保存
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setSerializationInclusion(JsonInclude.Include.ALWAYS)
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .disable(MapperFeature.USE_ANNOTATIONS);
+    
+    // users.json 是快照，之后的修改按用户逐条追加到 users.json.journal
+    private MetadataJournal journal;
+    
+    // 已登录但登录时间还没有写入日志的用户，落盘时合并为每个用户一条记录
+    private final Set<String> pendingLogins = ConcurrentHashMap.newKeySet();
     
     // In-memory cache for user information
     private final Map<String, User> userMap = new ConcurrentHashMap<>();
     private final Map<String, User> usernameMap = new ConcurrentHashMap<>();
+    // 规范化（去空白、小写）后的邮箱 -> 用户，邮箱登录与用户名登录一样只需一次查找
+    private final Map<String, User> emailMap = new ConcurrentHashMap<>();
+    
+    @Autowired
+    private PersistenceWriter persistenceWriter;
+    
+    private PersistenceWriter.Handle usersHandle;
+    
+    // 存储用量以配额账本为准，变更写入 quota.journal，不再重写 users.json
+    private QuotaLedger quotaLedger;
+    private PersistenceWriter.Handle quotaHandle;
     
     @PostConstruct
     public void init() {
@@ -50,191 +87,220 @@ public class UserServiceImpl implements UserService {
         // 设置用户数据文件路径
         userDataFile = baseDirectory + File.separator + "users.json";
         
-        // 加载用户数据
+        journal = new MetadataJournal(new File(userDataFile + ".journal"), objectMapper);
+        
+        // 加载用户数据：快照 + 日志
         loadUsers();
+        
+        // 日志由持久化写入器批量落盘
+        usersHandle = persistenceWriter.register("users", this::flushUsers);
+        
+        // 加载配额账本：先取 users.json 中的用量，再用日志中更新的值覆盖
+        loadQuotaLedger();
+        quotaHandle = persistenceWriter.register("quota", quotaLedger::flush);
     }
     
-    /**
-     * 从文件加载用户数据
-     */
-    private void loadUsers() {
-        File file = new File(userDataFile);
-        if (!file.exists()) {
-            logger.info("User data file does not exist, will be created when users are registered");
-            return;
+    private void loadQuotaLedger() {
+        quotaLedger = new QuotaLedger(new File(baseDirectory, "quota.journal"),
+                quotaJournalCompactThreshold, quotaEnforce);
+        for (User user : userMap.values()) {
+            quotaLedger.setAccount(user.getId(), user.getTotalStorageUsed(), user.getStorageLimit());
         }
         
         try {
-            // 创建一个专门用于加载用户数据的ObjectMapper，确保密码字段被保留
-            ObjectMapper userMapper = new ObjectMapper();
-            // 配置ObjectMapper忽略未知属性
-            userMapper.configure(com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            // 不忽略任何字段
-            userMapper.setSerializationInclusion(JsonInclude.Include.ALWAYS);
-            
-            // 尝试加载用户数据
-            List<User> users = userMapper.readValue(file, new TypeReference<List<User>>() {});
-            
-            // 清空当前缓存
-            userMap.clear();
-            usernameMap.clear();
-            
-            // 将用户添加到缓存
-            for (User user : users) {
-                if (!user.hasPassword()) {
-                    logger.warn("User {} has no password in loaded data", user.getUsername());
-                } else {
-                    logger.debug("Loaded user: id={}, username={}, password length={}", 
-                            user.getId(), user.getUsername(), 
-                            user.getPassword() != null ? user.getPassword().length() : 0);
+            Map<String, Long> journaled = quotaLedger.replay();
+            int applied = 0;
+            for (Map.Entry<String, Long> entry : journaled.entrySet()) {
+                User user = userMap.get(entry.getKey());
+                if (user != null) {
+                    quotaLedger.setAccount(user.getId(), entry.getValue(), user.getStorageLimit());
+                    user.setTotalStorageUsed(entry.getValue());
+                    applied++;
                 }
-                
-                userMap.put(user.getId(), user);
-                usernameMap.put(user.getUsername().toLowerCase(), user);
             }
-            
-            logger.info("Loaded {} users from file", users.size());
+            // 重放后用当前值重写日志，丢弃已删除用户和重复的记录
+            quotaLedger.compact();
+            logger.info("Loaded quota ledger: {} users, {} journaled usage values applied", userMap.size(), applied);
         } catch (IOException e) {
-            logger.error("Failed to load user data", e);
-            
-            // 如果是未知属性错误，尝试备份并重置用户数据文件
-            if (e.getMessage() != null && e.getMessage().contains("Unrecognized field")) {
+            logger.error("Failed to load quota journal, using storage usage from users.json", e);
+        }
+    }
+    
+    /**
+     * 把账本中的已用量同步到用户对象（供接口返回），不触发 users.json 写入
+     */
+    private void syncStorageUsed(String userId) {
+        User user = userMap.get(userId);
+        if (user != null) {
+            user.setTotalStorageUsed(quotaLedger.getUsed(userId));
+        }
+    }
+    
+    /**
+     * 从文件加载用户数据：读取 users.json 快照，再按顺序重放日志
+     */
+    private synchronized void loadUsers() {
+        Map<String, User> loaded = new LinkedHashMap<>();
+        File file = new File(userDataFile);
+        if (file.exists()) {
+            try {
+                List<User> users = objectMapper.readValue(file, new TypeReference<List<User>>() {});
+                for (User user : users) {
+                    loaded.put(user.getId(), user);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to load user data snapshot", e);
+                
+                // 快照损坏时先备份，再只使用日志
                 try {
-                    // 创建备份
                     String backupFile = userDataFile + ".bak." + System.currentTimeMillis();
                     Files.copy(Paths.get(userDataFile), Paths.get(backupFile));
                     logger.info("Created backup of corrupted user data file: {}", backupFile);
-                    
-                    // 创建一个空的用户列表文件
-                    new ObjectMapper().writeValue(new File(userDataFile), new ArrayList<User>());
-                    logger.info("Reset user data file with empty user list");
                 } catch (IOException backupError) {
-                    logger.error("Failed to backup/reset corrupted user data file", backupError);
+                    logger.error("Failed to backup corrupted user data file", backupError);
+                }
+            }
+        } else {
+            logger.info("User data file does not exist, will be created when users are registered");
+        }
+        
+        List<MetadataJournal.Entry> entries;
+        try {
+            entries = journal.readAll();
+            for (MetadataJournal.Entry entry : entries) {
+                applyJournalEntry(loaded, entry);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to replay user journal", e);
+            entries = Collections.emptyList();
+        }
+        
+        userMap.clear();
+        usernameMap.clear();
+        emailMap.clear();
+        for (User user : loaded.values()) {
+            if (!user.hasPassword()) {
+                logger.warn("User {} has no password in loaded data", user.getUsername());
+            }
+            userMap.put(user.getId(), user);
+            usernameMap.put(user.getUsername().toLowerCase(), user);
+            String email = normalizeEmail(user.getEmail());
+            if (email != null) {
+                // 旧数据中可能有重复的邮箱：保留先加载的用户，其他用户只能用用户名登录
+                User previous = emailMap.putIfAbsent(email, user);
+                if (previous != null) {
+                    logger.warn("Email {} is used by both {} and {}, only {} can log in by email",
+                            email, previous.getUsername(), user.getUsername(), previous.getUsername());
                 }
             }
         }
+        logger.info("Loaded {} users from file, replayed {} journal entries", userMap.size(), entries.size());
+        
+        // 启动时把快照和日志合并为新的快照
+        if (!entries.isEmpty()) {
+            writeSnapshotAndResetJournal();
+        }
     }
     
     /**
-     * 将用户数据保存到文件
+     * 将一条日志记录应用到用户映射上
      */
-    private void saveUsers() {
-        try {
-            List<User> users = new ArrayList<>(userMap.values());
-            
-            // 检查用户数据，确保密码不为空
-            for (User user : users) {
-                if (!user.hasPassword()) {
-                    logger.warn("User {} has no password before saving to file", user.getUsername());
-                } else {
-                    logger.debug("User {} has password of length {} before saving to file", 
-                            user.getUsername(), user.getPassword().length());
+    private void applyJournalEntry(Map<String, User> target, MetadataJournal.Entry entry) throws IOException {
+        if (entry.getOp() == null || entry.getId() == null) {
+            return;
+        }
+        switch (entry.getOp()) {
+            case MetadataJournal.OP_PUT:
+                if (entry.getData() != null) {
+                    target.put(entry.getId(), objectMapper.treeToValue(entry.getData(), User.class));
                 }
-            }
-            
-            logger.debug("Saving {} users to file, current objectMapper config: {}", 
-                    users.size(), objectMapper.getSerializationConfig());
-            
-            // 创建一个专门用于保存用户数据的ObjectMapper，确保密码字段被保留
-            ObjectMapper userMapper = new ObjectMapper();
-            // 不忽略任何字段
-            userMapper.setSerializationInclusion(JsonInclude.Include.ALWAYS);
-            // 禁用所有可能导致字段被忽略的功能
-            userMapper.disable(com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-            userMapper.disable(com.fasterxml.jackson.databind.MapperFeature.USE_ANNOTATIONS);
-            // 美化输出，方便调试
-            userMapper.enable(SerializationFeature.INDENT_OUTPUT);
-            
-            // 先写入临时文件
-            File tempFile = new File(userDataFile + ".tmp");
-            String jsonContent = userMapper.writeValueAsString(users);
-            
-            // 检查JSON中是否包含密码字段
-            for (User user : users) {
-                if (user.hasPassword() && !jsonContent.contains("\"password\":\"" + user.getPassword() + "\"")) {
-                    logger.error("Password for user {} is missing in JSON output!", user.getUsername());
-                    // 尝试手动构建JSON
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("[\n");
-                    for (int i = 0; i < users.size(); i++) {
-                        User u = users.get(i);
-                        sb.append("  {\n");
-                        sb.append("    \"id\": \"").append(u.getId()).append("\",\n");
-                        sb.append("    \"username\": \"").append(u.getUsername()).append("\",\n");
-                        sb.append("    \"password\": \"").append(u.getPassword()).append("\",\n");
-                        sb.append("    \"email\": \"").append(u.getEmail()).append("\",\n");
-                        if (u.getFullName() != null) {
-                            sb.append("    \"fullName\": \"").append(u.getFullName()).append("\",\n");
-                        }
-                        sb.append("    \"createdDate\": ").append(u.getCreatedDate().getTime()).append(",\n");
-                        if (u.getLastLoginDate() != null) {
-                            sb.append("    \"lastLoginDate\": ").append(u.getLastLoginDate().getTime()).append(",\n");
-                        }
-                        sb.append("    \"enabled\": ").append(u.isEnabled()).append(",\n");
-                        sb.append("    \"role\": \"").append(u.getRole()).append("\",\n");
-                        sb.append("    \"totalStorageUsed\": ").append(u.getTotalStorageUsed()).append(",\n");
-                        sb.append("    \"storageLimit\": ").append(u.getStorageLimit()).append("\n");
-                        sb.append("  }");
-                        if (i < users.size() - 1) {
-                            sb.append(",");
-                        }
-                        sb.append("\n");
-                    }
-                    sb.append("]\n");
-                    jsonContent = sb.toString();
-                    logger.info("Using manually constructed JSON to ensure passwords are included");
-                    break;
+                break;
+            case MetadataJournal.OP_PATCH:
+                User existing = target.get(entry.getId());
+                if (existing != null && entry.getData() != null) {
+                    objectMapper.readerForUpdating(existing).readValue(entry.getData());
                 }
+                break;
+            case MetadataJournal.OP_DELETE:
+                target.remove(entry.getId());
+                break;
+            default:
+                logger.warn("Unknown user journal operation: {}", entry.getOp());
+        }
+    }
+    
+    /**
+     * 邮箱索引的键；空邮箱返回 null
+     */
+    private static String normalizeEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        String normalized = email.trim().toLowerCase(Locale.ROOT);
+        return normalized.isEmpty() ? null : normalized;
+    }
+    
+    /**
+     * 记录一个用户的修改；调用方持有服务对象的锁，与写快照互斥
+     */
+    private void appendJournal(String op, String userId, Object data) {
+        try {
+            journal.append(op, userId, data);
+        } catch (IOException e) {
+            logger.error("Failed to append user journal, writing full snapshot instead", e);
+            writeSnapshotAndResetJournal();
+        }
+    }
+    
+    /**
+     * 由持久化写入器调用：写入合并后的登录时间，落盘缓冲的日志记录，日志过长时写入快照
+     */
+    private void flushUsers() throws IOException {
+        for (String userId : pendingLogins) {
+            pendingLogins.remove(userId);
+            User user = userMap.get(userId);
+            if (user != null && user.getLastLoginDate() != null) {
+                journal.append(MetadataJournal.OP_PATCH, userId,
+                        Collections.singletonMap("lastLoginDate", user.getLastLoginDate()));
             }
-            
-            // 写入文件
-            Files.write(tempFile.toPath(), jsonContent.getBytes(StandardCharsets.UTF_8));
-            
-            // 检查临时文件是否写入成功
-            if (tempFile.exists() && tempFile.length() > 0) {
-                // 从临时文件读取用户列表，检查密码是否正确
-                List<User> tempUsers = userMapper.readValue(tempFile, new TypeReference<List<User>>() {});
-                boolean passwordsOk = true;
-                for (User user : tempUsers) {
-                    if (!user.hasPassword()) {
-                        logger.warn("User {} has no password in temporary file", user.getUsername());
-                        passwordsOk = false;
-                    } else {
-                        logger.debug("User {} has password of length {} in temporary file", 
-                                user.getUsername(), user.getPassword().length());
-                    }
-                }
-                
-                // 如果密码验证通过，移动临时文件到最终位置
-                if (passwordsOk) {
-                    Files.move(tempFile.toPath(), new File(userDataFile).toPath(), 
-                            StandardCopyOption.REPLACE_EXISTING);
-            logger.info("Saved {} users to file", users.size());
-                } else {
-                    logger.error("Password validation failed, not updating user data file");
-                    // 不删除临时文件，以便于调试
-                    logger.info("Temporary file kept for debugging: {}", tempFile.getAbsolutePath());
+        }
+        journal.flush();
+        
+        // 修改用户的线程在释放服务对象的锁之后才等待落盘，这里可以直接加锁写快照
+        if (journal.getEntryCount() >= journalCompactThreshold) {
+            synchronized (this) {
+                if (journal.getEntryCount() >= journalCompactThreshold) {
+                    logger.info("User journal reached {} entries, writing snapshot", journal.getEntryCount());
+                    writeSnapshotAndResetJournal();
                 }
-            } else {
-                logger.error("Failed to write user data to temporary file");
             }
-            
-            // 验证保存后的数据
-            try {
-                List<User> savedUsers = userMapper.readValue(new File(userDataFile), new TypeReference<List<User>>() {});
-                for (User user : savedUsers) {
-                    if (!user.hasPassword()) {
-                        logger.warn("User {} has no password after saving to file", user.getUsername());
-                    } else {
-                        logger.debug("User {} has password of length {} after saving to file", 
-                                user.getUsername(), user.getPassword().length());
-                    }
-                }
-            } catch (IOException e) {
-                logger.error("Failed to verify saved user data", e);
+        }
+    }
+    
+    /**
+     * 写入完整快照（先写临时文件再原子替换），成功后截断日志
+     */
+    private synchronized void writeSnapshotAndResetJournal() {
+        List<User> users = new ArrayList<>(userMap.values());
+        File tempFile = new File(userDataFile + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(objectMapper.writeValueAsBytes(users));
+                out.getFD().sync();
             }
+            Files.move(tempFile.toPath(), new File(userDataFile).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Saved {} users to file", users.size());
         } catch (IOException e) {
             logger.error("Failed to save user data", e);
+            return;
+        }
+        
+        try {
+            journal.reset();
+        } catch (IOException e) {
+            // 日志未截断也不会丢数据：重放是幂等的
+            logger.warn("Failed to truncate user journal: {}", e.getMessage());
         }
     }
     
@@ -256,26 +322,12 @@ public class UserServiceImpl implements UserService {
                 user.getUsername(), user.getEmail(), 
                 user.getPassword() != null ? user.getPassword().length() : 0);
         
-        // Check if username already exists
-        if (usernameMap.containsKey(user.getUsername().toLowerCase())) {
-            throw new IllegalArgumentException("Username already exists");
-        }
-        
-        // Generate ID if not provided
-        if (user.getId() == null) {
-            user.setId(UUID.randomUUID().toString());
-        }
-        
         // 确保密码被正确设置
         String password = user.getPassword();
-        if (password == null || password.isEmpty()) {
-            logger.warn("Password is empty during registration for user: {}", user.getUsername());
-            throw new IllegalArgumentException("Password cannot be empty");
-        }
         
         // 创建一个新的用户对象，确保所有字段都被正确设置
         User newUser = new User();
-        newUser.setId(user.getId());
+        newUser.setId(user.getId() != null ? user.getId() : UUID.randomUUID().toString());
         newUser.setUsername(user.getUsername());
         newUser.setEmail(user.getEmail());
         newUser.setPassword(password); // 显式设置密码
@@ -286,61 +338,34 @@ public class UserServiceImpl implements UserService {
         newUser.setStorageLimit(1073741824); // 1GB default storage limit
         newUser.setTotalStorageUsed(0);
         
-        logger.info("Created new user with password: {}", password);
-        
-        // Store user in memory cache
-        userMap.put(newUser.getId(), newUser);
-        usernameMap.put(newUser.getUsername().toLowerCase(), newUser);
-        
-        // 验证密码是否被正确设置
-        User storedUser = userMap.get(newUser.getId());
-        if (storedUser == null || !storedUser.hasPassword()) {
-            logger.error("Password not set correctly for user: {}", newUser.getUsername());
-            throw new RuntimeException("Failed to set password for user");
-        }
-        
-        logger.debug("User stored in memory: id={}, username={}, password length={}", 
-                storedUser.getId(), storedUser.getUsername(), 
-                storedUser.getPassword() != null ? storedUser.getPassword().length() : 0);
-        
-        // 立即保存到文件，确保用户数据持久化
-        saveUsers();
-        
-        // 再次验证密码是否被正确保存
-        try {
-            // 创建一个专门用于验证的ObjectMapper
-            ObjectMapper verifyMapper = new ObjectMapper();
-            verifyMapper.configure(com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            verifyMapper.setSerializationInclusion(JsonInclude.Include.ALWAYS);
-            
-            // 从文件中读取用户数据
-            List<User> savedUsers = verifyMapper.readValue(new File(userDataFile), new TypeReference<List<User>>() {});
-            
-            // 查找刚刚注册的用户
-            User savedUser = null;
-            for (User u : savedUsers) {
-                if (u.getId().equals(newUser.getId())) {
-                    savedUser = u;
-                    break;
-                }
+        synchronized (this) {
+            // Check if username already exists
+            if (usernameMap.containsKey(newUser.getUsername().toLowerCase())) {
+                throw new IllegalArgumentException("Username already exists");
+            }
+            String email = normalizeEmail(newUser.getEmail());
+            if (email != null && emailMap.containsKey(email)) {
+                throw new IllegalArgumentException("Email already exists");
             }
             
-            // 验证密码是否正确保存
-            if (savedUser == null) {
-                logger.error("User not found in saved data: {}", newUser.getUsername());
-            } else if (!savedUser.hasPassword()) {
-                logger.error("User {} has no password in saved data", newUser.getUsername());
-                
-                // 如果密码没有保存，尝试修复
-                savedUser.setPassword(password);
-                saveUsers();
-                logger.info("Attempted to fix password for user: {}", newUser.getUsername());
-            } else {
-                logger.info("User {} password verified in saved data, length: {}", 
-                        newUser.getUsername(), savedUser.getPassword().length());
+            // Store user in memory cache
+            userMap.put(newUser.getId(), newUser);
+            usernameMap.put(newUser.getUsername().toLowerCase(), newUser);
+            if (email != null) {
+                emailMap.put(email, newUser);
             }
-        } catch (Exception e) {
-            logger.error("Error verifying saved user data", e);
+            appendJournal(MetadataJournal.OP_PUT, newUser.getId(), newUser);
+        }
+        quotaLedger.setAccount(newUser.getId(), 0, newUser.getStorageLimit());
+        quotaHandle.markDirty();
+        
+        // 注册成功前确认记录已落盘（只写入这一条日志记录）；未能落盘则撤销注册
+        usersHandle.markDirty();
+        try {
+            usersHandle.awaitDurable();
+        } catch (PersistenceWriter.DurabilityException e) {
+            deleteUser(newUser.getId());
+            throw e;
         }
         
         logger.info("User registered: {}", newUser);
@@ -355,16 +380,19 @@ public class UserServiceImpl implements UserService {
     public void fixAllUserPasswords(String defaultPassword) {
         boolean needsSave = false;
         
-        for (User user : userMap.values()) {
-            if (!user.hasPassword()) {
-                logger.warn("User {} has no password, setting default password", user.getUsername());
-                user.setPassword(defaultPassword);
-                needsSave = true;
+        synchronized (this) {
+            for (User user : userMap.values()) {
+                if (!user.hasPassword()) {
+                    logger.warn("User {} has no password, setting default password", user.getUsername());
+                    user.setPassword(defaultPassword);
+                    appendJournal(MetadataJournal.OP_PUT, user.getId(), user);
+                    needsSave = true;
+                }
             }
         }
         
         if (needsSave) {
-            saveUsers();
+            usersHandle.markDirty();
             logger.info("Fixed passwords for users with missing passwords");
         }
     }
@@ -383,15 +411,7 @@ public class UserServiceImpl implements UserService {
         
         // 如果通过用户名找不到，尝试通过电子邮件查找
         if (user == null) {
-            logger.debug("User not found by username, trying to find by email: {}", username);
-            // 遍历所有用户，查找匹配的电子邮件
-            for (User u : userMap.values()) {
-                if (u.getEmail() != null && u.getEmail().equalsIgnoreCase(username)) {
-                    user = u;
-                    logger.debug("User found by email: {}", username);
-                    break;
-                }
-            }
+            user = getUserByEmail(username);
         }
         
         if (user == null) {
@@ -442,52 +462,94 @@ public class UserServiceImpl implements UserService {
         return usernameMap.get(username.toLowerCase());
     }
     
+    @Override
+    public User getUserByEmail(String email) {
+        String key = normalizeEmail(email);
+        return key != null ? emailMap.get(key) : null;
+    }
+    
     @Override
     public User updateUser(User user) {
         if (user == null || user.getId() == null) {
             throw new IllegalArgumentException("User or ID is null");
         }
         
-        User existingUser = getUserById(user.getId());
-        if (existingUser == null) {
-            throw new IllegalArgumentException("User not found with ID: " + user.getId());
-        }
-        
-        // Handle username change
-        if (!existingUser.getUsername().equals(user.getUsername())) {
-            // Check if new username already exists
-            if (usernameMap.containsKey(user.getUsername().toLowerCase()) && 
-                !usernameMap.get(user.getUsername().toLowerCase()).getId().equals(user.getId())) {
-                throw new IllegalArgumentException("Username already exists");
+        User existingUser;
+        synchronized (this) {
+            existingUser = getUserById(user.getId());
+            if (existingUser == null) {
+                throw new IllegalArgumentException("User not found with ID: " + user.getId());
             }
             
-            // Remove old username mapping
-            usernameMap.remove(existingUser.getUsername().toLowerCase());
+            // 先完成所有检查，再修改索引
+            String oldEmail = normalizeEmail(existingUser.getEmail());
+            String newEmail = normalizeEmail(user.getEmail());
+            boolean emailChanged = !Objects.equals(oldEmail, newEmail);
+            User emailOwner = emailChanged && newEmail != null ? emailMap.get(newEmail) : null;
+            if (emailOwner != null && !emailOwner.getId().equals(existingUser.getId())) {
+                throw new IllegalArgumentException("Email already exists");
+            }
             
-            // Add new username mapping
-            usernameMap.put(user.getUsername().toLowerCase(), user);
-        }
-        
-        // Update fields
-        existingUser.setUsername(user.getUsername());
-        existingUser.setEmail(user.getEmail());
-        existingUser.setFullName(user.getFullName());
-        existingUser.setEnabled(user.isEnabled());
-        
-        // Only update password if provided
-        if (user.getPassword() != null && !user.getPassword().isEmpty()) {
-            existingUser.setPassword(user.getPassword());
+            // Handle username change
+            if (!existingUser.getUsername().equals(user.getUsername())) {
+                // Check if new username already exists
+                if (usernameMap.containsKey(user.getUsername().toLowerCase()) && 
+                    !usernameMap.get(user.getUsername().toLowerCase()).getId().equals(user.getId())) {
+                    throw new IllegalArgumentException("Username already exists");
+                }
+                
+                // Remove old username mapping
+                usernameMap.remove(existingUser.getUsername().toLowerCase());
+                
+                // Add new username mapping
+                usernameMap.put(user.getUsername().toLowerCase(), existingUser);
+            }
+            
+            // Handle email change
+            if (emailChanged) {
+                if (oldEmail != null) {
+                    emailMap.remove(oldEmail, existingUser);
+                }
+                if (newEmail != null) {
+                    emailMap.put(newEmail, existingUser);
+                }
+            }
+            
+            // Update fields
+            existingUser.setUsername(user.getUsername());
+            existingUser.setEmail(user.getEmail());
+            existingUser.setFullName(user.getFullName());
+            existingUser.setEnabled(user.isEnabled());
+            if (user.getLastLoginDate() != null) {
+                existingUser.setLastLoginDate(user.getLastLoginDate());
+            }
+            
+            // Only update password if provided
+            if (user.getPassword() != null && !user.getPassword().isEmpty()) {
+                existingUser.setPassword(user.getPassword());
+            }
+            
+            // 只追加这一个用户的记录
+            appendJournal(MetadataJournal.OP_PUT, existingUser.getId(), existingUser);
         }
         
-        // Store updated user
-        userMap.put(existingUser.getId(), existingUser);
-        
-        // Save to file
-        saveUsers();
+        usersHandle.markDirty();
         
         return existingUser;
     }
     
+    @Override
+    public void recordLogin(String userId) {
+        User user = getUserById(userId);
+        if (user == null) {
+            return;
+        }
+        user.setLastLoginDate(new Date());
+        // 不立即写日志：同一批次内的登录由 flushUsers 合并为每个用户一条记录
+        pendingLogins.add(userId);
+        usersHandle.markDirty();
+    }
+    
     @Override
     public boolean deleteUser(String userId) {
         User user = getUserById(userId);
@@ -496,11 +558,23 @@ public class UserServiceImpl implements UserService {
         }
         
         // Remove user
-        userMap.remove(userId);
-        usernameMap.remove(user.getUsername().toLowerCase());
+        synchronized (this) {
+            if (userMap.remove(userId) == null) {
+                return false;
+            }
+            usernameMap.remove(user.getUsername().toLowerCase());
+            String email = normalizeEmail(user.getEmail());
+            if (email != null) {
+                emailMap.remove(email, user);
+            }
+            appendJournal(MetadataJournal.OP_DELETE, userId, null);
+        }
+        pendingLogins.remove(userId);
+        quotaLedger.removeAccount(userId);
         
         // Save to file
-        saveUsers();
+        usersHandle.markDirty();
+        quotaHandle.markDirty();
         
         logger.info("User deleted: {}", user);
         
@@ -509,43 +583,81 @@ public class UserServiceImpl implements UserService {
     
     @Override
     public boolean hasStorageAvailable(String userId, long fileSize) {
-        // 不再检查存储限制，永远返回true，允许无限制上传
-        return true;
-        
-        /* 原代码（已注释）
-        User user = getUserById(userId);
-        if (user == null) {
-            return false;
-        }
-        
-        return user.getStorageLimit() - user.getStorageUsed() >= fileSize;
-        */
+        // 已扣除进行中上传的预留量
+        return quotaLedger.hasAvailable(userId, fileSize);
     }
     
     @Override
     public void updateStorageUsed(String userId, long size, boolean add) {
-        User user = getUserById(userId);
-        if (user == null) {
+        if (getUserById(userId) == null) {
             return;
         }
         
-        long currentUsage = user.getTotalStorageUsed();
-        long newUsage;
+        quotaLedger.add(userId, add ? size : -size);
+        syncStorageUsed(userId);
         
-        if (add) {
-            newUsage = currentUsage + size;
-        } else {
-            newUsage = currentUsage - size;
-            if (newUsage < 0) {
-                newUsage = 0;
+        // 只追加配额日志
+        quotaHandle.markDirty();
+    }
+    
+    @Override
+    public void updateStorageUsed(Map<String, Long> deltas) {
+        boolean changed = false;
+        for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+            if (getUserById(delta.getKey()) == null || delta.getValue() == 0) {
+                continue;
             }
+            quotaLedger.add(delta.getKey(), delta.getValue());
+            syncStorageUsed(delta.getKey());
+            changed = true;
         }
         
-        user.setTotalStorageUsed(newUsage);
-        userMap.put(userId, user);
-        
-        // Save to file
-        saveUsers();
+        // 所有用户的修改合并为一次写入
+        if (changed) {
+            quotaHandle.markDirty();
+        }
+    }
+    
+    @Override
+    public void reserveStorage(String reservationId, String userId, long bytes) {
+        quotaLedger.reserve(reservationId, userId, bytes, true);
+    }
+    
+    @Override
+    public void restoreStorageReservation(String reservationId, String userId, long bytes) {
+        quotaLedger.reserve(reservationId, userId, bytes, false);
+    }
+    
+    @Override
+    public void commitStorage(String reservationId, String userId, long actualBytes) {
+        quotaLedger.commit(reservationId, userId, actualBytes);
+        syncStorageUsed(userId);
+        quotaHandle.markDirty();
+    }
+    
+    @Override
+    public void releaseStorage(String reservationId) {
+        quotaLedger.release(reservationId);
+    }
+    
+    @Override
+    public int reconcileStorageUsed(Supplier<Map<String, Long>> catalogUsage) {
+        // 调用方持有目录的锁，快照和统计对应同一时刻；CAS 仍然跳过统计期间被其他途径修改的账户
+        Map<String, Long> before = quotaLedger.usedSnapshot();
+        Map<String, Long> actual = catalogUsage.get();
+        int corrected = quotaLedger.reconcile(before, actual);
+        if (corrected > 0) {
+            for (String userId : before.keySet()) {
+                syncStorageUsed(userId);
+            }
+            quotaHandle.markDirty();
+        }
+        return corrected;
+    }
+    
+    @Override
+    public Map<String, Object> getQuotaStats() {
+        return quotaLedger.getStats();
     }
     
     @Override
@@ -564,11 +676,14 @@ public class UserServiceImpl implements UserService {
             throw new IllegalArgumentException("Storage limit cannot be negative");
         }
         
-        user.setStorageLimit(storageLimit);
-        userMap.put(userId, user);
+        synchronized (this) {
+            user.setStorageLimit(storageLimit);
+            appendJournal(MetadataJournal.OP_PATCH, userId, Collections.singletonMap("storageLimit", storageLimit));
+        }
+        quotaLedger.setLimit(userId, storageLimit);
         
         // Save to file
-        saveUsers();
+        usersHandle.markDirty();
         
         return user;
     }
@@ -0,0 +1,246 @@
+package com.filetransfer.util;
+
+import com.filetransfer.model.FileInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 文件目录的二进制快照格式
+ *
+ * 布局（大端序）：
+ * <pre>
+ *   magic "FTCS" | version:int | recordCount:int | dictionarySize:int
+ *   dictionary: dictionarySize x string
+ *   records:    recordCount x (length:int, record bytes)
+ * </pre>
+ * contentType 和 uploadedBy 通过字典编码为 int 下标，日期存储为 epoch 毫秒（null 为 Long.MIN_VALUE），
+ * 字符串为 length:int + UTF-8（null 为 -1）。读取时整个文件被内存映射，记录按需逐条解码。
+ *
+ * 版本 2 在记录末尾增加了 checksumFileSize:long 和 checksumFileModified:long；版本 1 的快照仍可读取。
+ */
+public final class BinaryCatalogSnapshot {
+
+    public static final int MAGIC = 0x46544353; // "FTCS"
+    public static final int VERSION = 2;
+
+    private static final long NULL_DATE = Long.MIN_VALUE;
+    private static final int NULL_REF = -1;
+
+    private static final int FLAG_PUBLIC = 1;
+
+    private BinaryCatalogSnapshot() {
+    }
+
+    /**
+     * 判断文件是否为二进制快照（检查魔数）
+     */
+    public static boolean isBinarySnapshot(File file) {
+        if (!file.exists() || file.length() < 16) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            header.flip();
+            return header.getInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 将文件信息写入二进制快照
+     */
+    public static void write(Collection<FileInfo> files, File target) throws IOException {
+        Map<String, Integer> dictionaryIndex = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        for (FileInfo info : files) {
+            intern(info.getContentType(), dictionary, dictionaryIndex);
+            intern(info.getUploadedBy(), dictionary, dictionaryIndex);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(target), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            out.writeInt(dictionary.size());
+            for (String value : dictionary) {
+                writeString(out, value);
+            }
+
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            for (FileInfo info : files) {
+                recordBytes.reset();
+                encode(info, record, dictionaryIndex);
+                record.flush();
+                out.writeInt(recordBytes.size());
+                recordBytes.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * 内存映射并打开一个二进制快照
+     */
+    public static Reader open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Binary snapshot too large to map: " + length);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new Reader(buffer);
+        }
+    }
+
+    private static void intern(String value, List<String> dictionary, Map<String, Integer> dictionaryIndex) {
+        if (value != null && !dictionaryIndex.containsKey(value)) {
+            dictionaryIndex.put(value, dictionary.size());
+            dictionary.add(value);
+        }
+    }
+
+    private static void encode(FileInfo info, DataOutputStream out, Map<String, Integer> dictionaryIndex)
+            throws IOException {
+        out.writeByte(info.isPublic() ? FLAG_PUBLIC : 0);
+        writeString(out, info.getId());
+        writeString(out, info.getFileName());
+        writeString(out, info.getOriginalFileName());
+        writeString(out, info.getPath());
+        writeString(out, info.getStatus());
+        writeString(out, info.getChecksum());
+        writeString(out, info.getFileExtension());
+        writeString(out, info.getDescription());
+        out.writeInt(dictionaryRef(info.getContentType(), dictionaryIndex));
+        out.writeInt(dictionaryRef(info.getUploadedBy(), dictionaryIndex));
+        out.writeLong(info.getSize());
+        out.writeLong(info.getUploadDate() != null ? info.getUploadDate().getTime() : NULL_DATE);
+        out.writeLong(info.getExpiryDate() != null ? info.getExpiryDate().getTime() : NULL_DATE);
+        out.writeInt(info.getDownloadCount());
+        out.writeLong(info.getChecksumFileSize());
+        out.writeLong(info.getChecksumFileModified());
+    }
+
+    private static int dictionaryRef(String value, Map<String, Integer> dictionaryIndex) {
+        return value != null ? dictionaryIndex.get(value) : NULL_REF;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 已映射快照的读取器；只在构造时解析头部和字典，记录在遍历时才解码
+     */
+    public static final class Reader {
+        private final ByteBuffer buffer;
+        private final int recordCount;
+        private final String[] dictionary;
+        private final int recordsOffset;
+        private final int version;
+
+        private Reader(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            ByteBuffer in = buffer.duplicate();
+            if (in.remaining() < 16 || in.getInt() != MAGIC) {
+                throw new IOException("Not a binary catalog snapshot");
+            }
+            version = in.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported binary snapshot version: " + version);
+            }
+            recordCount = in.getInt();
+            dictionary = new String[in.getInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString(in);
+            }
+            recordsOffset = in.position();
+        }
+
+        public int size() {
+            return recordCount;
+        }
+
+        /**
+         * 逐条解码并回调，不会一次性构建完整列表
+         */
+        public void forEach(Consumer<FileInfo> consumer) {
+            ByteBuffer in = buffer.duplicate();
+            in.position(recordsOffset);
+            for (int i = 0; i < recordCount; i++) {
+                int length = in.getInt();
+                int next = in.position() + length;
+                consumer.accept(decode(in));
+                in.position(next);
+            }
+        }
+
+        private FileInfo decode(ByteBuffer in) {
+            FileInfo info = new FileInfo();
+            byte flags = in.get();
+            info.setPublic((flags & FLAG_PUBLIC) != 0);
+            info.setId(readString(in));
+            info.setFileName(readString(in));
+            info.setOriginalFileName(readString(in));
+            info.setPath(readString(in));
+            info.setStatus(readString(in));
+            info.setChecksum(readString(in));
+            info.setFileExtension(readString(in));
+            info.setDescription(readString(in));
+            info.setContentType(lookup(in.getInt()));
+            info.setUploadedBy(lookup(in.getInt()));
+            info.setSize(in.getLong());
+            info.setUploadDate(toDate(in.getLong()));
+            info.setExpiryDate(toDate(in.getLong()));
+            info.setDownloadCount(in.getInt());
+            if (version >= 2) {
+                info.setChecksumFileSize(in.getLong());
+                info.setChecksumFileModified(in.getLong());
+            }
+            return info;
+        }
+
+        private String lookup(int ref) {
+            return ref == NULL_REF ? null : dictionary[ref];
+        }
+
+        private static Date toDate(long millis) {
+            return millis == NULL_DATE ? null : new Date(millis);
+        }
+    }
+}
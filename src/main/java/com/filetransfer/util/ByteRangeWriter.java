@@ -0,0 +1,596 @@
+package com.filetransfer.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按 HTTP Range 请求输出文件内容（RFC 7233）
+ *
+ * 支持单个范围（206 + Content-Range）、多个范围（multipart/byteranges）、If-Range 和 416；
+ * 没有 Range 头、Range 头无法解析或 If-Range 不匹配时输出完整内容。
+ * 单文件存储的内容用 FileChannel 按位置读取，不需要从头读到起始位置；
+ * 分块存储的内容通过输入流跳过不需要的部分；热点文件直接从缓存的缓冲区复制。
+ *
+ * 单文件内容的完整响应或单个范围在超过 sendfile 阈值且容器支持时交给 Tomcat 的 sendfile：
+ * 只设置请求属性，由容器在请求处理结束后让内核直接把文件发送到套接字，数据不经过 JVM 堆；
+ * 其他情况（多个范围、分块存储、容器不支持）需要复制内容。
+ *
+ * 启用异步输出且请求支持异步时，复制改用 Servlet 3.1 的非阻塞输出（WriteListener）：
+ * 请求线程设置好响应头后立即返回容器，之后只在套接字可写时由容器线程写出下一块内容，
+ * 慢速客户端不再长时间占用工作线程。否则由请求线程阻塞复制。
+ */
+public class ByteRangeWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ByteRangeWriter.class);
+
+    // 超过该数量的范围请求不按范围处理，避免大量小范围放大响应开销
+    private static final int MAX_RANGES = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final long length;
+    private final String contentType;
+    private final String etag;
+    private final long lastModified;
+    private long sendfileThreshold = -1;
+    private boolean async;
+    private long asyncTimeout;
+    private TransferStats stats;
+
+    /**
+     * @param etag         强校验 ETag（含引号），未知时为 null
+     * @param lastModified 最后修改时间（毫秒），未知时为 0
+     */
+    public ByteRangeWriter(long length, String contentType, String etag, long lastModified) {
+        this.length = length;
+        this.contentType = contentType != null ? contentType : "application/octet-stream";
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * 读取内容的来源；可以按任意位置、任意顺序读取
+     */
+    public interface ContentSource extends Closeable {
+        /**
+         * 从 position 开始读取最多 len 个字节，返回实际读取的字节数（至少 1）；内容比记录的大小短时抛出 EOFException
+         */
+        int read(long position, byte[] buffer, int offset, int len) throws IOException;
+    }
+
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * 不小于 threshold 字节的单文件响应使用 sendfile；负数表示不使用
+     */
+    public ByteRangeWriter sendfileThreshold(long threshold) {
+        this.sendfileThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * 需要复制内容时使用非阻塞异步输出；timeout 为整个传输的超时（毫秒），0 表示不限制
+     */
+    public ByteRangeWriter async(boolean enabled, long timeout) {
+        this.async = enabled;
+        this.asyncTimeout = timeout;
+        return this;
+    }
+
+    public ByteRangeWriter stats(TransferStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * 单文件内容：按位置读取，多个范围共用同一个 FileChannel；使用 sendfile 时不会打开文件
+     */
+    public static ContentSource fileSource(File file) {
+        return new FileContentSource(file);
+    }
+
+    private static final class FileContentSource implements ContentSource {
+        private final File file;
+        private FileChannel channel;
+
+        FileContentSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int len) throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            int n = channel.read(ByteBuffer.wrap(buffer, offset, len), position);
+            if (n <= 0) {
+                throw new EOFException("文件比记录的大小短");
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 已在内存中的内容（热点文件缓存），按位置直接复制
+     */
+    public static ContentSource bufferSource(ByteBuffer content) {
+        ByteBuffer buffer = content.duplicate();
+        return new ContentSource() {
+            @Override
+            public int read(long position, byte[] b, int offset, int len) throws IOException {
+                if (position >= buffer.limit()) {
+                    throw new EOFException("内容比记录的大小短");
+                }
+                buffer.position((int) position);
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(b, offset, n);
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * 只能顺序读取的内容：向后的位置直接跳过，向前的位置重新打开输入流
+     */
+    public static ContentSource streamSource(StreamOpener opener) {
+        return new ContentSource() {
+            private InputStream in;
+            private long offset;
+
+            @Override
+            public int read(long position, byte[] buffer, int off, int len) throws IOException {
+                if (in == null || position < offset) {
+                    close();
+                    in = opener.open();
+                    offset = 0;
+                }
+                while (offset < position) {
+                    long skipped = in.skip(position - offset);
+                    if (skipped <= 0) {
+                        throw new EOFException("内容比记录的大小短");
+                    }
+                    offset += skipped;
+                }
+                int n = in.read(buffer, off, len);
+                if (n <= 0) {
+                    throw new EOFException("内容比记录的大小短");
+                }
+                offset += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (in != null) {
+                    in.close();
+                    in = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * 响应体中的一段：固定的字节（multipart 的分隔头）或内容中的一个范围
+     */
+    private static final class Segment {
+        final byte[] bytes;
+        final long position;
+        final long count;
+
+        Segment(byte[] bytes) {
+            this.bytes = bytes;
+            this.position = 0;
+            this.count = bytes.length;
+        }
+
+        Segment(long position, long count) {
+            this.bytes = null;
+            this.position = position;
+            this.count = count;
+        }
+    }
+
+    /**
+     * 写出响应头和内容；HEAD 请求只写响应头。调用方先设置 Content-Disposition 等其他响应头。
+     * 转为异步输出时方法立即返回，source 在传输结束后关闭
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response, ContentSource source)
+            throws IOException {
+        boolean handedOff = false;
+        try {
+            response.setHeader("Accept-Ranges", "bytes");
+            if (etag != null) {
+                response.setHeader("ETag", etag);
+            }
+            if (lastModified > 0) {
+                response.setDateHeader("Last-Modified", lastModified);
+            }
+
+            List<long[]> ranges = isRangeApplicable(request) ? parseRanges(request.getHeader("Range"), length) : null;
+            boolean headOnly = "HEAD".equalsIgnoreCase(request.getMethod());
+
+            if (ranges == null) {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType(contentType);
+                response.setContentLengthLong(length);
+                if (!headOnly && length > 0) {
+                    handedOff = send(request, response, source, Collections.singletonList(new Segment(0, length)));
+                }
+                return;
+            }
+
+            if (ranges.isEmpty()) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setContentLength(0);
+                return;
+            }
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            if (ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                response.setContentType(contentType);
+                response.setHeader("Content-Range", contentRange(range));
+                response.setContentLengthLong(range[1] - range[0] + 1);
+                if (!headOnly) {
+                    handedOff = send(request, response, source,
+                            Collections.singletonList(new Segment(range[0], range[1] - range[0] + 1)));
+                }
+                return;
+            }
+
+            // 多个范围：各部分的头部长度可以提前算出，仍然给出准确的 Content-Length
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            List<Segment> body = new ArrayList<>(ranges.size() * 2 + 1);
+            long total = 0;
+            for (long[] range : ranges) {
+                byte[] header = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                        + "\r\nContent-Range: " + contentRange(range) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                body.add(new Segment(header));
+                body.add(new Segment(range[0], range[1] - range[0] + 1));
+                total += header.length + range[1] - range[0] + 1;
+            }
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            body.add(new Segment(closing));
+            total += closing.length;
+
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            response.setContentLengthLong(total);
+            if (!headOnly) {
+                handedOff = send(request, response, source, body);
+            }
+        } finally {
+            if (!handedOff) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * 输出响应体：单个文件范围满足条件时交给容器 sendfile，其次使用异步输出，否则由当前线程复制
+     *
+     * @return 是否已转为异步输出（此时由异步输出负责关闭 source）
+     */
+    private boolean send(HttpServletRequest request, HttpServletResponse response, ContentSource content,
+                         List<Segment> body) throws IOException {
+        long cpuStarted = TransferStats.cpuTime();
+        if (body.size() == 1) {
+            Segment segment = body.get(0);
+            if (sendfileThreshold >= 0 && segment.count >= sendfileThreshold && content instanceof FileContentSource
+                    && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+                request.setAttribute(SENDFILE_FILENAME, ((FileContentSource) content).file.getCanonicalPath());
+                request.setAttribute(SENDFILE_START, segment.position);
+                request.setAttribute(SENDFILE_END, segment.position + segment.count);
+                if (stats != null) {
+                    stats.recordSendfile(segment.count, TransferStats.cpuTime() - cpuStarted);
+                }
+                return false;
+            }
+        }
+
+        if (async && request.isAsyncSupported()) {
+            AsyncContext context = request.startAsync(request, response);
+            context.setTimeout(asyncTimeout);
+            AsyncPump pump = new AsyncPump(context, response.getOutputStream(), content, body,
+                    TransferStats.cpuTime() - cpuStarted);
+            context.addListener(pump);
+            if (stats != null) {
+                stats.asyncStarted();
+            }
+            // 注册后容器会在输出可写时回调 onWritePossible，由容器线程开始写出
+            pump.out.setWriteListener(pump);
+            return true;
+        }
+
+        OutputStream out = response.getOutputStream();
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, bodyLength(body))];
+        long total = 0;
+        for (Segment segment : body) {
+            if (segment.bytes != null) {
+                out.write(segment.bytes);
+            } else {
+                for (long done = 0; done < segment.count; ) {
+                    int n = content.read(segment.position + done, buffer, 0,
+                            (int) Math.min(buffer.length, segment.count - done));
+                    out.write(buffer, 0, n);
+                    done += n;
+                }
+            }
+            total += segment.count;
+        }
+        if (stats != null) {
+            stats.recordCopy(total, TransferStats.cpuTime() - cpuStarted);
+        }
+        return false;
+    }
+
+    private static long bodyLength(List<Segment> body) {
+        long total = 0;
+        for (Segment segment : body) {
+            total += segment.count;
+        }
+        return Math.max(total, 1);
+    }
+
+    /**
+     * 非阻塞输出：每次 isReady() 为 true 时写出一块，返回 false 时退出回调，
+     * 等容器在套接字重新可写后再次调用 onWritePossible；全部写完后结束异步请求
+     */
+    private final class AsyncPump implements WriteListener, AsyncListener {
+        private final AsyncContext context;
+        private final ServletOutputStream out;
+        private final ContentSource content;
+        private final List<Segment> body;
+        private final byte[] buffer;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private int index;
+        private long done;
+        private long written;
+        private long cpuNanos;
+
+        AsyncPump(AsyncContext context, ServletOutputStream out, ContentSource content, List<Segment> body,
+                  long cpuNanos) {
+            this.context = context;
+            this.out = out;
+            this.content = content;
+            this.body = body;
+            this.buffer = new byte[(int) Math.min(BUFFER_SIZE, bodyLength(body))];
+            this.cpuNanos = cpuNanos;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            long cpuStarted = TransferStats.cpuTime();
+            try {
+                while (out.isReady()) {
+                    if (index == body.size()) {
+                        finish();
+                        context.complete();
+                        return;
+                    }
+                    Segment segment = body.get(index);
+                    if (segment.bytes != null) {
+                        out.write(segment.bytes);
+                        written += segment.count;
+                        index++;
+                        continue;
+                    }
+                    int n = content.read(segment.position + done, buffer, 0,
+                            (int) Math.min(buffer.length, segment.count - done));
+                    out.write(buffer, 0, n);
+                    written += n;
+                    done += n;
+                    if (done == segment.count) {
+                        index++;
+                        done = 0;
+                    }
+                }
+            } finally {
+                cpuNanos += TransferStats.cpuTime() - cpuStarted;
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // 客户端断开或读取内容失败；容器随后会结束异步请求
+            logger.debug("异步传输中断: 已写出 {} 字节, {}", written, t.toString());
+            finish();
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // 异步请求已经结束
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            logger.warn("异步传输超时: 已写出 {} 字节", written);
+            finish();
+            context.complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        /**
+         * 关闭内容来源并记录统计；正常完成、出错、超时都会调用，只执行一次
+         */
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                content.close();
+            } catch (IOException e) {
+                logger.debug("关闭内容失败: {}", e.getMessage());
+            }
+            if (stats != null) {
+                stats.recordAsync(written, cpuNanos);
+            }
+        }
+    }
+
+    private String contentRange(long[] range) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * If-Range 与当前 ETag 或最后修改时间一致时才按范围响应；内容已变化时返回完整内容
+     */
+    private boolean isRangeApplicable(HttpServletRequest request) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // 弱校验 ETag 不能用于 If-Range
+            return etag != null && etag.equals(ifRange);
+        }
+        try {
+            long date = request.getDateHeader("If-Range");
+            return lastModified > 0 && date == lastModified / 1000 * 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 解析 Range 头
+     *
+     * @return 按请求顺序排列的 [起始, 结束]（含）范围，重叠或相邻的范围已合并；
+     *         没有 Range 头、格式错误或范围过多时返回 null（忽略 Range，返回完整内容）；
+     *         没有可满足的范围时返回空列表
+     */
+    public static List<long[]> parseRanges(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.toLowerCase(Locale.ROOT).startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // 最后 N 个字节
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0 || length == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    String last = spec.substring(dash + 1);
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (end < start) {
+                        return null;
+                    }
+                    if (start >= length) {
+                        continue;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < 0) {
+                return null;
+            }
+            merge(ranges, start, end);
+        }
+        return ranges;
+    }
+
+    /**
+     * 加入一个范围并与重叠或相邻的范围合并，保持其余范围的顺序
+     */
+    private static void merge(List<long[]> ranges, long start, long end) {
+        long[] merged = null;
+        Iterator<long[]> iterator = ranges.iterator();
+        while (iterator.hasNext()) {
+            long[] range = iterator.next();
+            if (start <= range[1] + 1 && end >= range[0] - 1) {
+                start = Math.min(start, range[0]);
+                end = Math.max(end, range[1]);
+                if (merged == null) {
+                    merged = range;
+                } else {
+                    iterator.remove();
+                }
+                merged[0] = start;
+                merged[1] = end;
+            }
+        }
+        if (merged == null) {
+            ranges.add(new long[]{start, end});
+        }
+    }
+}
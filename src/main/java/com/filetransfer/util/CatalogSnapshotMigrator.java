@@ -0,0 +1,64 @@
+package com.filetransfer.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.filetransfer.model.FileInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * 命令行迁移工具：把 fileInfo.json 转换为二进制快照 fileInfo.bin
+ *
+ * 用法: java -cp file-transfer/WEB-INF/classes:file-transfer/WEB-INF/lib/* \
+ *         com.filetransfer.util.CatalogSnapshotMigrator &lt;fileInfo.json&gt; [fileInfo.bin]
+ *
+ * 迁移前应停止应用，且 fileInfo.json.journal 中不应有未合并的记录
+ * （应用正常启动或关闭后日志都会被合并进快照）。
+ */
+public final class CatalogSnapshotMigrator {
+
+    private CatalogSnapshotMigrator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CatalogSnapshotMigrator <fileInfo.json> [fileInfo.bin]");
+            System.exit(1);
+        }
+
+        File source = new File(args[0]);
+        File target = args.length > 1 ? new File(args[1]) : new File(source.getParentFile(), "fileInfo.bin");
+
+        File journal = new File(source.getPath() + ".journal");
+        if (journal.exists() && journal.length() > 0) {
+            System.err.println("Journal " + journal + " is not empty, start and stop the application once before migrating");
+            System.exit(2);
+        }
+
+        long started = System.currentTimeMillis();
+        int count = migrate(source, target);
+        System.out.println("Migrated " + count + " records to " + target + " in "
+                + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    /**
+     * 读取 JSON 快照并写出二进制快照（先写临时文件再替换）
+     *
+     * @return 迁移的记录数
+     */
+    public static int migrate(File source, File target) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        List<FileInfo> files = mapper.readValue(source,
+                mapper.getTypeFactory().constructCollectionType(List.class, FileInfo.class));
+
+        File tempFile = new File(target.getPath() + ".tmp");
+        BinaryCatalogSnapshot.write(files, tempFile);
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return files.size();
+    }
+}
@@ -0,0 +1,598 @@
+package com.filetransfer.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * 分块去重存储
+ *
+ * 写入的数据用 {@link FastCdc} 切成内容定义的分块，每个分块按 SHA-256 保存为 chunks/ab/cd/abcd...，
+ * 相同的分块只保存一份；文件本身由 manifests/&lt;fileId&gt;.manifest 描述，按顺序列出分块。
+ * 大文件的新版本只有修改过的分块需要保存。
+ *
+ * 清单格式（UTF-8 文本）：
+ * <pre>
+ * FTCM 1
+ * &lt;文件大小&gt; &lt;文件 SHA-256&gt;
+ * &lt;分块 SHA-256&gt; &lt;分块大小&gt;
+ * ...
+ * </pre>
+ *
+ * 分块不单独记录引用计数，由 {@link #collectGarbage(Set, long)} 标记所有清单引用的分块后删除其余分块。
+ * 正在写入的文件引用的分块在写入期间被固定，回收过程中完成写入的分块保留到本轮回收结束，
+ * 因此回收可以与写入同时进行。
+ */
+public class ChunkStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkStore.class);
+
+    private static final String MANIFEST_HEADER = "FTCM 1";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+    private static final double MB = 1024.0 * 1024.0;
+
+    private final File root;
+    private final File chunkRoot;
+    private final File manifestRoot;
+    private final String manifestPrefix;
+    private final FastCdc chunker;
+
+    // 正在写入的文件引用的分块 -> 固定次数
+    private final Map<String, Integer> pinned = new HashMap<>();
+    // 回收期间完成写入的文件引用的分块；它们的清单可能在标记之后才出现
+    private final Set<String> retained = new HashSet<>();
+    private boolean collecting;
+
+    private final AtomicLong ingestedBytes = new AtomicLong();
+    private final AtomicLong ingestedChunks = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong storedChunks = new AtomicLong();
+    private final AtomicLong ingestNanos = new AtomicLong();
+    private final AtomicLong ingestCpuNanos = new AtomicLong();
+
+    private volatile long lastCollected;
+    private volatile long diskChunks = -1;
+    private volatile long diskBytes = -1;
+    private volatile long collectedChunks;
+
+    public ChunkStore(File root, FastCdc chunker) {
+        this.root = root.getAbsoluteFile();
+        this.chunkRoot = new File(this.root, "chunks");
+        this.manifestRoot = new File(this.root, "manifests");
+        this.manifestPrefix = manifestRoot.getPath() + File.separator;
+        this.chunker = chunker;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * 文件清单的路径（不检查是否存在）
+     */
+    public File manifestFile(String fileId) {
+        if (fileId == null || fileId.isEmpty() || fileId.contains("/") || fileId.contains("\\")
+                || fileId.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid file ID: " + fileId);
+        }
+        return new File(manifestRoot, fileId + MANIFEST_SUFFIX);
+    }
+
+    public boolean isManifest(String path) {
+        return path != null && new File(path).getAbsolutePath().startsWith(manifestPrefix);
+    }
+
+    /**
+     * 分块的路径（不检查是否存在）
+     */
+    private File chunkFile(String hash) {
+        return new File(chunkRoot, hash.substring(0, 2) + File.separator + hash.substring(2, 4) + File.separator + hash);
+    }
+
+    /**
+     * 读取 in 中的全部数据，切块保存并写入 fileId 的清单。数据只读取一次，文件的 SHA-256 同时算出
+     *
+     * @throws IllegalArgumentException 数据为空
+     */
+    public Manifest write(String fileId, InputStream in) throws IOException {
+        File manifestFile = manifestFile(fileId);
+        ensureDirectory(manifestRoot);
+
+        MessageDigest fileDigest = IncrementalDigest.newDigest();
+        MessageDigest chunkDigest = IncrementalDigest.newDigest();
+        Manifest manifest = new Manifest();
+        Set<String> pins = new HashSet<>();
+
+        long cpuStarted = cpuTime();
+        long started = System.nanoTime();
+        byte[] buffer = new byte[chunker.getMaxSize()];
+        int filled = 0;
+        boolean eof = false;
+        try {
+            while (true) {
+                // 缓冲区填满（或数据结束）后再找切点，保证切点只由内容决定
+                while (!eof && filled < buffer.length) {
+                    int n = in.read(buffer, filled, buffer.length - filled);
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        filled += n;
+                    }
+                }
+                if (filled == 0) {
+                    break;
+                }
+
+                int length = chunker.cut(buffer, 0, filled);
+                fileDigest.update(buffer, 0, length);
+                chunkDigest.update(buffer, 0, length);
+                String hash = IncrementalDigest.toHex(chunkDigest.digest());
+
+                // 先固定再检查是否存在：固定之后回收不会删除这个分块
+                if (pins.add(hash)) {
+                    pin(hash);
+                }
+                if (storeChunk(hash, buffer, length)) {
+                    manifest.storedChunks++;
+                    manifest.storedBytes += length;
+                }
+                manifest.chunks.add(new Chunk(hash, length));
+                manifest.size += length;
+
+                System.arraycopy(buffer, length, buffer, 0, filled - length);
+                filled -= length;
+            }
+
+            if (manifest.size == 0) {
+                throw new IllegalArgumentException("File is empty");
+            }
+            manifest.checksum = IncrementalDigest.toHex(fileDigest.digest());
+            writeManifest(manifestFile, manifest);
+        } finally {
+            unpin(pins);
+        }
+
+        long elapsed = System.nanoTime() - started;
+        long cpu = cpuStarted >= 0 ? cpuTime() - cpuStarted : elapsed;
+        ingestedBytes.addAndGet(manifest.size);
+        ingestedChunks.addAndGet(manifest.chunks.size());
+        storedBytes.addAndGet(manifest.storedBytes);
+        storedChunks.addAndGet(manifest.storedChunks);
+        ingestNanos.addAndGet(elapsed);
+        ingestCpuNanos.addAndGet(cpu);
+
+        logger.info("分块存储写入: id={}, 大小={}, 分块数={}, 新分块={}, 新增字节={}, CPU 吞吐={} MB/s",
+                fileId, manifest.size, manifest.chunks.size(), manifest.storedChunks, manifest.storedBytes,
+                String.format("%.1f", throughput(manifest.size, cpu)));
+        return manifest;
+    }
+
+    /**
+     * 分块不存在时写入，返回是否新写入。写入临时文件后原子重命名，读者不会看到不完整的分块
+     */
+    private boolean storeChunk(String hash, byte[] data, int length) throws IOException {
+        File chunk = chunkFile(hash);
+        if (chunk.length() == length) {
+            return false;
+        }
+
+        File parent = chunk.getParentFile();
+        ensureDirectory(parent);
+        Path temp = Files.createTempFile(parent.toPath(), hash, ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                out.write(data, 0, length);
+            }
+            try {
+                Files.move(temp, chunk.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, chunk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    private void writeManifest(File manifestFile, Manifest manifest) throws IOException {
+        File temp = new File(manifestFile.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            writer.write(MANIFEST_HEADER);
+            writer.write('\n');
+            writer.write(manifest.size + " " + manifest.checksum + "\n");
+            for (Chunk chunk : manifest.chunks) {
+                writer.write(chunk.hash + " " + chunk.length + "\n");
+            }
+        }
+        try {
+            Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public Manifest readManifest(File manifestFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8))) {
+            if (!MANIFEST_HEADER.equals(reader.readLine())) {
+                throw new IOException("不是有效的分块清单: " + manifestFile);
+            }
+            Manifest manifest = new Manifest();
+            String[] summary = split(reader.readLine(), manifestFile);
+            manifest.size = Long.parseLong(summary[0]);
+            manifest.checksum = summary[1];
+            if (!SHA256.matcher(manifest.checksum).matches()) {
+                throw new IOException("不是有效的分块清单: " + manifestFile);
+            }
+
+            long total = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = split(line, manifestFile);
+                if (!SHA256.matcher(parts[0]).matches()) {
+                    throw new IOException("不是有效的分块清单: " + manifestFile);
+                }
+                Chunk chunk = new Chunk(parts[0], Integer.parseInt(parts[1]));
+                manifest.chunks.add(chunk);
+                total += chunk.length;
+            }
+            if (total != manifest.size) {
+                throw new IOException("分块清单大小不一致: " + manifestFile);
+            }
+            return manifest;
+        } catch (NumberFormatException e) {
+            throw new IOException("不是有效的分块清单: " + manifestFile, e);
+        }
+    }
+
+    private String[] split(String line, File manifestFile) throws IOException {
+        String[] parts = line != null ? line.split(" ") : new String[0];
+        if (parts.length != 2) {
+            throw new IOException("不是有效的分块清单: " + manifestFile);
+        }
+        return parts;
+    }
+
+    /**
+     * 按清单顺序读取分块，重新拼出文件内容；分块在读到时才打开
+     */
+    public InputStream open(File manifestFile) throws IOException {
+        return new ChunkedInputStream(readManifest(manifestFile).chunks);
+    }
+
+    /**
+     * 删除没有被任何清单引用的分块
+     *
+     * @param liveManifests 文件目录中仍在使用的清单路径；不在其中且早于宽限期的清单视为残留一并删除
+     * @param graceMillis   宽限期，刚写入、尚未登记的清单不会被当作残留
+     * @return 删除的分块数；有清单无法读取时不删除分块并返回 -1
+     */
+    public int collectGarbage(Set<String> liveManifests, long graceMillis) {
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        synchronized (pinned) {
+            collecting = true;
+            retained.clear();
+        }
+        try {
+            Set<String> marked = new HashSet<>();
+            int orphans = 0;
+            File[] manifests = manifestRoot.listFiles();
+            for (File file : manifests != null ? manifests : new File[0]) {
+                if (!file.getName().endsWith(MANIFEST_SUFFIX)) {
+                    if (file.lastModified() < cutoff && file.delete()) {
+                        logger.debug("删除残留的临时清单: {}", file.getName());
+                    }
+                    continue;
+                }
+                if (!liveManifests.contains(file.getAbsolutePath()) && file.lastModified() < cutoff) {
+                    if (file.delete()) {
+                        orphans++;
+                    }
+                    continue;
+                }
+                try {
+                    for (Chunk chunk : readManifest(file).chunks) {
+                        marked.add(chunk.hash);
+                    }
+                } catch (FileNotFoundException e) {
+                    // 文件在标记期间被删除
+                } catch (IOException e) {
+                    logger.warn("分块回收中止，无法读取清单: {} - {}", file.getName(), e.getMessage());
+                    return -1;
+                }
+            }
+
+            long chunks = 0;
+            long bytes = 0;
+            int deleted = 0;
+            long freed = 0;
+            for (File first : listDirectories(chunkRoot)) {
+                for (File second : listDirectories(first)) {
+                    File[] files = second.listFiles();
+                    for (File file : files != null ? files : new File[0]) {
+                        String name = file.getName();
+                        if (!SHA256.matcher(name).matches()) {
+                            if (file.lastModified() < cutoff) {
+                                file.delete();
+                            }
+                            continue;
+                        }
+                        long length = file.length();
+                        if (!marked.contains(name) && deleteUnreferenced(name, file)) {
+                            deleted++;
+                            freed += length;
+                        } else {
+                            chunks++;
+                            bytes += length;
+                        }
+                    }
+                }
+            }
+
+            diskChunks = chunks;
+            diskBytes = bytes;
+            collectedChunks += deleted;
+            lastCollected = System.currentTimeMillis();
+            logger.info("分块回收完成: 删除分块={}, 释放字节={}, 删除残留清单={}, 剩余分块={}, 占用字节={}",
+                    deleted, freed, orphans, chunks, bytes);
+            return deleted;
+        } finally {
+            synchronized (pinned) {
+                collecting = false;
+                retained.clear();
+            }
+        }
+    }
+
+    private boolean deleteUnreferenced(String hash, File file) {
+        synchronized (pinned) {
+            if (pinned.containsKey(hash) || retained.contains(hash)) {
+                return false;
+            }
+            return file.delete();
+        }
+    }
+
+    private void pin(String hash) {
+        synchronized (pinned) {
+            pinned.merge(hash, 1, Integer::sum);
+        }
+    }
+
+    private void unpin(Set<String> hashes) {
+        synchronized (pinned) {
+            for (String hash : hashes) {
+                pinned.computeIfPresent(hash, (k, v) -> v > 1 ? v - 1 : null);
+            }
+            if (collecting) {
+                retained.addAll(hashes);
+            }
+        }
+    }
+
+    /**
+     * 写入统计：去重率 = 写入的逻辑字节 / 新保存的字节；每核吞吐按写入线程消耗的 CPU 时间计算
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long ingested = ingestedBytes.get();
+        long stored = storedBytes.get();
+        stats.put("minChunkSize", chunker.getMinSize());
+        stats.put("avgChunkSize", chunker.getAvgSize());
+        stats.put("maxChunkSize", chunker.getMaxSize());
+        stats.put("ingestedBytes", ingested);
+        stats.put("ingestedChunks", ingestedChunks.get());
+        stats.put("storedBytes", stored);
+        stats.put("storedChunks", storedChunks.get());
+        stats.put("dedupRatio", stored > 0 ? (double) ingested / stored : 0.0);
+        stats.put("ingestMBps", throughput(ingested, ingestNanos.get()));
+        stats.put("ingestMBpsPerCore", throughput(ingested, ingestCpuNanos.get()));
+        stats.put("diskChunks", diskChunks);
+        stats.put("diskBytes", diskBytes);
+        stats.put("collectedChunks", collectedChunks);
+        stats.put("lastCollected", lastCollected);
+        return stats;
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return nanos > 0 ? bytes / MB / (nanos / 1e9) : 0.0;
+    }
+
+    private static long cpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static List<File> listDirectories(File directory) {
+        File[] files = directory.listFiles(File::isDirectory);
+        return files != null ? Arrays.asList(files) : Collections.<File>emptyList();
+    }
+
+    private static void ensureDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("无法创建分块存储目录: " + directory);
+        }
+    }
+
+    /**
+     * 文件清单
+     */
+    public static final class Manifest {
+        private final List<Chunk> chunks = new ArrayList<>();
+        private long size;
+        private String checksum;
+        private int storedChunks;
+        private long storedBytes;
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public int getChunkCount() {
+            return chunks.size();
+        }
+
+        /**
+         * 本次写入新保存的分块数（读取的清单为 0）
+         */
+        public int getStoredChunks() {
+            return storedChunks;
+        }
+
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+    }
+
+    private static final class Chunk {
+        private final String hash;
+        private final int length;
+
+        Chunk(String hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 依次读取清单中的分块
+     */
+    private final class ChunkedInputStream extends InputStream {
+        private final List<Chunk> chunks;
+        private int index;
+        private InputStream current;
+        private long remaining;
+
+        ChunkedInputStream(List<Chunk> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int n = read(single, 0, 1);
+            return n > 0 ? single[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current == null && !openNext()) {
+                    return -1;
+                }
+                int n = current.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) {
+                    remaining -= n;
+                    return n;
+                }
+                if (n < 0 && remaining > 0) {
+                    throw new IOException("分块不完整: " + chunks.get(index - 1).hash);
+                }
+                closeCurrent();
+            }
+        }
+
+        /**
+         * 整块跳过时不打开分块文件
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                if (current == null) {
+                    if (index >= chunks.size()) {
+                        break;
+                    }
+                    Chunk chunk = chunks.get(index);
+                    if (n - skipped >= chunk.length) {
+                        skipped += chunk.length;
+                        index++;
+                        continue;
+                    }
+                    openNext();
+                }
+                long s = current.skip(Math.min(n - skipped, remaining));
+                if (s <= 0) {
+                    closeCurrent();
+                    continue;
+                }
+                remaining -= s;
+                skipped += s;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current != null ? (int) Math.min(remaining, Integer.MAX_VALUE) : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeCurrent();
+            index = chunks.size();
+        }
+
+        private boolean openNext() throws IOException {
+            if (index >= chunks.size()) {
+                return false;
+            }
+            Chunk chunk = chunks.get(index++);
+            try {
+                current = new FileInputStream(chunkFile(chunk.hash));
+            } catch (FileNotFoundException e) {
+                throw new FileNotFoundException("分块缺失: " + chunk.hash);
+            }
+            remaining = chunk.length;
+            return true;
+        }
+
+        private void closeCurrent() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+                remaining = 0;
+            }
+        }
+    }
+}
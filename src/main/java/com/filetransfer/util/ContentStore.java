@@ -0,0 +1,144 @@
+package com.filetransfer.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 按内容寻址的文件存储（CAS）
+ *
+ * 文件内容以 SHA-256 命名保存为 blobs/ab/cd/abcd...，多条文件记录可以引用同一个内容块。
+ * 引用计数不单独持久化，而是由文件目录中的记录推导：目录加载、写入和删除记录时调用
+ * {@link #update(String, String)} / {@link #remove(String)}，这样计数不会与目录不一致。
+ * 记录的修改和内容块的删除由调用方在同一把锁内完成。
+ */
+public class ContentStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentStore.class);
+
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    private final File root;
+    private final String rootPrefix;
+
+    // fileId -> 引用的内容块路径
+    private final Map<String, String> references = new ConcurrentHashMap<>();
+    // 内容块路径 -> 引用数
+    private final Map<String, Integer> counts = new ConcurrentHashMap<>();
+
+    public ContentStore(File root) {
+        this.root = root.getAbsoluteFile();
+        this.rootPrefix = this.root.getPath() + File.separator;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * 内容块的路径（不检查是否存在）
+     */
+    public File blobFile(String sha256) {
+        String hash = sha256 != null ? sha256.toLowerCase(Locale.ROOT) : "";
+        if (!SHA256.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Invalid SHA-256: " + sha256);
+        }
+        return new File(root, hash.substring(0, 2) + File.separator + hash.substring(2, 4) + File.separator + hash);
+    }
+
+    /**
+     * 查找已有的内容块；不存在或大小不符时返回 null
+     */
+    public File findBlob(String sha256, long size) {
+        File blob = blobFile(sha256);
+        return blob.isFile() && blob.length() == size ? blob : null;
+    }
+
+    public boolean isBlob(String path) {
+        return path != null && new File(path).getAbsolutePath().startsWith(rootPrefix);
+    }
+
+    /**
+     * 把已写好并计算过摘要的文件放入存储。相同内容已存在时删除 written，直接复用已有的内容块
+     *
+     * @return 内容块文件
+     */
+    public File store(Path written, String sha256) throws IOException {
+        File blob = blobFile(sha256);
+        if (blob.isFile() && blob.length() == Files.size(written)) {
+            Files.delete(written);
+            logger.info("内容已存在，复用内容块: {}", blob.getName());
+            return blob;
+        }
+
+        File parent = blob.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("无法创建内容存储目录: " + parent);
+        }
+        try {
+            Files.move(written, blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(written, blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return blob;
+    }
+
+    /**
+     * 记录文件当前引用的路径；不在存储中的路径视为没有引用
+     */
+    public synchronized void update(String fileId, String path) {
+        String blob = isBlob(path) ? new File(path).getAbsolutePath() : null;
+        String previous = blob != null ? references.put(fileId, blob) : references.remove(fileId);
+        if (previous != null && previous.equals(blob)) {
+            return;
+        }
+        if (previous != null) {
+            decrement(previous);
+        }
+        if (blob != null) {
+            counts.merge(blob, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * 删除文件的引用
+     *
+     * @return 被引用内容块的剩余引用数；文件没有引用内容块时返回 -1
+     */
+    public synchronized int remove(String fileId) {
+        String previous = references.remove(fileId);
+        return previous != null ? decrement(previous) : -1;
+    }
+
+    public int getReferenceCount(String path) {
+        if (path == null) {
+            return 0;
+        }
+        Integer count = counts.get(new File(path).getAbsolutePath());
+        return count != null ? count : 0;
+    }
+
+    public synchronized void clear() {
+        references.clear();
+        counts.clear();
+    }
+
+    public int getBlobCount() {
+        return counts.size();
+    }
+
+    private int decrement(String blob) {
+        Integer remaining = counts.computeIfPresent(blob, (k, v) -> v > 1 ? v - 1 : null);
+        return remaining != null ? remaining : 0;
+    }
+}
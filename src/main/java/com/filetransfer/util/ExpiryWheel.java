@@ -0,0 +1,166 @@
+package com.filetransfer.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按过期时间索引记录的分层时间轮
+ *
+ * 5 层、每层 64 个槽；第 0 层每槽一个 tick，第 n 层每槽 64^n 个 tick，tick 为 1 秒时可覆盖约 34 年，
+ * 更远的过期时间先放在最高层，转到时再重新放置。添加、修改和删除都是 O(1)；
+ * {@link #pollExpired(long)} 只推进经过的 tick、处理到期的槽，不需要遍历全部记录。
+ * 高层的槽在低层转完一圈时下放（cascade）到更精确的位置。
+ *
+ * 到期精度为一个 tick：过期时间落在某个 tick 内的记录在该 tick 结束后返回。
+ * 返回的键只表示索引认为已到期，调用方应再按记录当前的过期时间确认。
+ */
+public class ExpiryWheel<K> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+    private static final long MAX_SPAN = 1L << (BITS * LEVELS);
+
+    private final long tickMillis;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Set<Entry<K>>[][] wheel = new Set[LEVELS][SLOTS];
+    private final Map<K, Entry<K>> entries = new HashMap<>();
+    // 下一个要处理的 tick；小于它的 tick 都已处理
+    private long currentTick;
+
+    private static final class Entry<K> {
+        final K key;
+        final long deadlineTick;
+        Set<Entry<K>> bucket;
+
+        Entry(K key, long deadlineTick) {
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    /**
+     * @param tickMillis 时间轮的精度（毫秒）
+     * @param nowMillis  起始时间
+     */
+    public ExpiryWheel(long tickMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = new LinkedHashSet<>();
+            }
+        }
+    }
+
+    /**
+     * 添加或修改记录的过期时间；已经过期的记录在下一次 pollExpired 时返回
+     */
+    public synchronized void schedule(K key, long expiryMillis) {
+        cancel(key);
+        // 向上取整：过期时间所在的 tick 处理完时记录一定已经过期
+        Entry<K> entry = new Entry<>(key, Math.floorDiv(expiryMillis + tickMillis - 1, tickMillis));
+        entries.put(key, entry);
+        place(entry);
+    }
+
+    public synchronized void cancel(K key) {
+        Entry<K> entry = entries.remove(key);
+        if (entry != null) {
+            entry.bucket.remove(entry);
+            entry.bucket = null;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        for (Set<Entry<K>>[] level : wheel) {
+            for (Set<Entry<K>> bucket : level) {
+                bucket.clear();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 推进到 nowMillis，取出并删除在此之前到期的记录
+     */
+    public synchronized List<K> pollExpired(long nowMillis) {
+        List<K> expired = new ArrayList<>();
+        long nowTick = nowMillis / tickMillis;
+        while (currentTick <= nowTick) {
+            if (entries.isEmpty()) {
+                currentTick = nowTick + 1;
+                break;
+            }
+            Set<Entry<K>> bucket = wheel[0][(int) (currentTick & MASK)];
+            if (!bucket.isEmpty()) {
+                List<Entry<K>> due = new ArrayList<>(bucket);
+                bucket.clear();
+                for (Entry<K> entry : due) {
+                    entry.bucket = null;
+                    if (entry.deadlineTick <= currentTick) {
+                        entries.remove(entry.key);
+                        expired.add(entry.key);
+                    } else {
+                        place(entry);
+                    }
+                }
+            }
+            currentTick++;
+            cascade();
+        }
+        return expired;
+    }
+
+    /**
+     * 低层转完一圈时，把上一层当前槽的记录重新放到更精确的位置
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) {
+                return;
+            }
+            Set<Entry<K>> bucket = wheel[level][(int) ((currentTick >>> (BITS * level)) & MASK)];
+            if (!bucket.isEmpty()) {
+                List<Entry<K>> moved = new ArrayList<>(bucket);
+                bucket.clear();
+                for (Entry<K> entry : moved) {
+                    place(entry);
+                }
+            }
+        }
+    }
+
+    private void place(Entry<K> entry) {
+        long deadline = entry.deadlineTick;
+        long delta = deadline - currentTick;
+        Set<Entry<K>> bucket;
+        if (delta < 0) {
+            // 已经过期：放到下一个要处理的槽
+            bucket = wheel[0][(int) (currentTick & MASK)];
+        } else if (delta >= MAX_SPAN) {
+            // 超出范围：先放在最高层最远的位置，转到时再重新放置
+            bucket = wheel[LEVELS - 1][(int) (((currentTick + MAX_SPAN - 1) >>> (BITS * (LEVELS - 1))) & MASK)];
+        } else {
+            int level = 0;
+            while (delta >= (1L << (BITS * (level + 1)))) {
+                level++;
+            }
+            bucket = wheel[level][(int) ((deadline >>> (BITS * level)) & MASK)];
+        }
+        bucket.add(entry);
+        entry.bucket = bucket;
+    }
+}
@@ -0,0 +1,83 @@
+package com.filetransfer.util;
+
+import java.util.Random;
+
+/**
+ * FastCDC 内容定义分块
+ *
+ * 用 Gear 滚动哈希在数据中寻找切点，切点只取决于附近 64 字节的内容：文件中间插入或删除数据后，
+ * 只有修改位置附近的分块会变化，其余分块与旧版本相同，可以去重。
+ * 采用归一化分块：平均长度之前使用更严格的掩码、之后使用更宽松的掩码，使分块长度集中在平均值附近；
+ * 并跳过最小长度之前的字节，不计算哈希。
+ */
+public class FastCdc {
+
+    // Gear 表必须固定不变，否则重启后同样的内容会得到不同的切点
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x46617374434443L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    public FastCdc(int minSize, int avgSize, int maxSize) {
+        if (minSize < 64 || minSize >= avgSize || avgSize >= maxSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes: min=" + minSize + ", avg=" + avgSize
+                    + ", max=" + maxSize);
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = 63 - Long.numberOfLeadingZeros(avgSize);
+        // 使用高位：左移的 Gear 哈希中高位受最近 64 个字节影响，低位只受最近几个字节影响
+        this.maskSmall = -1L << (64 - (bits + 1));
+        this.maskLarge = -1L << (64 - (bits - 1));
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getAvgSize() {
+        return avgSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 返回从 offset 开始的下一个分块长度。length 小于最大分块长度时视为数据结尾
+     */
+    public int cut(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, avgSize);
+
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
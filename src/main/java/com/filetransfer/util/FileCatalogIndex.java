@@ -0,0 +1,339 @@
+package com.filetransfer.util;
+
+import com.filetransfer.model.FileInfo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文件目录的二级索引：userId -> 按上传时间/大小/名称排序的文件ID集合，以及公开文件集合
+ *
+ * 写操作由调用方与 fileInfoMap 的修改放在同一把锁内完成；读操作无锁，
+ * 遍历得到的是弱一致的视图。每个文件记住自己当前的索引键，
+ * 这样所有者、排序字段或公开状态变化时可以先从旧位置移除。
+ *
+ * 分页游标编码了上一页最后一条记录的排序键，而不是偏移量，
+ * 因此翻页只需要一次 O(log n) 的定位，翻页期间的插入和删除也不会导致重复或遗漏。
+ *
+ * 每次修改还会推进相关用户的目录版本号，列表接口用它生成 ETag。
+ * 版本号取自一个全局递增序列，因此对每个用户都是单调递增的；clear() 会让所有用户的版本前进。
+ */
+public class FileCatalogIndex {
+
+    /**
+     * 支持的排序字段
+     */
+    public enum SortField {
+        UPLOAD_DATE("uploadDate", "u"),
+        SIZE("size", "s"),
+        NAME("name", "n");
+
+        private final String parameter;
+        private final String code;
+
+        SortField(String parameter, String code) {
+            this.parameter = parameter;
+            this.code = code;
+        }
+
+        public String getParameter() {
+            return parameter;
+        }
+
+        /**
+         * 解析请求参数，null 或空字符串表示默认的 uploadDate
+         */
+        public static SortField fromParameter(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return UPLOAD_DATE;
+            }
+            for (SortField field : values()) {
+                if (field.parameter.equalsIgnoreCase(value.trim())) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported sort field: " + value);
+        }
+
+        private static SortField fromCode(String code) {
+            for (SortField field : values()) {
+                if (field.code.equals(code)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    private static final Comparator<Key> BY_UPLOAD_DATE = Comparator
+            .comparingLong((Key key) -> key.uploadTime)
+            .thenComparing(key -> key.id);
+    private static final Comparator<Key> BY_SIZE = Comparator
+            .comparingLong((Key key) -> key.size)
+            .thenComparing(key -> key.id);
+    private static final Comparator<Key> BY_NAME = Comparator
+            .comparing((Key key) -> key.name)
+            .thenComparing(key -> key.id);
+
+    private final Map<String, UserFiles> byUser = new ConcurrentHashMap<>();
+    private final NavigableSet<Key> publicFiles = new ConcurrentSkipListSet<>(BY_UPLOAD_DATE);
+    private final Map<String, Key> keys = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Long> userVersions = new ConcurrentHashMap<>();
+    private volatile long clearedVersion;
+
+    /**
+     * 添加或重新索引一个文件
+     */
+    public void put(FileInfo fileInfo) {
+        remove(fileInfo.getId());
+
+        Key key = new Key(fileInfo);
+        keys.put(key.id, key);
+        if (key.owner != null) {
+            byUser.computeIfAbsent(key.owner, k -> new UserFiles()).add(key);
+            touch(key.owner);
+        }
+        if (key.isPublic) {
+            publicFiles.add(key);
+        }
+    }
+
+    public void remove(String fileId) {
+        Key key = keys.remove(fileId);
+        if (key == null) {
+            return;
+        }
+        if (key.owner != null) {
+            UserFiles owned = byUser.get(key.owner);
+            if (owned != null) {
+                owned.remove(key);
+                if (owned.isEmpty()) {
+                    byUser.remove(key.owner);
+                }
+            }
+            touch(key.owner);
+        }
+        publicFiles.remove(key);
+    }
+
+    public void clear() {
+        byUser.clear();
+        publicFiles.clear();
+        keys.clear();
+        userVersions.clear();
+        clearedVersion = sequence.incrementAndGet();
+    }
+
+    /**
+     * 用户文件列表的当前版本号；列表内容（包括任意字段）变化后版本号一定增大
+     */
+    public long getUserVersion(String userId) {
+        Long version = userId != null ? userVersions.get(userId) : null;
+        return Math.max(clearedVersion, version != null ? version : 0L);
+    }
+
+    /**
+     * 用户文件列表的内容在不修改索引键的情况下发生了变化（例如存在状态改变）
+     */
+    public void touch(String userId) {
+        if (userId != null) {
+            userVersions.put(userId, sequence.incrementAndGet());
+        }
+    }
+
+    /**
+     * 用户的文件ID（按上传时间升序）
+     */
+    public List<String> getUserFileIds(String userId) {
+        List<String> ids = new ArrayList<>();
+        iterateUserFileIds(userId, SortField.UPLOAD_DATE, false, null).forEachRemaining(ids::add);
+        return ids;
+    }
+
+    /**
+     * 按指定顺序遍历用户的文件ID
+     *
+     * @param cursor 上一页返回的游标，只返回排在它之后的记录；null 表示从头开始
+     * @throws IllegalArgumentException 游标无效或与排序字段不匹配
+     */
+    public Iterator<String> iterateUserFileIds(String userId, SortField sort, boolean descending, String cursor) {
+        Key after = cursor != null && !cursor.isEmpty() ? decodeCursor(cursor, sort) : null;
+        UserFiles owned = userId != null ? byUser.get(userId) : null;
+        if (owned == null) {
+            return Collections.emptyIterator();
+        }
+
+        NavigableSet<Key> set = owned.get(sort);
+        if (descending) {
+            set = set.descendingSet();
+        }
+        if (after != null) {
+            set = set.tailSet(after, false);
+        }
+
+        Iterator<Key> keyIterator = set.iterator();
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return keyIterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return keyIterator.next().id;
+            }
+        };
+    }
+
+    public int getUserFileCount(String userId) {
+        UserFiles owned = userId != null ? byUser.get(userId) : null;
+        return owned != null ? owned.size() : 0;
+    }
+
+    /**
+     * 公开文件的ID（按上传时间升序）
+     */
+    public List<String> getPublicFileIds() {
+        List<String> ids = new ArrayList<>();
+        for (Key key : publicFiles) {
+            ids.add(key.id);
+        }
+        return ids;
+    }
+
+    /**
+     * 生成指向某个文件之后位置的分页游标
+     */
+    public static String encodeCursor(FileInfo fileInfo, SortField sort) {
+        Key key = new Key(fileInfo);
+        String value;
+        switch (sort) {
+            case SIZE:
+                value = Long.toString(key.size);
+                break;
+            case NAME:
+                value = key.name;
+                break;
+            default:
+                value = Long.toString(key.uploadTime);
+                break;
+        }
+        // 名称可能包含分隔符，放在最后
+        String raw = sort.code + "|" + key.id + "|" + value;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Key decodeCursor(String cursor, SortField sort) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 3);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        if (SortField.fromCode(parts[0]) != sort) {
+            throw new IllegalArgumentException("Cursor does not match sort field: " + sort.getParameter());
+        }
+
+        Key key = new Key(parts[1]);
+        try {
+            switch (sort) {
+                case SIZE:
+                    key.size = Long.parseLong(parts[2]);
+                    break;
+                case NAME:
+                    key.name = parts[2];
+                    break;
+                default:
+                    key.uploadTime = Long.parseLong(parts[2]);
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return key;
+    }
+
+    /**
+     * 单个用户的文件，按每种排序字段各保存一份
+     */
+    private static final class UserFiles {
+        private final NavigableSet<Key> byUploadDate = new ConcurrentSkipListSet<>(BY_UPLOAD_DATE);
+        private final NavigableSet<Key> bySize = new ConcurrentSkipListSet<>(BY_SIZE);
+        private final NavigableSet<Key> byName = new ConcurrentSkipListSet<>(BY_NAME);
+
+        NavigableSet<Key> get(SortField sort) {
+            switch (sort) {
+                case SIZE:
+                    return bySize;
+                case NAME:
+                    return byName;
+                default:
+                    return byUploadDate;
+            }
+        }
+
+        void add(Key key) {
+            byUploadDate.add(key);
+            bySize.add(key);
+            byName.add(key);
+        }
+
+        void remove(Key key) {
+            byUploadDate.remove(key);
+            bySize.remove(key);
+            byName.remove(key);
+        }
+
+        boolean isEmpty() {
+            return byUploadDate.isEmpty();
+        }
+
+        int size() {
+            return byUploadDate.size();
+        }
+    }
+
+    /**
+     * 索引键：保存建立索引时的所有排序字段、所有者和公开状态
+     */
+    private static final class Key {
+        private final String id;
+        private String owner;
+        private boolean isPublic;
+        private long uploadTime;
+        private long size;
+        private String name = "";
+
+        private Key(String id) {
+            this.id = id;
+        }
+
+        private Key(FileInfo fileInfo) {
+            this.id = fileInfo.getId();
+            this.owner = fileInfo.getUploadedBy();
+            this.isPublic = fileInfo.isPublic();
+            this.uploadTime = fileInfo.getUploadDate() != null ? fileInfo.getUploadDate().getTime() : 0L;
+            this.size = fileInfo.getSize();
+            // 与页面显示一致：优先使用原始文件名，不区分大小写
+            String displayName = fileInfo.getOriginalFileName() != null
+                    ? fileInfo.getOriginalFileName() : fileInfo.getFileName();
+            this.name = displayName != null ? displayName.toLowerCase(Locale.ROOT) : "";
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.filetransfer.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 目录中文件存在状态的缓存
+ *
+ * 列表请求只读取缓存，不再对每个文件调用 exists()。缓存由两部分维护：
+ * <ul>
+ *     <li>对被监视目录的 {@link WatchService}，文件创建/修改/删除时立即更新对应条目</li>
+ *     <li>调用方定期执行的 {@link #refresh(String)}，用于兜底（例如 NFS 上不会产生事件，或事件溢出）</li>
+ * </ul>
+ * 第一次查询未知路径时同步 stat 一次并缓存结果。
+ */
+public class FileExistenceCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileExistenceCache.class);
+
+    private final Map<String, Boolean> present = new ConcurrentHashMap<>();
+    private final Consumer<String> missingListener;
+
+    private WatchService watchService;
+    private Path watchedDirectory;
+    private Thread watcher;
+    private volatile boolean running;
+
+    /**
+     * @param missingListener 监视到文件被删除（或事件溢出）时回调，参数为文件绝对路径，溢出时为 null
+     */
+    public FileExistenceCache(Consumer<String> missingListener) {
+        this.missingListener = missingListener;
+    }
+
+    /**
+     * 开始监视目录；失败时只记录日志，缓存仍可依靠定期校验工作
+     */
+    public synchronized void watch(File directory) {
+        stop();
+        try {
+            watchedDirectory = directory.getAbsoluteFile().toPath();
+            watchService = FileSystems.getDefault().newWatchService();
+            watchedDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.warn("无法监视目录 {}，仅依靠定期校验: {}", directory, e.getMessage());
+            closeWatchService();
+            return;
+        }
+
+        running = true;
+        WatchService service = watchService;
+        Path directoryPath = watchedDirectory;
+        watcher = new Thread(() -> processEvents(service, directoryPath), "file-existence-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        logger.info("开始监视目录: {}", watchedDirectory);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        closeWatchService();
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    /**
+     * 查询文件是否存在（优先使用缓存）
+     */
+    public boolean isPresent(String path) {
+        if (path == null) {
+            return false;
+        }
+        String key = key(path);
+        Boolean cached = present.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        return refresh(key);
+    }
+
+    /**
+     * 重新 stat 一个路径并更新缓存，返回最新状态
+     */
+    public boolean refresh(String path) {
+        String key = key(path);
+        File file = new File(key);
+        boolean exists = file.isFile();
+        present.put(key, exists);
+        return exists;
+    }
+
+    /**
+     * 写入文件后直接登记为存在，避免紧接着的列表请求读到旧状态
+     */
+    public void markPresent(String path) {
+        if (path != null) {
+            present.put(key(path), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 不再跟踪某个路径（对应记录已删除）
+     */
+    public void forget(String path) {
+        if (path != null) {
+            present.remove(key(path));
+        }
+    }
+
+    public void clear() {
+        present.clear();
+    }
+
+    public int size() {
+        return present.size();
+    }
+
+    private void processEvents(WatchService service, Path directory) {
+        while (running) {
+            WatchKey watchKey;
+            try {
+                watchKey = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // 丢失了事件，所有缓存都不可信
+                    logger.warn("目录监视事件溢出，清空存在状态缓存: {}", directory);
+                    present.clear();
+                    notifyMissing(null);
+                    continue;
+                }
+
+                String path = key(directory.resolve((Path) event.context()).toString());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    if (present.replace(path, Boolean.TRUE, Boolean.FALSE)) {
+                        notifyMissing(path);
+                    }
+                } else if (present.containsKey(path)) {
+                    refresh(path);
+                }
+            }
+
+            if (!watchKey.reset()) {
+                logger.warn("目录已不可监视: {}", directory);
+                break;
+            }
+        }
+    }
+
+    private void notifyMissing(String path) {
+        try {
+            missingListener.accept(path);
+        } catch (Exception e) {
+            logger.error("处理文件删除事件失败: {}", e.getMessage(), e);
+        }
+    }
+
+    private void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("关闭目录监视失败: {}", e.getMessage());
+            }
+            watchService = null;
+        }
+    }
+
+    private static String key(String path) {
+        return new File(path).getAbsolutePath();
+    }
+}
@@ -0,0 +1,90 @@
+package com.filetransfer.util;
+
+import com.filetransfer.model.FileInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 文件列表的字段投影（fields=id,fileName,size）
+ *
+ * 属性名与 FileInfo 的 JSON 属性名一致；值保持原始类型（例如 Date），
+ * 由 MVC 的 ObjectMapper 按统一的格式序列化。FileInfo 新增属性时需要同步在这里登记。
+ */
+public final class FileInfoProjection {
+
+    private static final Map<String, Function<FileInfo, Object>> ACCESSORS;
+
+    static {
+        Map<String, Function<FileInfo, Object>> accessors = new LinkedHashMap<>();
+        accessors.put("id", FileInfo::getId);
+        accessors.put("fileName", FileInfo::getFileName);
+        accessors.put("originalFileName", FileInfo::getOriginalFileName);
+        accessors.put("contentType", FileInfo::getContentType);
+        accessors.put("size", FileInfo::getSize);
+        accessors.put("path", FileInfo::getPath);
+        accessors.put("uploadDate", FileInfo::getUploadDate);
+        accessors.put("expiryDate", FileInfo::getExpiryDate);
+        accessors.put("uploadedBy", FileInfo::getUploadedBy);
+        accessors.put("status", FileInfo::getStatus);
+        accessors.put("checksum", FileInfo::getChecksum);
+        accessors.put("checksumFileSize", FileInfo::getChecksumFileSize);
+        accessors.put("checksumFileModified", FileInfo::getChecksumFileModified);
+        accessors.put("public", FileInfo::isPublic);
+        accessors.put("downloadCount", FileInfo::getDownloadCount);
+        accessors.put("fileExtension", FileInfo::getFileExtension);
+        accessors.put("description", FileInfo::getDescription);
+        ACCESSORS = Collections.unmodifiableMap(accessors);
+    }
+
+    private FileInfoProjection() {
+    }
+
+    /**
+     * 解析 fields 参数
+     *
+     * @return 字段列表；参数为空时返回 null，表示不投影
+     * @throws IllegalArgumentException 包含未知字段
+     */
+    public static List<String> parseFields(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        for (String field : fields.split(",")) {
+            field = field.trim();
+            if (field.isEmpty()) {
+                continue;
+            }
+            if (!ACCESSORS.containsKey(field)) {
+                throw new IllegalArgumentException("Unknown field: " + field);
+            }
+            if (!result.contains(field)) {
+                result.add(field);
+            }
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * 按字段列表投影；fields 为 null 时原样返回
+     */
+    public static List<?> project(List<FileInfo> files, List<String> fields) {
+        if (fields == null) {
+            return files;
+        }
+        List<Map<String, Object>> projected = new ArrayList<>(files.size());
+        for (FileInfo fileInfo : files) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String field : fields) {
+                values.put(field, ACCESSORS.get(field).apply(fileInfo));
+            }
+            projected.add(values);
+        }
+        return projected;
+    }
+}
@@ -0,0 +1,391 @@
+package com.filetransfer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点文件内容缓存
+ *
+ * 整个文件的内容保存在直接内存（DirectByteBuffer）中，不占用 Java 堆，也不增加 GC 扫描的对象；
+ * 按字节数限制总容量，超过单条上限的文件不缓存。
+ *
+ * 淘汰和准入采用 W-TinyLFU：新内容先进入占总容量 1% 的窗口 LRU，被挤出窗口时与主区的淘汰对象比较
+ * 访问频率（由 Count-Min Sketch 估计，定期减半以适应热点变化），频率更高才能进入主区，
+ * 避免一次性的大量访问（例如扫描）把真正的热点挤出去。主区是分段 LRU：再次命中的内容从试用段
+ * 升到保护段。按大小准入：候选内容需要挤出的所有对象频率都低于它才被接受。
+ *
+ * 未命中时先查询频率再决定是否读取：第一次访问的内容、以及按当前频率无法进入主区的内容不分配缓冲区，
+ * 返回 null 由调用方直接读取文件，扫描式的访问不会反复申请和丢弃直接内存。
+ *
+ * 条目以 version（文件路径和大小）校验，内容位置变化后旧条目不会被返回。
+ * 被淘汰的缓冲区仍可能被正在进行的下载引用，直接内存在缓冲区对象被回收后才释放。
+ */
+public class HotFileCache {
+
+    // 窗口占总容量的比例，保护段占主区的比例
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // 未命中时至少达到该访问频率才读取内容放入缓存
+    private static final int MIN_LOAD_FREQUENCY = 2;
+
+    private final long capacity;
+    private final int maxEntrySize;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+
+    // 按插入顺序排列，第一个是最久未访问的；访问时删除后重新放入末尾
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+
+    public interface Loader {
+        InputStream open() throws IOException;
+    }
+
+    private static final class Entry {
+        final String key;
+        final String version;
+        final ByteBuffer buffer;
+        final int size;
+
+        Entry(String key, String version, ByteBuffer buffer) {
+            this.key = key;
+            this.version = version;
+            this.buffer = buffer;
+            this.size = buffer.capacity();
+        }
+    }
+
+    /**
+     * @param capacity     总容量（字节），0 表示不缓存
+     * @param maxEntrySize 单个文件的最大字节数
+     */
+    public HotFileCache(long capacity, int maxEntrySize) {
+        this.capacity = Math.max(0, capacity);
+        this.maxEntrySize = (int) Math.min(Math.max(0, maxEntrySize), this.capacity);
+        this.windowCapacity = Math.max(this.maxEntrySize, (long) (this.capacity * WINDOW_RATIO));
+        this.protectedCapacity = (long) ((this.capacity - windowCapacity) * PROTECTED_RATIO);
+        // 频率统计还要区分未命中时不读取的内容（扫描等），计数器数量按每 1KB 容量一个估计（256MB 时占 128KB），
+        // 计数器太少时哈希冲突会让一次性访问的内容看起来像是访问过多次
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(1024, this.capacity / 1024)));
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0 && maxEntrySize > 0;
+    }
+
+    /**
+     * 返回缓存的内容；未缓存时只有准入检查通过才读取并放入缓存
+     *
+     * @return 从位置 0 开始的只读缓冲区；文件超过单条上限、缓存已禁用、未命中且不会被缓存，
+     *         或读到的长度与 size 不一致时返回 null，调用方直接读取文件
+     */
+    public ByteBuffer get(String key, String version, long size, Loader loader) throws IOException {
+        if (!isEnabled() || size <= 0 || size > maxEntrySize) {
+            return null;
+        }
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = find(key);
+            if (entry != null && entry.version.equals(version)) {
+                touch(entry);
+                hits.increment();
+                bytesSaved.add(entry.size);
+                return entry.buffer.asReadOnlyBuffer();
+            }
+            if (entry != null) {
+                remove(key);
+                invalidated.increment();
+            }
+            misses.increment();
+            int frequency = sketch.frequency(key);
+            if (frequency < MIN_LOAD_FREQUENCY || !canAdmit(frequency, size)) {
+                bypassed.increment();
+                return null;
+            }
+        }
+
+        // 在锁外读取，不阻塞其他文件的命中
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        byte[] copy = new byte[(int) Math.min(COPY_BUFFER_SIZE, size)];
+        try (InputStream in = loader.open()) {
+            int n;
+            while (buffer.hasRemaining() && (n = in.read(copy, 0, Math.min(copy.length, buffer.remaining()))) > 0) {
+                buffer.put(copy, 0, n);
+            }
+            if (buffer.hasRemaining() || in.read() >= 0) {
+                return null;
+            }
+        }
+        buffer.flip();
+
+        synchronized (this) {
+            if (find(key) == null) {
+                Entry entry = new Entry(key, version, buffer);
+                window.put(key, entry);
+                windowBytes += entry.size;
+                evictFromWindow();
+            }
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * 删除条目；文件删除或信息修改后调用
+     */
+    public synchronized void invalidate(String key) {
+        if (remove(key) != null) {
+            invalidated.increment();
+        }
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowBytes = 0;
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    private Entry find(String key) {
+        Entry entry = window.get(key);
+        if (entry == null) {
+            entry = probation.get(key);
+        }
+        if (entry == null) {
+            entry = protectedSegment.get(key);
+        }
+        return entry;
+    }
+
+    private Entry remove(String key) {
+        Entry entry = window.remove(key);
+        if (entry != null) {
+            windowBytes -= entry.size;
+            return entry;
+        }
+        entry = probation.remove(key);
+        if (entry != null) {
+            probationBytes -= entry.size;
+            return entry;
+        }
+        entry = protectedSegment.remove(key);
+        if (entry != null) {
+            protectedBytes -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * 命中：窗口和保护段内移到末尾，试用段的条目升到保护段，保护段超出容量时把最久未访问的降回试用段
+     */
+    private void touch(Entry entry) {
+        if (window.remove(entry.key) != null) {
+            window.put(entry.key, entry);
+        } else if (protectedSegment.remove(entry.key) != null) {
+            protectedSegment.put(entry.key, entry);
+        } else if (probation.remove(entry.key) != null) {
+            probationBytes -= entry.size;
+            protectedSegment.put(entry.key, entry);
+            protectedBytes += entry.size;
+            Iterator<Entry> iterator = protectedSegment.values().iterator();
+            while (protectedBytes > protectedCapacity && iterator.hasNext()) {
+                Entry demoted = iterator.next();
+                if (demoted == entry) {
+                    break;
+                }
+                iterator.remove();
+                protectedBytes -= demoted.size;
+                probation.put(demoted.key, demoted);
+                probationBytes += demoted.size;
+            }
+        }
+    }
+
+    /**
+     * 窗口超出容量时，最久未访问的条目作为候选者与主区的淘汰对象比较频率
+     */
+    private void evictFromWindow() {
+        Iterator<Entry> iterator = window.values().iterator();
+        while (windowBytes > windowCapacity && iterator.hasNext()) {
+            Entry candidate = iterator.next();
+            iterator.remove();
+            windowBytes -= candidate.size;
+            admit(candidate);
+        }
+    }
+
+    private void admit(Entry candidate) {
+        if (!canAdmit(sketch.frequency(candidate.key), candidate.size)) {
+            rejected.increment();
+            return;
+        }
+
+        long needed = probationBytes + protectedBytes + candidate.size - (capacity - windowCapacity);
+        if (needed > 0) {
+            long freed = evictOldest(probation, needed);
+            probationBytes -= freed;
+            protectedBytes -= evictOldest(protectedSegment, needed - freed);
+        }
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.size;
+        admitted.increment();
+    }
+
+    /**
+     * 主区能否接受 size 字节、频率为 candidateFrequency 的候选者：空间足够，或者从试用段（不够时再从保护段）
+     * 最久未访问的一端选出的足够多的淘汰对象，频率都低于候选者
+     */
+    private boolean canAdmit(int candidateFrequency, long size) {
+        long needed = probationBytes + protectedBytes + size - (capacity - windowCapacity);
+        if (needed <= 0) {
+            return true;
+        }
+        long selected = 0;
+        for (Entry victim : probation.values()) {
+            if (selected >= needed) {
+                break;
+            }
+            if (sketch.frequency(victim.key) >= candidateFrequency) {
+                return false;
+            }
+            selected += victim.size;
+        }
+        for (Entry victim : protectedSegment.values()) {
+            if (selected >= needed) {
+                break;
+            }
+            if (sketch.frequency(victim.key) >= candidateFrequency) {
+                return false;
+            }
+            selected += victim.size;
+        }
+        return selected >= needed;
+    }
+
+    /**
+     * 从最久未访问的一端删除条目，直到释放至少 bytes 字节，返回实际释放的字节数
+     */
+    private long evictOldest(LinkedHashMap<String, Entry> segment, long bytes) {
+        long freed = 0;
+        Iterator<Entry> iterator = segment.values().iterator();
+        while (freed < bytes && iterator.hasNext()) {
+            freed += iterator.next().size;
+            iterator.remove();
+            evicted.increment();
+        }
+        return freed;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("capacity", capacity);
+        stats.put("maxEntrySize", maxEntrySize);
+        stats.put("entries", window.size() + probation.size() + protectedSegment.size());
+        stats.put("usedBytes", windowBytes + probationBytes + protectedBytes);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("bypassed", bypassed.sum());
+        stats.put("hitRatio", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0.0);
+        stats.put("bytesSaved", bytesSaved.sum());
+        stats.put("admitted", admitted.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("evicted", evicted.sum());
+        stats.put("invalidated", invalidated.sum());
+        return stats;
+    }
+
+    /**
+     * Count-Min Sketch：4 组 4 位计数器估计访问频率（最大 15），
+     * 累计增加次数达到计数器数量的 10 倍时全部减半，让旧的热点逐渐冷却
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xc3a5c85c, 0x85ebca6b, 0x27d4eb2f};
+
+        // 每个 long 存 16 个 4 位计数器
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int counters) {
+            int size = Integer.highestOneBit(Math.max(16, counters) - 1) << 1;
+            this.table = new long[size / 16];
+            this.mask = size - 1;
+            this.sampleSize = size * 10;
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, counter(index(hash, seed)));
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = frequency(key);
+            if (frequency >= 15) {
+                return;
+            }
+            // 只增加等于最小值的计数器（保守更新），减少哈希冲突造成的高估
+            for (int seed : SEEDS) {
+                int index = index(hash, seed);
+                if (counter(index) == frequency) {
+                    table[index >>> 4] += 1L << ((index & 15) << 2);
+                }
+            }
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private int counter(int index) {
+            return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xfL);
+        }
+
+        private int index(int hash, int seed) {
+            int h = (hash ^ seed) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xed5ad4bb;
+            hash ^= hash >>> 11;
+            return hash;
+        }
+    }
+}
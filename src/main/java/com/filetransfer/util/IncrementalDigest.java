@@ -0,0 +1,165 @@
+package com.filetransfer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 上传过程中增量计算的 SHA-256，覆盖文件开头连续的一段字节
+ *
+ * 写入位置正好是已摘要部分末尾的数据，在写入时通过 {@link #claim(long, InputStream)} 顺带计算摘要；
+ * 乱序到达的数据先直接写盘，等前面的空缺补齐后由 {@link #advance(Path, long)} 从文件中读取补算。
+ * 补算在后台线程执行（见 {@link #requestCatchUp(long)}），期间到达的数据不经过摘要，之后再补算。
+ * 按顺序上传时整个文件只在接收时经过一次摘要，不需要事后重新读取。
+ */
+public class IncrementalDigest {
+
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private MessageDigest digest;
+    private long digestedBytes;
+    private boolean busy;
+    private boolean catchUpPending;
+
+    public IncrementalDigest() {
+        this.digest = newDigest();
+    }
+
+    /**
+     * 如果 position 正好是已摘要部分的末尾，返回一个边读边计算摘要的输入流，并占用摘要直到 {@link #release}；
+     * 否则原样返回 in，调用方之后需要调用 {@link #advance(Path, long)} 补算
+     */
+    public synchronized InputStream claim(long position, InputStream in) {
+        if (busy || digest == null || position != digestedBytes) {
+            return in;
+        }
+        busy = true;
+        return new ClaimedStream(in, digest);
+    }
+
+    /**
+     * 结束 {@link #claim} 得到的写入，written 为实际写入文件的字节数。
+     * 读出但没有写入的字节已经进入摘要，这时摘要作废，由调用方改为事后计算整个文件
+     */
+    public synchronized void release(InputStream claimed, long written) {
+        if (!(claimed instanceof ClaimedStream) || !busy) {
+            return;
+        }
+        busy = false;
+        if (((ClaimedStream) claimed).count == written) {
+            digestedBytes += written;
+        } else {
+            digest = null;
+        }
+    }
+
+    /**
+     * 已写入的连续部分超出了已摘要的部分时登记一次补算，返回 true 表示调用方需要安排 {@link #advance}；
+     * 已有待执行的补算时返回 false
+     */
+    public synchronized boolean requestCatchUp(long contiguousEnd) {
+        if (catchUpPending || digest == null || contiguousEnd <= digestedBytes) {
+            return false;
+        }
+        catchUpPending = true;
+        return true;
+    }
+
+    /**
+     * 从文件中读取 [已摘要位置, contiguousEnd) 补算摘要；contiguousEnd 之前的数据必须都已写入。
+     * 读取期间占用摘要但不持有锁，同时到达的写入不会等待，只是不经过摘要
+     */
+    public void advance(Path file, long contiguousEnd) throws IOException {
+        MessageDigest md;
+        long position;
+        synchronized (this) {
+            catchUpPending = false;
+            if (busy || digest == null || contiguousEnd <= digestedBytes) {
+                return;
+            }
+            busy = true;
+            md = digest;
+            position = digestedBytes;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (position < contiguousEnd) {
+                long length = Math.min(MAP_WINDOW, contiguousEnd - position);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                md.update(mapped);
+                position += length;
+            }
+        } finally {
+            synchronized (this) {
+                busy = false;
+                digestedBytes = position;
+            }
+        }
+    }
+
+    public synchronized long getDigestedBytes() {
+        return digest != null ? digestedBytes : 0;
+    }
+
+    /**
+     * 摘要覆盖了全部 totalSize 字节时返回十六进制结果，否则返回 null
+     */
+    public synchronized String finish(long totalSize) {
+        if (digest == null || busy || digestedBytes != totalSize) {
+            return null;
+        }
+        String hex = toHex(digest.digest());
+        digest = null;
+        return hex;
+    }
+
+    /**
+     * 边读边摘要并记录读取的字节数
+     */
+    private static final class ClaimedStream extends DigestInputStream {
+        private long count;
+
+        ClaimedStream(InputStream in, MessageDigest digest) {
+            super(in, digest);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,229 @@
+package com.filetransfer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 已序列化的文件列表响应缓存
+ *
+ * 按用户保存列表响应的 UTF-8 JSON 字节，同一用户的不同参数组合（分页、排序、字段投影）各占一项；
+ * 条目带着生成时的列表版本号，版本号变化（用户的任何文件发生修改）后整个用户的条目失效，
+ * 命中时直接把字节写到响应，不再经过 Jackson。
+ *
+ * 客户端接受 gzip 时第一次使用该条目才压缩，之后的请求直接输出压缩后的字节。
+ * 总字节数（原始和压缩内容之和）超过容量时淘汰最久未访问的用户。
+ */
+public class ListingResponseCache {
+
+    // 小于该字节数的响应不压缩，压缩收益抵不上 gzip 头和客户端解压的开销
+    private static final int MIN_GZIP_SIZE = 1024;
+
+    private final long capacity;
+    private final int maxVariantsPerUser;
+
+    // 访问顺序，第一个是最久未访问的用户
+    private final LinkedHashMap<String, UserEntry> users = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+    private final LongAdder gzipBytesServed = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    public interface Serializer {
+        byte[] serialize() throws IOException;
+    }
+
+    /**
+     * 一项缓存的响应；gzip 为 null 表示还没有压缩或不值得压缩
+     */
+    public static final class Body {
+        private final byte[] json;
+        private volatile byte[] gzip;
+        private volatile boolean gzipChecked;
+
+        Body(byte[] json) {
+            this.json = json;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+    }
+
+    private static final class UserEntry {
+        final String version;
+        final Map<String, Body> variants = new HashMap<>();
+        long bytes;
+
+        UserEntry(String version) {
+            this.version = version;
+        }
+    }
+
+    /**
+     * @param capacity           所有条目的总字节数上限，0 表示不缓存
+     * @param maxVariantsPerUser 每个用户最多缓存的参数组合数
+     */
+    public ListingResponseCache(long capacity, int maxVariantsPerUser) {
+        this.capacity = Math.max(0, capacity);
+        this.maxVariantsPerUser = Math.max(1, maxVariantsPerUser);
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * 返回缓存的响应，未命中时序列化并放入缓存
+     *
+     * @param version 用户文件列表的当前版本
+     * @param variant 影响响应内容的请求参数
+     */
+    public Body get(String userId, String version, String variant, Serializer serializer) throws IOException {
+        synchronized (this) {
+            UserEntry entry = users.get(userId);
+            if (entry != null && entry.version.equals(version)) {
+                Body body = entry.variants.get(variant);
+                if (body != null) {
+                    hits.increment();
+                    return body;
+                }
+            }
+            misses.increment();
+        }
+
+        // 在锁外序列化，不阻塞其他用户
+        Body body = new Body(serializer.serialize());
+        if (!isEnabled() || body.json.length > capacity) {
+            return body;
+        }
+
+        synchronized (this) {
+            UserEntry entry = users.get(userId);
+            if (entry != null && !entry.version.equals(version)) {
+                removeUser(userId);
+                invalidated.increment();
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new UserEntry(version);
+                users.put(userId, entry);
+            }
+            if (!entry.variants.containsKey(variant)) {
+                if (entry.variants.size() >= maxVariantsPerUser) {
+                    // 参数组合过多（例如逐页翻看）时只保留最新的这一项
+                    usedBytes -= entry.bytes;
+                    entry.variants.clear();
+                    entry.bytes = 0;
+                }
+                entry.variants.put(variant, body);
+                entry.bytes += body.json.length;
+                usedBytes += body.json.length;
+                evictToCapacity(userId);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * 压缩后的内容；第一次调用时压缩并计入缓存容量，不值得压缩时返回 null
+     */
+    public byte[] gzip(String userId, Body body) throws IOException {
+        if (body.gzipChecked) {
+            return body.gzip;
+        }
+        byte[] compressed = null;
+        if (body.json.length >= MIN_GZIP_SIZE) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.json.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(body.json);
+            }
+            compressed = out.size() < body.json.length ? out.toByteArray() : null;
+        }
+        synchronized (this) {
+            if (!body.gzipChecked) {
+                body.gzip = compressed;
+                body.gzipChecked = true;
+                UserEntry entry = users.get(userId);
+                if (compressed != null && entry != null && entry.variants.containsValue(body)) {
+                    entry.bytes += compressed.length;
+                    usedBytes += compressed.length;
+                    evictToCapacity(userId);
+                }
+            }
+            return body.gzip;
+        }
+    }
+
+    /**
+     * 记录实际写到响应的字节数
+     */
+    public void recordServed(long bytes, boolean gzip) {
+        bytesServed.add(bytes);
+        if (gzip) {
+            gzipBytesServed.add(bytes);
+        }
+    }
+
+    public synchronized void invalidate(String userId) {
+        if (removeUser(userId)) {
+            invalidated.increment();
+        }
+    }
+
+    public synchronized void clear() {
+        users.clear();
+        usedBytes = 0;
+    }
+
+    private boolean removeUser(String userId) {
+        UserEntry entry = users.remove(userId);
+        if (entry == null) {
+            return false;
+        }
+        usedBytes -= entry.bytes;
+        return true;
+    }
+
+    /**
+     * 淘汰最久未访问的用户，刚写入的用户保留
+     */
+    private void evictToCapacity(String keep) {
+        Iterator<Map.Entry<String, UserEntry>> iterator = users.entrySet().iterator();
+        while (usedBytes > capacity && iterator.hasNext()) {
+            Map.Entry<String, UserEntry> oldest = iterator.next();
+            if (oldest.getKey().equals(keep)) {
+                continue;
+            }
+            iterator.remove();
+            usedBytes -= oldest.getValue().bytes;
+            evicted.increment();
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("capacity", capacity);
+        stats.put("users", users.size());
+        stats.put("usedBytes", usedBytes);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0.0);
+        stats.put("bytesServed", bytesServed.sum());
+        stats.put("gzipBytesServed", gzipBytesServed.sum());
+        stats.put("invalidated", invalidated.sum());
+        stats.put("evicted", evicted.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,189 @@
+package com.filetransfer.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 元数据追加日志（每行一条JSON记录）
+ *
+ * 每条记录描述单个对象的一次变更：PUT（整条写入）、PATCH（部分字段）或 DELETE。
+ * 写入成本只与变更本身大小有关；快照写入成功后调用 {@link #reset()} 截断日志。
+ * PATCH 记录必须携带字段的绝对值，这样在快照之上重放日志是幂等的。
+ * {@link #append} 只写入缓冲区，由 {@link #flush()} 统一落盘，便于批量提交。
+ */
+public class MetadataJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataJournal.class);
+
+    public static final String OP_PUT = "PUT";
+    public static final String OP_PATCH = "PATCH";
+    public static final String OP_DELETE = "DELETE";
+
+    private final File file;
+    private final ObjectMapper mapper;
+
+    private FileOutputStream output;
+    private BufferedWriter writer;
+    private int entryCount;
+
+    public MetadataJournal(File file, ObjectMapper mapper) {
+        this.file = file;
+        this.mapper = mapper;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 追加一条变更记录（写入缓冲区，调用 flush 后落盘）
+     */
+    public synchronized void append(String op, String id, Object data) throws IOException {
+        Entry entry = new Entry();
+        entry.setOp(op);
+        entry.setId(id);
+        if (data != null) {
+            entry.setData(mapper.valueToTree(data));
+        }
+
+        BufferedWriter out = openWriter();
+        out.write(mapper.writeValueAsString(entry));
+        out.newLine();
+        entryCount++;
+    }
+
+    /**
+     * 将缓冲的记录写入文件并同步到磁盘
+     */
+    public synchronized void flush() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        writer.flush();
+        output.getFD().sync();
+    }
+
+    /**
+     * 读取日志中的所有记录；末尾不完整的一行（写入中途崩溃）会被忽略
+     */
+    public synchronized List<Entry> readAll() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!file.exists()) {
+            entryCount = 0;
+            return entries;
+        }
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    entries.add(mapper.readValue(line, Entry.class));
+                } catch (IOException e) {
+                    logger.warn("忽略无法解析的日志记录: {} 第 {} 行: {}", file.getName(), lineNumber, e.getMessage());
+                }
+            }
+        }
+
+        entryCount = entries.size();
+        return entries;
+    }
+
+    /**
+     * 截断日志（在快照成功写入之后调用）
+     */
+    public synchronized void reset() throws IOException {
+        closeWriter();
+        try (FileOutputStream out = new FileOutputStream(file, false)) {
+            out.getFD().sync();
+        }
+        entryCount = 0;
+    }
+
+    /**
+     * 自上次截断以来的记录数
+     */
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    private BufferedWriter openWriter() throws IOException {
+        if (writer == null) {
+            File parentDir = file.getParentFile();
+            if (parentDir != null && !parentDir.exists()) {
+                parentDir.mkdirs();
+            }
+            output = new FileOutputStream(file, true);
+            writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        }
+        return writer;
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("关闭日志文件失败: {}", e.getMessage());
+            }
+            writer = null;
+            output = null;
+        }
+    }
+
+    /**
+     * 单条日志记录
+     */
+    public static class Entry {
+        private String op;
+        private String id;
+        private JsonNode data;
+
+        public String getOp() {
+            return op;
+        }
+
+        public void setOp(String op) {
+            this.op = op;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public JsonNode getData() {
+            return data;
+        }
+
+        public void setData(JsonNode data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package com.filetransfer.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 内存中的用户存储配额账本
+ *
+ * 每个用户一个账户，已用量和预留量各是一个 AtomicLong，上传前用 CAS 预留声明的大小，
+ * 不同用户之间没有共享的锁；完成时 {@link #commit} 把预留转为实际大小，失败时 {@link #release} 归还。
+ * 提交时先增加已用量再扣除预留量，检查看到的占用只会偏大，不会超发配额。
+ *
+ * 变更只把用户标记为脏，{@link #flush()} 为每个脏用户向日志追加一行“用户ID\t已用字节数”。
+ * 记录的是绝对值，重放时同一用户以最后一行为准；行数超过阈值时用当前值重写日志。
+ * 预留只存在于内存中，重启后由上传会话重新登记。
+ */
+public class QuotaLedger {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuotaLedger.class);
+
+    // 日志中表示账户已删除的值
+    private static final long REMOVED = -1;
+
+    private final File journalFile;
+    private final int compactThreshold;
+    private volatile boolean enforce;
+
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    // 以下字段由 journalLock 保护
+    private final Object journalLock = new Object();
+    private FileOutputStream output;
+    private BufferedWriter writer;
+    private int journalEntries;
+
+    private final LongAdder reserveCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder commitCount = new LongAdder();
+    private final LongAdder releaseCount = new LongAdder();
+    private final LongAdder corrections = new LongAdder();
+
+    /**
+     * 超出配额时抛出
+     */
+    public static class QuotaExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final long requested;
+        private final long available;
+
+        public QuotaExceededException(String userId, long requested, long available) {
+            super("Storage quota exceeded: " + requested + " bytes requested, " + Math.max(0, available)
+                    + " bytes available");
+            this.requested = requested;
+            this.available = available;
+        }
+
+        public long getRequested() {
+            return requested;
+        }
+
+        public long getAvailable() {
+            return Math.max(0, available);
+        }
+    }
+
+    private static final class Account {
+        final AtomicLong used = new AtomicLong();
+        final AtomicLong reserved = new AtomicLong();
+        // 小于等于 0 表示不限制
+        volatile long limit;
+    }
+
+    private static final class Reservation {
+        final String userId;
+        final Account account;
+        final AtomicLong bytes = new AtomicLong();
+
+        Reservation(String userId, Account account) {
+            this.userId = userId;
+            this.account = account;
+        }
+    }
+
+    /**
+     * @param journalFile      日志文件
+     * @param compactThreshold 日志行数超过该值时重写
+     * @param enforce          false 时只记账不拒绝
+     */
+    public QuotaLedger(File journalFile, int compactThreshold, boolean enforce) {
+        this.journalFile = journalFile;
+        this.compactThreshold = Math.max(100, compactThreshold);
+        this.enforce = enforce;
+    }
+
+    /**
+     * 创建或更新账户；已用量以 used 为准
+     */
+    public void setAccount(String userId, long used, long limit) {
+        Account account = account(userId);
+        account.limit = limit;
+        account.used.set(Math.max(0, used));
+        dirty.add(userId);
+    }
+
+    public void setLimit(String userId, long limit) {
+        account(userId).limit = limit;
+    }
+
+    public void removeAccount(String userId) {
+        if (accounts.remove(userId) != null) {
+            dirty.add(userId);
+        }
+    }
+
+    public long getUsed(String userId) {
+        Account account = accounts.get(userId);
+        return account != null ? account.used.get() : 0;
+    }
+
+    public long getReserved(String userId) {
+        Account account = accounts.get(userId);
+        return account != null ? account.reserved.get() : 0;
+    }
+
+    /**
+     * 剩余可用字节数（已扣除预留）；不限制时返回 Long.MAX_VALUE
+     */
+    public long getAvailable(String userId) {
+        Account account = accounts.get(userId);
+        if (account == null || account.limit <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return account.limit - account.used.get() - account.reserved.get();
+    }
+
+    public boolean hasAvailable(String userId, long bytes) {
+        return !enforce || getAvailable(userId) >= bytes;
+    }
+
+    /**
+     * 为上传预留空间；同一个 reservationId 多次调用时累加（分块上传逐块预留）
+     *
+     * @param check false 时不检查配额（重启后恢复未完成的上传会话）
+     * @throws QuotaExceededException 剩余空间不足
+     */
+    public void reserve(String reservationId, String userId, long bytes, boolean check) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative");
+        }
+        Account account = account(userId);
+        while (true) {
+            long reserved = account.reserved.get();
+            long limit = account.limit;
+            if (check && enforce && limit > 0) {
+                long available = limit - account.used.get() - reserved;
+                if (bytes > available) {
+                    rejectedCount.increment();
+                    throw new QuotaExceededException(userId, bytes, available);
+                }
+            }
+            if (account.reserved.compareAndSet(reserved, reserved + bytes)) {
+                break;
+            }
+        }
+        reservations.computeIfAbsent(reservationId, id -> new Reservation(userId, account)).bytes.addAndGet(bytes);
+        reserveCount.increment();
+    }
+
+    /**
+     * 上传完成：归还预留并计入实际大小；没有预留时（例如预留前已重启）直接计入
+     */
+    public void commit(String reservationId, String userId, long actualBytes) {
+        Reservation reservation = reservations.remove(reservationId);
+        add(reservation != null ? reservation.userId : userId, actualBytes);
+        if (reservation != null) {
+            reservation.account.reserved.addAndGet(-reservation.bytes.get());
+        }
+        commitCount.increment();
+    }
+
+    /**
+     * 上传失败或取消：归还预留，不存在时忽略
+     */
+    public boolean release(String reservationId) {
+        Reservation reservation = reservations.remove(reservationId);
+        if (reservation == null) {
+            return false;
+        }
+        reservation.account.reserved.addAndGet(-reservation.bytes.get());
+        releaseCount.increment();
+        return true;
+    }
+
+    /**
+     * 增加（正数）或减少（负数）已用量，结果不小于 0
+     */
+    public void add(String userId, long delta) {
+        if (userId == null || delta == 0) {
+            return;
+        }
+        AtomicLong used = account(userId).used;
+        while (true) {
+            long current = used.get();
+            long next = Math.max(0, current + delta);
+            if (used.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        dirty.add(userId);
+    }
+
+    /**
+     * 各账户当前的已用量，作为校正的基准
+     */
+    public Map<String, Long> usedSnapshot() {
+        Map<String, Long> snapshot = new HashMap<>();
+        for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().used.get());
+        }
+        return snapshot;
+    }
+
+    /**
+     * 用重新统计的结果校正已用量
+     *
+     * 只有账户的已用量仍等于统计开始前的快照时才替换（CAS）；统计期间发生变化的账户跳过，留到下一轮，
+     * 避免用过时的统计结果覆盖并发的上传和删除。
+     *
+     * @param before 统计开始前的 {@link #usedSnapshot()}
+     * @param actual 统计得到的各用户已用量，不存在的用户视为 0
+     * @return 被校正的账户数
+     */
+    public int reconcile(Map<String, Long> before, Map<String, Long> actual) {
+        int corrected = 0;
+        for (Map.Entry<String, Long> entry : before.entrySet()) {
+            Account account = accounts.get(entry.getKey());
+            if (account == null) {
+                continue;
+            }
+            long expected = entry.getValue();
+            long target = actual.getOrDefault(entry.getKey(), 0L);
+            if (expected != target && account.used.compareAndSet(expected, target)) {
+                logger.info("校正用户 {} 的存储用量: {} -> {}", entry.getKey(), expected, target);
+                dirty.add(entry.getKey());
+                corrected++;
+            }
+        }
+        corrections.add(corrected);
+        return corrected;
+    }
+
+    /**
+     * 读取日志，返回每个用户最后记录的已用量（已删除的用户不返回）
+     */
+    public Map<String, Long> replay() throws IOException {
+        Map<String, Long> values = new HashMap<>();
+        synchronized (journalLock) {
+            journalEntries = 0;
+            if (!journalFile.exists()) {
+                return values;
+            }
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab <= 0) {
+                        continue;
+                    }
+                    try {
+                        long used = Long.parseLong(line.substring(tab + 1).trim());
+                        String userId = line.substring(0, tab);
+                        if (used == REMOVED) {
+                            values.remove(userId);
+                        } else {
+                            values.put(userId, used);
+                        }
+                        journalEntries++;
+                    } catch (NumberFormatException e) {
+                        // 写入中途崩溃留下的不完整行
+                        logger.warn("忽略无法解析的配额日志记录: {}", line);
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 把脏用户的当前已用量追加到日志并同步到磁盘；行数超过阈值时重写日志
+     */
+    public void flush() throws IOException {
+        synchronized (journalLock) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            if (journalEntries >= compactThreshold) {
+                compact();
+                return;
+            }
+            // 先移除再读取，读取之后的修改会重新标记，下次写入
+            List<String> pending = new ArrayList<>(dirty);
+            dirty.removeAll(pending);
+            try {
+                BufferedWriter out = openWriter();
+                for (String userId : pending) {
+                    Account account = accounts.get(userId);
+                    out.write(userId);
+                    out.write('\t');
+                    out.write(Long.toString(account != null ? account.used.get() : REMOVED));
+                    out.newLine();
+                    journalEntries++;
+                }
+                out.flush();
+                output.getFD().sync();
+            } catch (IOException e) {
+                // 没有确认落盘的用户重新标记为脏，写入器重新打开后再写
+                dirty.addAll(pending);
+                closeWriter();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 用所有账户的当前值重写日志（先写临时文件再原子替换）
+     */
+    public void compact() throws IOException {
+        synchronized (journalLock) {
+            closeWriter();
+            // 与 flush 相同，先移除再读取；替换成功之前失败则重新标记
+            List<String> pending = new ArrayList<>(dirty);
+            dirty.removeAll(pending);
+            File tempFile = new File(journalFile.getPath() + ".tmp");
+            int entries = 0;
+            try {
+                try (FileOutputStream out = new FileOutputStream(tempFile, false);
+                     BufferedWriter tempWriter = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                    for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+                        tempWriter.write(entry.getKey());
+                        tempWriter.write('\t');
+                        tempWriter.write(Long.toString(entry.getValue().used.get()));
+                        tempWriter.newLine();
+                        entries++;
+                    }
+                    tempWriter.flush();
+                    out.getFD().sync();
+                }
+                Files.move(tempFile.toPath(), journalFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                dirty.addAll(pending);
+                tempFile.delete();
+                throw e;
+            }
+            journalEntries = entries;
+            logger.debug("配额日志已重写: {} 条记录", entries);
+        }
+    }
+
+    public void close() {
+        synchronized (journalLock) {
+            closeWriter();
+        }
+    }
+
+    public void setEnforce(boolean enforce) {
+        this.enforce = enforce;
+    }
+
+    private Account account(String userId) {
+        return accounts.computeIfAbsent(userId, id -> new Account());
+    }
+
+    private BufferedWriter openWriter() throws IOException {
+        if (writer == null) {
+            File parentDir = journalFile.getParentFile();
+            if (parentDir != null && !parentDir.exists()) {
+                parentDir.mkdirs();
+            }
+            output = new FileOutputStream(journalFile, true);
+            writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        }
+        return writer;
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("关闭配额日志失败: {}", e.getMessage());
+            }
+            writer = null;
+            output = null;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long reservedBytes = 0;
+        for (Reservation reservation : reservations.values()) {
+            reservedBytes += reservation.bytes.get();
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enforce", enforce);
+        stats.put("accounts", accounts.size());
+        stats.put("activeReservations", reservations.size());
+        stats.put("reservedBytes", reservedBytes);
+        stats.put("reservations", reserveCount.sum());
+        stats.put("rejected", rejectedCount.sum());
+        stats.put("commits", commitCount.sum());
+        stats.put("releases", releaseCount.sum());
+        stats.put("corrections", corrections.sum());
+        synchronized (journalLock) {
+            stats.put("journalEntries", journalEntries);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,90 @@
+package com.filetransfer.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 边读边预留存储空间的输入流
+ *
+ * 用于事先不知道大小的流式上传：已读取的字节数超过已预留的量时，按 step 为单位继续预留，
+ * 预留失败的异常从 read 抛出，数据在写入磁盘之前就被拒绝。
+ */
+public class ReservingInputStream extends FilterInputStream {
+
+    public interface Reserver {
+        void reserve(long bytes);
+    }
+
+    private final Reserver reserver;
+    private final long step;
+    private long reserved;
+    private long count;
+
+    /**
+     * @param step 每次预留的字节数，较大的值减少预留次数，较小的值减少多占用的配额
+     */
+    public ReservingInputStream(InputStream in, long step, Reserver reserver) {
+        super(in);
+        this.step = Math.max(1, step);
+        this.reserver = reserver;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            advance(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            advance(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            advance(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * 已读取的字节数
+     */
+    public long getCount() {
+        return count;
+    }
+
+    private void advance(long n) {
+        count += n;
+        if (count > reserved) {
+            long needed = count - reserved;
+            long grow = Math.max(step, needed);
+            try {
+                reserver.reserve(grow);
+            } catch (RuntimeException e) {
+                if (grow == needed) {
+                    throw e;
+                }
+                // 剩余配额不足一个 step 时只预留实际读到的部分
+                grow = needed;
+                reserver.reserve(grow);
+            }
+            reserved += grow;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.filetransfer.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 文件下载统计：分别记录 sendfile、请求线程复制和非阻塞异步输出三种方式的响应数、字节数和消耗的 CPU 时间，
+ * 用每 GB 的 CPU 毫秒数比较各方式的开销；异步输出另外记录正在进行的传输数
+ */
+public class TransferStats {
+
+    private static final double GB = 1024.0 * 1024.0 * 1024.0;
+
+    private final LongAdder sendfileResponses = new LongAdder();
+    private final LongAdder sendfileBytes = new LongAdder();
+    private final LongAdder sendfileCpuNanos = new LongAdder();
+    private final LongAdder copyResponses = new LongAdder();
+    private final LongAdder copyBytes = new LongAdder();
+    private final LongAdder copyCpuNanos = new LongAdder();
+    private final LongAdder asyncResponses = new LongAdder();
+    private final LongAdder asyncBytes = new LongAdder();
+    private final LongAdder asyncCpuNanos = new LongAdder();
+    private final LongAdder asyncActive = new LongAdder();
+
+    public void recordSendfile(long bytes, long cpuNanos) {
+        sendfileResponses.increment();
+        sendfileBytes.add(bytes);
+        sendfileCpuNanos.add(Math.max(0, cpuNanos));
+    }
+
+    public void recordCopy(long bytes, long cpuNanos) {
+        copyResponses.increment();
+        copyBytes.add(bytes);
+        copyCpuNanos.add(Math.max(0, cpuNanos));
+    }
+
+    public void asyncStarted() {
+        asyncActive.increment();
+    }
+
+    /**
+     * 异步输出结束（包括客户端断开和超时）；cpuNanos 是各次回调在容器线程上消耗的 CPU 时间之和
+     */
+    public void recordAsync(long bytes, long cpuNanos) {
+        asyncActive.decrement();
+        asyncResponses.increment();
+        asyncBytes.add(bytes);
+        asyncCpuNanos.add(Math.max(0, cpuNanos));
+    }
+
+    /**
+     * sendfile 的数据由内核在容器线程之外发送，这里只计入请求线程的开销
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sendfile", mode(sendfileResponses.sum(), sendfileBytes.sum(), sendfileCpuNanos.sum()));
+        stats.put("copy", mode(copyResponses.sum(), copyBytes.sum(), copyCpuNanos.sum()));
+        Map<String, Object> async = mode(asyncResponses.sum(), asyncBytes.sum(), asyncCpuNanos.sum());
+        async.put("active", asyncActive.sum());
+        stats.put("async", async);
+        return stats;
+    }
+
+    private static Map<String, Object> mode(long responses, long bytes, long cpuNanos) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("responses", responses);
+        stats.put("bytes", bytes);
+        stats.put("cpuMillis", cpuNanos / 1_000_000);
+        stats.put("cpuMillisPerGB", bytes > 0 ? cpuNanos / 1e6 / (bytes / GB) : 0.0);
+        return stats;
+    }
+
+    /**
+     * 当前线程的 CPU 时间（纳秒）；不支持时返回 0
+     */
+    public static long cpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+}
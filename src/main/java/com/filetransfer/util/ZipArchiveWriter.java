@@ -0,0 +1,207 @@
+package com.filetransfer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 把多个文件按顺序写成 ZIP 流
+ *
+ * 每个文件从输入流复制到 ZipOutputStream，只使用固定大小的复制缓冲区，不写临时文件，
+ * 内存占用与文件数量和总大小无关；超过 4GB 时 ZipOutputStream 自动使用 ZIP64 扩展。
+ *
+ * 图片、音视频、压缩包等已压缩的内容再次压缩几乎没有收益，使用 STORED 原样保存：
+ * STORED 条目需要在条目头中写出 CRC，因此先顺序读一遍计算 CRC32，再读一遍写出内容。
+ * 文本等其他内容使用 DEFLATE。
+ *
+ * 写完或出错后调用 {@link #close()} 释放 Deflater 的本地内存；close 不写出中央目录，也不关闭底层输出流。
+ */
+public class ZipArchiveWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String[] COMPRESSED_TYPES = {
+            "image/", "video/", "audio/",
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-bzip2", "application/x-xz",
+            "application/x-compress", "application/zstd", "application/java-archive", "application/pdf",
+            "application/vnd.openxmlformats-officedocument.", "application/epub+zip", "font/woff"
+    };
+    private static final String[] UNCOMPRESSED_TYPES = {
+            "image/svg+xml", "image/bmp", "image/x-ms-bmp", "image/tiff", "audio/wav", "audio/x-wav"
+    };
+    private static final String[] COMPRESSED_EXTENSIONS = {
+            ".zip", ".gz", ".tgz", ".7z", ".rar", ".bz2", ".xz", ".zst", ".jar", ".apk",
+            ".jpg", ".jpeg", ".png", ".gif", ".webp", ".heic", ".mp3", ".aac", ".ogg", ".flac", ".m4a",
+            ".mp4", ".m4v", ".mkv", ".webm", ".mov", ".avi", ".pdf", ".docx", ".xlsx", ".pptx", ".epub"
+    };
+
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private final ReleasableZipOutputStream zip;
+    private final Set<String> names = new HashSet<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final CRC32 crc = new CRC32();
+    private long entries;
+    private long storedEntries;
+    private long contentBytes;
+
+    public ZipArchiveWriter(OutputStream out) {
+        this.zip = new ReleasableZipOutputStream(out);
+        this.zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * 写出一个文件；同名文件追加序号，opener 在 STORED 模式下会被调用两次
+     *
+     * @param size 记录的文件大小，实际内容不一致时抛出 IOException
+     */
+    public void addEntry(String fileName, String contentType, long size, long lastModified,
+                         StreamOpener opener) throws IOException {
+        ZipEntry entry = new ZipEntry(uniqueName(fileName));
+        if (lastModified > 0) {
+            entry.setTime(lastModified);
+        }
+
+        if (isCompressed(fileName, contentType)) {
+            crc.reset();
+            long read = 0;
+            try (InputStream in = opener.open()) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, n);
+                    read += n;
+                }
+            }
+            checkSize(fileName, size, read);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc.getValue());
+            storedEntries++;
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+        }
+
+        zip.putNextEntry(entry);
+        long written = 0;
+        try (InputStream in = opener.open()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                zip.write(buffer, 0, n);
+                written += n;
+            }
+        }
+        checkSize(fileName, size, written);
+        zip.closeEntry();
+        entries++;
+        contentBytes += written;
+    }
+
+    /**
+     * 写出中央目录；不关闭底层输出流
+     */
+    public void finish() throws IOException {
+        zip.finish();
+        zip.flush();
+    }
+
+    /**
+     * 释放 Deflater 的本地内存；没有调用 {@link #finish()} 时写出的压缩包不完整
+     */
+    @Override
+    public void close() {
+        zip.release();
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getStoredEntries() {
+        return storedEntries;
+    }
+
+    public long getContentBytes() {
+        return contentBytes;
+    }
+
+    /**
+     * 内容类型或扩展名表明内容已经压缩过
+     */
+    static boolean isCompressed(String fileName, String contentType) {
+        if (contentType != null && !contentType.isEmpty()) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            for (String prefix : UNCOMPRESSED_TYPES) {
+                if (type.startsWith(prefix)) {
+                    return false;
+                }
+            }
+            for (String prefix : COMPRESSED_TYPES) {
+                if (type.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        if (fileName != null) {
+            String name = fileName.toLowerCase(Locale.ROOT);
+            for (String extension : COMPRESSED_EXTENSIONS) {
+                if (name.endsWith(extension)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 去掉路径部分，重名时在扩展名前加 " (n)"
+     */
+    private String uniqueName(String fileName) {
+        String name = fileName != null ? fileName.replace('\\', '/') : "";
+        name = name.substring(name.lastIndexOf('/') + 1).trim();
+        if (name.isEmpty() || ".".equals(name) || "..".equals(name)) {
+            name = "file";
+        }
+        if (names.add(name.toLowerCase(Locale.ROOT))) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; ; i++) {
+            String candidate = base + " (" + i + ")" + extension;
+            if (names.add(candidate.toLowerCase(Locale.ROOT))) {
+                return candidate;
+            }
+        }
+    }
+
+    /**
+     * ZipOutputStream 只在 close 时释放默认的 Deflater，而 close 会先写出中央目录并关闭底层输出流
+     */
+    private static final class ReleasableZipOutputStream extends ZipOutputStream {
+        ReleasableZipOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        void release() {
+            def.end();
+        }
+    }
+
+    private static void checkSize(String fileName, long expected, long actual) throws IOException {
+        if (expected != actual) {
+            throw new IOException("文件大小与记录不一致: " + fileName + ", 记录 " + expected + " 字节, 实际 " + actual + " 字节");
+        }
+    }
+}